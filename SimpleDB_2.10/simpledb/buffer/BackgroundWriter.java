@@ -0,0 +1,74 @@
+package simpledb.buffer;
+
+/**
+ * A daemon thread that trickles dirty buffers to disk.
+ * Every few milliseconds the writer sweeps part of the
+ * buffer pool, and writes the dirty buffers that are not pinned.
+ * A buffer that is chosen for replacement is then usually clean,
+ * so pinning a block seldom has to wait for a page write.
+ * <p>
+ * The writer uses {@link Buffer#flush()}, which forces the log
+ * up to the buffer's LSN before writing the page,
+ * so the write-ahead rule is respected.
+ * <p>
+ * The writer runs until {@link #shutdown()} is called.
+ * It is not interrupted, since an interrupt during a write
+ * would close the channel of the file being written.
+ */
+class BackgroundWriter extends Thread {
+   private ConcurrentBufferMgr bufferMgr;
+   private long delay;
+   private int maxpages;
+   private boolean stopped = false;
+
+   /**
+    * Creates a background writer for the specified buffer manager.
+    * @param bufferMgr the buffer manager whose pool is written
+    * @param delay the number of milliseconds between sweeps
+    * @param maxpages the maximum number of pages written per sweep
+    */
+   BackgroundWriter(ConcurrentBufferMgr bufferMgr, long delay, int maxpages) {
+      super("simpledb-bgwriter");
+      this.bufferMgr = bufferMgr;
+      this.delay = delay;
+      this.maxpages = maxpages;
+      setDaemon(true);
+   }
+
+   public void run() {
+      while (true) {
+         try {
+            synchronized (this) {
+               if (!stopped)
+                  wait(delay);
+               if (stopped)
+                  return;
+            }
+            bufferMgr.writeDirty(maxpages);
+         }
+         catch(InterruptedException e) {
+            return;
+         }
+         catch(RuntimeException e) {
+            // the page will be written when it is replaced
+         }
+      }
+   }
+
+   /**
+    * Stops the writer, and waits until it has finished
+    * the sweep in progress, if any.
+    */
+   void shutdown() {
+      synchronized (this) {
+         stopped = true;
+         notifyAll();
+      }
+      try {
+         join();
+      }
+      catch(InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+}
@@ -2,6 +2,9 @@ package simpledb.buffer;
 
 import simpledb.server.SimpleDB;
 import simpledb.file.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.*;
 
 /**
  * An individual buffer.
@@ -9,33 +12,71 @@ import simpledb.file.*;
  * such as the disk block associated with the page,
  * the number of times the block has been pinned,
  * whether the contents of the page have been modified,
- * and if so, the id of the modifying transaction and
- * the LSN of the corresponding log record.
+ * and if so, the ids of the modifying transactions and
+ * the LSN of the most recent corresponding log record.
+ * Every transaction that modified the page since it was last written
+ * is remembered, so that each of them can force the page at commit
+ * even if another transaction modified it afterwards.
+ * <p>
+ * The page itself is not thread-safe.
+ * It is guarded by a reader/writer latch:
+ * the value getters hold the latch in shared mode,
+ * so concurrent readers of a buffer do not block each other,
+ * and the setters hold it in exclusive mode.
+ * A transaction holds the exclusive latch for the whole
+ * of an update, from the read of the old value to the write
+ * of the new one (see {@link #latch()}).
+ * Writing the page to disk holds the latch in shared mode,
+ * so a page is never written in the middle of an update.
+ * This latch is distinct from the buffer's monitor,
+ * which guards the assignment of the buffer to a block
+ * and its pin count; the monitor is always acquired first.
  * @author Edward Sciore
  */
 public class Buffer {
    private Page contents = new Page();
    private Block blk = null;
    private int pins = 0;
-   private int modifiedBy = -1;  // negative means not modified
-   private int logSequenceNumber = -1; // negative means no corresponding log record
+   private int[] modifiers = new int[2]; // the transactions that modified the page
+   private int numModifiers = 0; // zero means not modified
+   private long logSequenceNumber = -1; // negative means no corresponding log record
+   private int frame = -1; // the position of the buffer in the buffer pool
+   private boolean prefetched = false; // read ahead, and not yet pinned
+   private ReadWriteLock latch = new ReentrantReadWriteLock();
+   private boolean loading = false; // assigned to a block that is still being read
+   private boolean invalid = false; // its block was removed from the file while it was pinned
 
    /**
     * Creates a new buffer, wrapping a new 
-    * {@link simpledb.file.Page page}.  
-    * This constructor is called exclusively by the 
-    * class {@link BasicBufferMgr}.   
-    * It depends on  the 
+    * {@link simpledb.file.Page page},
+    * that does not occupy a position of a buffer pool.
+    * Such a buffer cannot be managed by a
+    * {@link ReplacementPolicy replacement policy};
+    * it is used by the original {@link BasicBufferMgr},
+    * whereas the pool of the {@link BufferMgr} creates its buffers
+    * with {@link #Buffer(int)}.
+    * A buffer depends on the 
     * {@link simpledb.log.LogMgr LogMgr} object 
     * that it gets from the class
     * {@link simpledb.server.SimpleDB}.
     * That object is created during system initialization.
-    * Thus this constructor cannot be called until 
-    * {@link simpledb.server.SimpleDB#initFileAndLogMgr(String)} or
-    * is called first.
+    * Thus the buffer cannot be used until 
+    * {@link simpledb.server.SimpleDB#initFileAndLogMgr(String)}
+    * is called.
     */
    public Buffer() {}
    
+   /**
+    * Creates a new buffer that occupies the specified
+    * position of the buffer pool.
+    * The position is used by the pool's
+    * {@link ReplacementPolicy replacement policy}.
+    * @param frame the position of the buffer in the pool
+    */
+   Buffer(int frame) {
+      this.frame = frame;
+   }
+   
    /**
     * Returns the integer value at the specified offset of the
     * buffer's page.
@@ -45,7 +86,14 @@ public class Buffer {
     * @return the integer value at that offset
     */
    public int getInt(int offset) {
-      return contents.getInt(offset);
+      Lock l = latch.readLock();
+      l.lock();
+      try {
+         return contents.getInt(offset);
+      }
+      finally {
+         l.unlock();
+      }
    }
 
    /**
@@ -57,7 +105,33 @@ public class Buffer {
     * @return the string value at that offset
     */
    public String getString(int offset) {
-      return contents.getString(offset);
+      Lock l = latch.readLock();
+      l.lock();
+      try {
+         return contents.getString(offset);
+      }
+      finally {
+         l.unlock();
+      }
+   }
+
+   /**
+    * Returns true if the string value at the specified offset
+    * of the buffer's page is equal to the specified string,
+    * without creating a string from the page.
+    * @param offset the byte offset of the page
+    * @param val the string to compare with
+    * @return true if the page holds that string at that offset
+    */
+   public boolean stringEquals(int offset, String val) {
+      Lock l = latch.readLock();
+      l.lock();
+      try {
+         return contents.stringEquals(offset, val);
+      }
+      finally {
+         l.unlock();
+      }
    }
 
    /**
@@ -65,8 +139,8 @@ public class Buffer {
     * buffer's page.
     * This method assumes that the transaction has already
     * written an appropriate log record.
-    * The buffer saves the id of the transaction
-    * and the LSN of the log record.
+    * The buffer adds the id of the transaction
+    * to its modifying transactions, and saves the LSN of the log record.
     * A negative lsn value indicates that a log record
     * was not necessary.
     * @param offset the byte offset within the page
@@ -74,11 +148,18 @@ public class Buffer {
     * @param txnum the id of the transaction performing the modification
     * @param lsn the LSN of the corresponding log record
     */
-   public void setInt(int offset, int val, int txnum, int lsn) {
-      modifiedBy = txnum;
-      if (lsn >= 0)
-	      logSequenceNumber = lsn;
-      contents.setInt(offset, val);
+   public void setInt(int offset, int val, int txnum, long lsn) {
+      Lock l = latch.writeLock();
+      l.lock();
+      try {
+         addModifier(txnum);
+         if (lsn >= 0)
+            logSequenceNumber = lsn;
+         contents.setInt(offset, val);
+      }
+      finally {
+         l.unlock();
+      }
    }
 
    /**
@@ -88,18 +169,53 @@ public class Buffer {
     * written an appropriate log record.
     * A negative lsn value indicates that a log record
     * was not necessary.
-    * The buffer saves the id of the transaction
-    * and the LSN of the log record.
+    * The buffer adds the id of the transaction
+    * to its modifying transactions, and saves the LSN of the log record.
     * @param offset the byte offset within the page
     * @param val the new string value to be written
     * @param txnum the id of the transaction performing the modification
     * @param lsn the LSN of the corresponding log record
     */
-   public void setString(int offset, String val, int txnum, int lsn) {
-      modifiedBy = txnum;
-      if (lsn >= 0)
-	      logSequenceNumber = lsn;
-      contents.setString(offset, val);
+   public void setString(int offset, String val, int txnum, long lsn) {
+      Lock l = latch.writeLock();
+      l.lock();
+      try {
+         addModifier(txnum);
+         if (lsn >= 0)
+            logSequenceNumber = lsn;
+         contents.setString(offset, val);
+      }
+      finally {
+         l.unlock();
+      }
+   }
+
+   /**
+    * Returns the reader/writer latch that guards the buffer's page.
+    * The latch is reentrant, and its holder may call the
+    * getters and setters of the buffer.
+    * A caller that reads or updates several values as a unit
+    * holds the latch around them.
+    * @return the buffer's latch
+    */
+   public ReadWriteLock latch() {
+      return latch;
+   }
+
+   /**
+    * Copies the contents of the buffer's page
+    * into the specified page.
+    * @param dest the page that receives the contents
+    */
+   public void copyTo(Page dest) {
+      Lock l = latch.readLock();
+      l.lock();
+      try {
+         contents.copyTo(dest);
+      }
+      finally {
+         l.unlock();
+      }
    }
 
    /**
@@ -111,6 +227,14 @@ public class Buffer {
       return blk;
    }
 
+   /**
+    * Returns the position of the buffer in the buffer pool.
+    * @return the frame number of the buffer
+    */
+   int frame() {
+      return frame;
+   }
+
    /**
     * Writes the page to its disk block if the
     * page is dirty.
@@ -119,13 +243,65 @@ public class Buffer {
     * the page to disk.
     */
    void flush() {
-      if (modifiedBy >= 0) {
-         SimpleDB.logMgr().flush(logSequenceNumber);
-         contents.write(blk);
-         modifiedBy = -1;
+      if (isModified()) {
+         Lock l = latch.readLock();
+         l.lock();
+         try {
+            SimpleDB.logMgr().flush(logSequenceNumber);
+            contents.write(blk);
+            numModifiers = 0;
+         }
+         finally {
+            l.unlock();
+         }
+      }
+   }
+
+   /**
+    * Writes the pages of the specified buffers, which hold
+    * consecutive blocks of the same file, with a single write.
+    * The log is first flushed up to the most recent LSN
+    * of the buffers.
+    * The caller must hold the latches of all the buffers,
+    * and the buffers must all be dirty.
+    * @param run the buffers, in block order
+    */
+   static void flush(List<Buffer> run) {
+      for (Buffer buff : run)
+         buff.latch.readLock().lock();
+      try {
+         long lsn = -1;
+         Page[] pages = new Page[run.size()];
+         for (int i=0; i<pages.length; i++) {
+            Buffer buff = run.get(i);
+            lsn = Math.max(lsn, buff.logSequenceNumber);
+            pages[i] = buff.contents;
+         }
+         SimpleDB.logMgr().flush(lsn);
+         Page.writeBlocks(run.get(0).blk, pages);
+         for (Buffer buff : run)
+            buff.numModifiers = 0;
+      }
+      finally {
+         for (Buffer buff : run)
+            buff.latch.readLock().unlock();
       }
    }
 
+   /**
+    * Reads the blocks of the specified buffers, which were
+    * assigned to consecutive blocks of the same file by
+    * {@link #assignToLoad(Block)}, with a single read.
+    * The buffers are still loading when the method returns.
+    * @param run the buffers, in block order
+    */
+   static void load(List<Buffer> run) {
+      Page[] pages = new Page[run.size()];
+      for (int i=0; i<pages.length; i++)
+         pages[i] = run.get(i).contents;
+      Page.readBlocks(run.get(0).blk, pages);
+   }
+
    /**
     * Increases the buffer's pin count.
     */
@@ -149,14 +325,93 @@ public class Buffer {
       return pins > 0;
    }
 
+   /**
+    * Returns true if the buffer's block was read ahead
+    * and has not been pinned since.
+    * @return true if the block was prefetched
+    */
+   boolean isPrefetched() {
+      return prefetched;
+   }
+
+   /**
+    * Sets whether the buffer's block was read ahead
+    * and has not been pinned since.
+    * @param prefetched the new value of the flag
+    */
+   void setPrefetched(boolean prefetched) {
+      this.prefetched = prefetched;
+   }
+
+   /**
+    * Returns true if the buffer is assigned to a block
+    * whose contents have not been read yet.
+    * @return true if the buffer is loading
+    */
+   boolean isLoading() {
+      return loading;
+   }
+
+   /**
+    * Marks the buffer's block as read,
+    * and wakes up the threads waiting for it.
+    * The caller must hold the buffer's monitor.
+    */
+   void loaded() {
+      loading = false;
+      notifyAll();
+   }
+
+   /**
+    * Waits until the buffer's block has been read.
+    * @throws InterruptedException
+    */
+   synchronized void awaitLoaded() throws InterruptedException {
+      while (loading)
+         wait();
+   }
+
+   /**
+    * Returns true if the buffer is dirty.
+    * @return true if the page has been modified since it was last written
+    */
+   boolean isModified() {
+      return numModifiers > 0 && !invalid;
+   }
+
    /**
     * Returns true if the buffer is dirty
-    * due to a modification by the specified transaction.
+    * due to a modification by the specified transaction,
+    * even if other transactions modified it afterwards.
+    * Like {@link #isModified()}, the method does not latch the page;
+    * a transaction always sees its own modifications.
     * @param txnum the id of the transaction
     * @return true if the transaction modified the buffer
     */
    boolean isModifiedBy(int txnum) {
-      return txnum == modifiedBy;
+      if (invalid)
+         return false;
+      int[] m = modifiers;
+      int n = Math.min(numModifiers, m.length);
+      for (int i=0; i<n; i++)
+         if (m[i] == txnum)
+            return true;
+      return false;
+   }
+
+   /**
+    * Adds the specified transaction to the transactions
+    * that modified the page since it was last written.
+    * The caller must hold the buffer's exclusive latch.
+    * @param txnum the id of the transaction
+    */
+   private void addModifier(int txnum) {
+      for (int i=0; i<numModifiers; i++)
+         if (modifiers[i] == txnum)
+            return;
+      if (numModifiers == modifiers.length)
+         modifiers = Arrays.copyOf(modifiers, 2 * numModifiers);
+      modifiers[numModifiers++] = txnum;
    }
 
    /**
@@ -168,11 +423,79 @@ public class Buffer {
     */
    void assignToBlock(Block b) {
       flush();
+      invalid = false;
       blk = b;
       contents.read(blk);
       pins = 0;
    }
 
+   /**
+    * Assigns the buffer to the specified block, without reading it.
+    * The buffer is marked as loading until its contents are read
+    * by {@link #load(List)}.
+    * If the buffer was dirty, then the contents
+    * of the previous page are first written to disk.
+    * @param b a reference to the data block
+    */
+   void assignToLoad(Block b) {
+      flush();
+      invalid = false;
+      blk = b;
+      loading = true;
+      pins = 0;
+   }
+
+   /**
+    * Detaches the buffer from its block, which is being
+    * removed from its file, without writing its contents.
+    * The caller must hold the buffer's monitor.
+    */
+   void discard() {
+      contents.forget();
+      numModifiers = 0;
+      logSequenceNumber = -1;
+      prefetched = false;
+      invalid = false;
+      blk = null;
+   }
+
+   /**
+    * Marks the buffer's block as removed from its file,
+    * while the buffer is still pinned.
+    * The pins can still read the page,
+    * but the page is never written to the block again,
+    * even if it is modified.
+    * If the page is a view of a memory-mapped block,
+    * it is first copied, since the view becomes unusable
+    * once the file shrinks.
+    * The buffer is reassigned like any other once it is unpinned.
+    * The caller must hold the buffer's monitor.
+    */
+   void invalidate() {
+      Lock l = latch.writeLock();
+      l.lock();
+      try {
+         contents.detach();
+      }
+      finally {
+         l.unlock();
+      }
+      numModifiers = 0;
+      logSequenceNumber = -1;
+      prefetched = false;
+      invalid = true;
+   }
+
+   /**
+    * Detaches the buffer from its block,
+    * after the block could not be read.
+    * The caller must hold the buffer's monitor.
+    */
+   void unassign() {
+      blk = null;
+      loaded();
+   }
+
    /**
     * Initializes the buffer's page according to the specified formatter,
     * and appends the page to the specified file.
@@ -183,6 +506,7 @@ public class Buffer {
     */
    void assignToNew(String filename, PageFormatter fmtr) {
       flush();
+      invalid = false;
       fmtr.format(contents);
       blk = contents.append(filename);
       pins = 0;
@@ -1,10 +1,12 @@
 package simpledb.buffer;
 
+import simpledb.server.SimpleDB;
 import simpledb.file.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The publicly-accessible buffer manager.
- * A buffer manager wraps a basic buffer manager, and
+ * A buffer manager wraps a {@link ConcurrentBufferMgr}, and
  * provides the same methods. The difference is that
  * the methods {@link #pin(Block) pin} and 
  * {@link #pinNew(String, PageFormatter) pinNew}
@@ -16,11 +18,20 @@ import simpledb.file.*;
  * If a thread has been waiting for a buffer for an
  * excessive amount of time (currently, 10 seconds)
  * then a {@link BufferAbortException} is thrown.
+ * <p>
+ * The buffer manager also reads blocks ahead
+ * on behalf of sequential scans, using
+ * {@link SimpleDB#PREFETCH_THREADS} background threads,
+ * and a {@link BackgroundWriter} writes dirty buffers
+ * every {@link SimpleDB#BGWRITER_DELAY} milliseconds.
  * @author Edward Sciore
  */
 public class BufferMgr {
    private static final long MAX_TIME = 10000; // 10 seconds
-   private BasicBufferMgr bufferMgr;
+   private ConcurrentBufferMgr bufferMgr;
+   private AtomicInteger waiting = new AtomicInteger(0);
+   private ReadAhead readAhead;
+   private BackgroundWriter writer;
    
    /**
     * Creates a new buffer manager having the specified 
@@ -34,33 +45,80 @@ public class BufferMgr {
     * {@link simpledb.server.SimpleDB#initFileAndLogMgr(String)} or
     * is called first.
     * @param numbuffers the number of buffer slots to allocate
+    * @param policyname the name of the replacement policy
     */
-   public BufferMgr(int numbuffers) {
-      bufferMgr = new BasicBufferMgr(numbuffers);
+   public BufferMgr(int numbuffers, String policyname) {
+      bufferMgr = new ConcurrentBufferMgr(numbuffers, policyname);
+      if (SimpleDB.PREFETCH_THREADS > 0)
+         readAhead = new ReadAhead(bufferMgr, SimpleDB.PREFETCH_THREADS);
+      if (SimpleDB.BGWRITER_DELAY > 0) {
+         writer = new BackgroundWriter(bufferMgr, SimpleDB.BGWRITER_DELAY,
+                                       SimpleDB.BGWRITER_MAX_PAGES);
+         writer.start();
+      }
    }
    
+   /**
+    * Stops the background threads of the buffer manager.
+    * The manager can still pin and unpin buffers,
+    * but it no longer reads blocks ahead
+    * or writes dirty buffers in the background.
+    * The method is called when the system is initialized again,
+    * so that the threads of the previous manager do not linger.
+    */
+   public void shutdown() {
+      if (readAhead != null)
+         readAhead.shutdown();
+      if (writer != null)
+         writer.shutdown();
+   }
+
    /**
     * Pins a buffer to the specified block, potentially
     * waiting until a buffer becomes available.
     * If no buffer becomes available within a fixed 
     * time period, then a {@link BufferAbortException} is thrown.
+    * Only threads that have to wait synchronize on the
+    * buffer manager; a successful pin does not.
     * @param blk a reference to a disk block
     * @return the buffer pinned to that block
     */
-   public synchronized Buffer pin(Block blk) {
-      try {
-         long timestamp = System.currentTimeMillis();
-         Buffer buff = bufferMgr.pin(blk);
-         while (buff == null && !waitingTooLong(timestamp)) {
-            wait(MAX_TIME);
-            buff = bufferMgr.pin(blk);
+   public Buffer pin(Block blk) {
+      return pin(blk, null);
+   }
+   
+   /**
+    * Pins a buffer to the specified block on behalf of a scan
+    * that has a {@link BufferRing}.
+    * If the block is not resident, then the buffer
+    * is preferably taken from the ring.
+    * @param blk a reference to a disk block
+    * @param ring the scan's buffer ring, or null if it has none
+    * @return the buffer pinned to that block
+    */
+   public Buffer pin(Block blk, BufferRing ring) {
+      Buffer buff = bufferMgr.pin(blk, ring);
+      if (buff != null)
+         return buff;
+      synchronized (this) {
+         waiting.incrementAndGet();
+         try {
+            long timestamp = System.currentTimeMillis();
+            buff = bufferMgr.pin(blk, ring);
+            while (buff == null && !waitingTooLong(timestamp)) {
+               wait(MAX_TIME);
+               buff = bufferMgr.pin(blk, ring);
+            }
+            if (buff == null)
+               throw new BufferAbortException();
+            return buff;
          }
-         if (buff == null)
+         catch(InterruptedException e) {
             throw new BufferAbortException();
-         return buff;
-      }
-      catch(InterruptedException e) {
-         throw new BufferAbortException();
+         }
+         finally {
+            waiting.decrementAndGet();
+         }
       }
    }
    
@@ -73,20 +131,42 @@ public class BufferMgr {
     * @param fmtr the formatter used to initialize the page
     * @return the buffer pinned to that block
     */
-   public synchronized Buffer pinNew(String filename, PageFormatter fmtr) {
-      try {
-         long timestamp = System.currentTimeMillis();
-         Buffer buff = bufferMgr.pinNew(filename, fmtr);
-         while (buff == null && !waitingTooLong(timestamp)) {
-            wait(MAX_TIME);
-            buff = bufferMgr.pinNew(filename, fmtr);
+   public Buffer pinNew(String filename, PageFormatter fmtr) {
+      return pinNew(filename, fmtr, null);
+   }
+   
+   /**
+    * Pins a buffer to a new block in the specified file
+    * on behalf of a scan that has a {@link BufferRing}.
+    * The buffer is preferably taken from the ring.
+    * @param filename the name of the file
+    * @param fmtr the formatter used to initialize the page
+    * @param ring the scan's buffer ring, or null if it has none
+    * @return the buffer pinned to that block
+    */
+   public Buffer pinNew(String filename, PageFormatter fmtr, BufferRing ring) {
+      Buffer buff = bufferMgr.pinNew(filename, fmtr, ring);
+      if (buff != null)
+         return buff;
+      synchronized (this) {
+         waiting.incrementAndGet();
+         try {
+            long timestamp = System.currentTimeMillis();
+            buff = bufferMgr.pinNew(filename, fmtr, ring);
+            while (buff == null && !waitingTooLong(timestamp)) {
+               wait(MAX_TIME);
+               buff = bufferMgr.pinNew(filename, fmtr, ring);
+            }
+            if (buff == null)
+               throw new BufferAbortException();
+            return buff;
          }
-         if (buff == null)
+         catch(InterruptedException e) {
             throw new BufferAbortException();
-         return buff;
-      }
-      catch(InterruptedException e) {
-         throw new BufferAbortException();
+         }
+         finally {
+            waiting.decrementAndGet();
+         }
       }
    }
    
@@ -94,12 +174,16 @@ public class BufferMgr {
     * Unpins the specified buffer. 
     * If the buffer's pin count becomes 0,
     * then the threads on the wait list are notified.
+    * The buffer manager is synchronized on only if
+    * some thread is actually waiting.
     * @param buff the buffer to be unpinned
     */
-   public synchronized void unpin(Buffer buff) {
+   public void unpin(Buffer buff) {
       bufferMgr.unpin(buff);
-      if (!buff.isPinned())
-         notifyAll();
+      if (!buff.isPinned() && waiting.get() > 0)
+         synchronized (this) {
+            notifyAll();
+         }
    }
    
    /**
@@ -110,6 +194,103 @@ public class BufferMgr {
       bufferMgr.flushAll(txnum);
    }
    
+   /**
+    * Flushes all dirty buffers, regardless of which
+    * transaction modified them,
+    * and then forces the database files to disk.
+    * This method is called when taking a checkpoint.
+    */
+   public void flushAll() {
+      bufferMgr.flushAll();
+      SimpleDB.fileMgr().forceAll();
+   }
+   
+   /**
+    * Detaches the buffers that hold blocks of the specified file
+    * from the specified block number on, without writing them,
+    * so that the file can be truncated.
+    * The buffers that are still pinned are invalidated instead:
+    * their pages are never written back to the removed blocks.
+    * @param filename the name of the file
+    * @param numblocks the number of blocks that remain in the file
+    */
+   public void discard(String filename, int numblocks) {
+      bufferMgr.discard(filename, numblocks);
+   }
+   
+   /**
+    * Returns the number of pages written by the background writer.
+    * @return the number of background writes
+    */
+   public long cleanerWrites() {
+      return bufferMgr.cleanerWrites();
+   }
+   
+   /**
+    * Returns the number of dirty pages that were written
+    * synchronously, when their buffer was replaced.
+    * @return the number of writes on the replacement path
+    */
+   public long evictionWrites() {
+      return bufferMgr.evictionWrites();
+   }
+   
+   /**
+    * Asks for the specified block to be read in the background,
+    * into an unpinned buffer of the specified ring
+    * (or of the pool, if the ring is null).
+    * The request is ignored if read-ahead is disabled,
+    * if the block is already resident, or if the
+    * read-ahead threads are too busy.
+    * @param blk a reference to a disk block
+    * @param ring the scan's buffer ring, or null
+    */
+   public void prefetch(Block blk, BufferRing ring) {
+      if (readAhead != null)
+         readAhead.request(blk, ring);
+   }
+   
+   /**
+    * Reads n consecutive blocks, starting with the specified one,
+    * into unpinned buffers of the specified ring
+    * (or of the pool, if the ring is null).
+    * The blocks that are not resident are read with as few
+    * system calls as possible, before the method returns.
+    * Fewer blocks are read if there are not enough available buffers.
+    * @param first a reference to the first disk block
+    * @param n the number of blocks
+    * @param ring the scan's buffer ring, or null
+    */
+   public void load(Block first, int n, BufferRing ring) {
+      bufferMgr.load(first, n, ring);
+   }
+   
+   /**
+    * Returns the number of blocks that were read ahead.
+    * @return the number of prefetched blocks
+    */
+   public long prefetchLoads() {
+      return bufferMgr.prefetchLoads();
+   }
+   
+   /**
+    * Returns the number of prefetched blocks
+    * that were pinned before being replaced.
+    * @return the number of prefetch hits
+    */
+   public long prefetchHits() {
+      return bufferMgr.prefetchHits();
+   }
+   
+   /**
+    * Returns the number of prefetched blocks
+    * that were replaced without ever being pinned.
+    * @return the number of prefetch misses
+    */
+   public long prefetchMisses() {
+      return bufferMgr.prefetchMisses();
+   }
+   
    /**
     * Returns the number of available (ie unpinned) buffers.
     * @return the number of available buffers
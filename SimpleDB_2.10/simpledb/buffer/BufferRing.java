@@ -0,0 +1,112 @@
+package simpledb.buffer;
+
+import simpledb.server.SimpleDB;
+import simpledb.file.Block;
+
+/**
+ * A small ring of buffers that is private to a scan.
+ * A large sequential scan reads each block only once,
+ * so letting it use the whole buffer pool would evict
+ * the working set of every other transaction.
+ * A scan that has a ring instead recycles the buffers
+ * that it used for its earlier blocks.
+ * The ring is filled with buffers chosen by the
+ * replacement policy as usual; once it is full,
+ * the buffer that was used longest ago is reused,
+ * provided that it is unpinned and still holds the
+ * block that the scan read into it.
+ * Otherwise another buffer is chosen from the pool,
+ * and it takes that buffer's place in the ring.
+ * <p>
+ * A ring belongs to a single scan, but the buffer manager's
+ * read-ahead threads may use it at the same time as the scan.
+ */
+public class BufferRing {
+   private int[] frames;
+   private Block[] blocks;
+   private int count = 0, next = 0;
+
+   /**
+    * Creates a ring of the default size,
+    * which is {@link SimpleDB#RING_SIZE} buffers
+    * but no more than a quarter of the buffer pool.
+    */
+   public BufferRing() {
+      this(Math.max(1, Math.min(SimpleDB.RING_SIZE, SimpleDB.BUFFER_SIZE / 4)));
+   }
+
+   /**
+    * Creates a ring having the specified number of buffers.
+    * @param size the number of buffers in the ring
+    */
+   public BufferRing(int size) {
+      frames = new int[size];
+      blocks = new Block[size];
+   }
+
+   /**
+    * Returns the number of buffers in the ring.
+    * @return the size of the ring
+    */
+   public int size() {
+      return frames.length;
+   }
+
+   /**
+    * Returns true if a sequential scan of a file having the
+    * specified number of blocks should use a ring.
+    * As in PostgreSQL, this is the case when the file is
+    * larger than a quarter of the buffer pool.
+    * @param numblocks the number of blocks in the file
+    * @return true if the scan should use a ring
+    */
+   public static boolean isLargeScan(int numblocks) {
+      return numblocks > SimpleDB.BUFFER_SIZE / 4;
+   }
+
+   /**
+    * Returns the frame that should be reused for the
+    * next block, or -1 if the ring is not yet full.
+    * @return the frame number, or -1
+    */
+   synchronized int nextFrame() {
+      return (count < frames.length) ? -1 : frames[next];
+   }
+
+   /**
+    * Returns the block that the scan read into the
+    * frame returned by {@link #nextFrame()}.
+    * @return the block last assigned to that frame
+    */
+   synchronized Block nextBlock() {
+      return blocks[next];
+   }
+
+   /**
+    * Returns the frames of the ring, from the one used
+    * longest ago to the most recent one.
+    * @return the frame numbers
+    */
+   synchronized int[] frames() {
+      int[] result = new int[count];
+      int start = (count < frames.length) ? 0 : next;
+      for (int i=0; i<count; i++)
+         result[i] = frames[(start + i) % frames.length];
+      return result;
+   }
+
+   /**
+    * Records that the specified frame was assigned
+    * to the specified block on behalf of the scan,
+    * and moves to the next position of the ring.
+    * @param frame the frame number of the buffer
+    * @param blk the block read into the buffer
+    */
+   synchronized void assigned(int frame, Block blk) {
+      frames[next] = frame;
+      blocks[next] = blk;
+      next = (next + 1) % frames.length;
+      if (count < frames.length)
+         count++;
+   }
+}
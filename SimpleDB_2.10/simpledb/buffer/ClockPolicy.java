@@ -0,0 +1,59 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+
+/**
+ * The clock (second-chance) replacement policy.
+ * Each frame has a reference bit that is set whenever
+ * its block is pinned.
+ * The clock hand sweeps the pool, clearing reference bits,
+ * and chooses the first unpinned frame whose bit is already clear.
+ * Recording an access only sets a bit, so hits never
+ * synchronize on the policy.
+ */
+class ClockPolicy implements ReplacementPolicy {
+   private Buffer[] pool;
+   private boolean[] referenced;
+   private int hand = 0;
+
+   ClockPolicy(Buffer[] pool) {
+      this.pool = pool;
+      referenced = new boolean[pool.length];
+   }
+
+   public void accessed(int frame) {
+      referenced[frame] = true;
+   }
+
+   public void loaded(int frame, Block blk) {
+      referenced[frame] = true;
+   }
+
+   public void evicted(int frame, Block blk) {
+      referenced[frame] = false;
+   }
+
+   public void freed(int frame) {
+      // the reference bit was cleared when the block was evicted
+   }
+
+   /**
+    * Sweeps at most twice around the clock:
+    * the first pass may clear every reference bit,
+    * and the second pass then finds the victim.
+    * @see simpledb.buffer.ReplacementPolicy#chooseVictim()
+    */
+   public synchronized int chooseVictim() {
+      for (int i=0; i<2*pool.length; i++) {
+         int frame = hand;
+         hand = (hand + 1) % pool.length;
+         if (pool[frame].isPinned())
+            continue;
+         if (referenced[frame])
+            referenced[frame] = false;
+         else
+            return frame;
+      }
+      return -1;
+   }
+}
@@ -0,0 +1,630 @@
+package simpledb.buffer;
+
+import simpledb.server.SimpleDB;
+import simpledb.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Manages the pinning and unpinning of buffers to blocks,
+ * without a global lock.
+ * Resident buffers are found through a concurrent map
+ * from blocks to buffers, so pinning a resident block
+ * takes constant time.
+ * <p>
+ * A thread that pins a block first locks the stripe
+ * that the block hashes to, and then the monitor of the buffer.
+ * Holding the stripe guarantees that no other thread
+ * can assign a buffer to the same block at the same time.
+ * Holding the monitor guarantees that the buffer is not
+ * reassigned while it is being pinned.
+ * Locks are always acquired in that order,
+ * and before the reader/writer latch that guards
+ * the buffer's page (see {@link Buffer}).
+ * <p>
+ * The buffer to replace is chosen by a {@link ReplacementPolicy},
+ * which is selected by name when the manager is created.
+ * <p>
+ * A block can also be read ahead into an unpinned buffer,
+ * without pinning it.
+ * The manager counts the prefetched blocks that were
+ * later pinned (hits) and those that were replaced
+ * before anyone pinned them (misses).
+ * <p>
+ * A run of consecutive blocks can be loaded with a single read.
+ * Their buffers are assigned first, and are marked as loading
+ * until the read completes; a thread that pins one of those
+ * blocks waits for the read without holding its stripe.
+ * Likewise, dirty buffers that hold consecutive blocks
+ * are written with a single write when the pool is flushed,
+ * and when a ring is about to reuse a dirty buffer.
+ * A thread that writes such a run holds the monitors of all its
+ * buffers, which it acquires in the order of their frames.
+ */
+class ConcurrentBufferMgr {
+   private static final int NUM_STRIPES = 64; // must be a power of 2
+   private static final int MAX_RUN = 64;     // the most blocks per read or write
+   private static final int ALL_TX = -1;
+
+   // what replace does with the victim
+   private static final int PIN = 0, PREFETCH = 1, LOAD = 2;
+
+   private Buffer[] bufferpool;
+   private ConcurrentHashMap<Block,Buffer> bufferMap;
+   private Object[] stripes = new Object[NUM_STRIPES];
+   private AtomicInteger numAvailable;
+   private ReplacementPolicy policy;
+   private AtomicLong prefetchLoads  = new AtomicLong();
+   private AtomicLong prefetchHits   = new AtomicLong();
+   private AtomicLong prefetchMisses = new AtomicLong();
+   private AtomicLong cleanerWrites  = new AtomicLong();
+   private AtomicLong evictionWrites = new AtomicLong();
+   private int cleanerPos = 0; // used only by the background writer
+
+   /**
+    * Creates a buffer manager having the specified number
+    * of buffer slots.
+    * This constructor depends on both the {@link FileMgr} and
+    * {@link simpledb.log.LogMgr LogMgr} objects
+    * that it gets from the class
+    * {@link simpledb.server.SimpleDB}.
+    * Those objects are created during system initialization.
+    * Thus this constructor cannot be called until
+    * {@link simpledb.server.SimpleDB#initFileAndLogMgr(String)} or
+    * is called first.
+    * @param numbuffs the number of buffer slots to allocate
+    * @param policyname the name of the replacement policy
+    */
+   ConcurrentBufferMgr(int numbuffs, String policyname) {
+      bufferpool = new Buffer[numbuffs];
+      bufferMap = new ConcurrentHashMap<Block,Buffer>(2 * numbuffs);
+      numAvailable = new AtomicInteger(numbuffs);
+      for (int i=0; i<numbuffs; i++)
+         bufferpool[i] = new Buffer(i);
+      for (int i=0; i<NUM_STRIPES; i++)
+         stripes[i] = new Object();
+      policy = newPolicy(policyname, bufferpool);
+   }
+
+   /**
+    * Creates the replacement policy having the specified name.
+    * The names are "clock", "lru", "lru-k", and "2q".
+    * @param policyname the name of the policy
+    * @param pool the buffer pool managed by the policy
+    * @return the replacement policy
+    */
+   static ReplacementPolicy newPolicy(String policyname, Buffer[] pool) {
+      String name = policyname.toLowerCase();
+      if (name.equals("clock"))
+         return new ClockPolicy(pool);
+      else if (name.equals("lru"))
+         return new LRUPolicy(pool);
+      else if (name.equals("lru-k"))
+         return new LRUKPolicy(pool);
+      else if (name.equals("2q"))
+         return new TwoQueuePolicy(pool);
+      else
+         throw new RuntimeException("unknown replacement policy " + policyname);
+   }
+
+   /**
+    * Flushes the dirty buffers modified by the specified transaction.
+    * @param txnum the transaction's id number
+    */
+   void flushAll(int txnum) {
+      flushRuns(Arrays.asList(bufferpool), txnum, false);
+   }
+
+   /**
+    * Flushes every dirty buffer in the pool.
+    * This method is used when taking a checkpoint.
+    */
+   void flushAll() {
+      flushRuns(Arrays.asList(bufferpool), ALL_TX, false);
+   }
+
+   /**
+    * Detaches the buffers that hold blocks of the specified file
+    * from the specified block number on, without writing them,
+    * before those blocks are removed from the file.
+    * A buffer whose block is still being read is waited for.
+    * An unpinned buffer becomes empty, and is reused first.
+    * A pinned buffer stays with the threads that pinned it,
+    * but is invalidated: it is no longer found by pin,
+    * and its page is never written again.
+    * @param filename the name of the file
+    * @param numblocks the number of blocks that remain in the file
+    */
+   void discard(String filename, int numblocks) {
+      for (Buffer buff : bufferpool) {
+         while (true) {
+            // an unlocked snapshot, checked again under the monitor
+            Block blk = buff.block();
+            if (blk == null || !blk.fileName().equals(filename) || blk.number() < numblocks)
+               break;
+            synchronized (stripeFor(blk)) {
+               synchronized (buff) {
+                  if (!blk.equals(buff.block()))
+                     continue;
+                  if (!buff.isLoading()) {
+                     bufferMap.remove(blk, buff);
+                     if (buff.isPinned())
+                        buff.invalidate();
+                     else {
+                        policy.evicted(buff.frame(), blk);
+                        buff.discard();
+                        policy.freed(buff.frame());
+                     }
+                     break;
+                  }
+               }
+            }
+            // the loading thread may need the stripe, so wait without it
+            try {
+               buff.awaitLoaded();
+            }
+            catch(InterruptedException e) {
+               throw new BufferAbortException();
+            }
+         }
+      }
+   }
+
+   /**
+    * Writes dirty unpinned buffers to disk,
+    * continuing the sweep of the pool where the previous
+    * call stopped.
+    * At most one full sweep of the pool is made.
+    * This method is called by the {@link BackgroundWriter}.
+    * @param maxpages the maximum number of pages to write
+    */
+   void writeDirty(int maxpages) {
+      int written = 0;
+      for (int i=0; i<bufferpool.length && written<maxpages; i++) {
+         Buffer buff = bufferpool[cleanerPos];
+         cleanerPos = (cleanerPos + 1) % bufferpool.length;
+         if (buff.isPinned() || !buff.isModified())
+            continue;
+         synchronized (buff) {
+            if (!buff.isPinned() && buff.isModified()) {
+               buff.flush();
+               written++;
+            }
+         }
+      }
+      cleanerWrites.addAndGet(written);
+   }
+
+   /**
+    * Returns the number of pages written by the background writer.
+    * @return the number of background writes
+    */
+   long cleanerWrites() {
+      return cleanerWrites.get();
+   }
+
+   /**
+    * Returns the number of dirty pages that had to be written
+    * when their buffer was replaced.
+    * @return the number of writes on the replacement path
+    */
+   long evictionWrites() {
+      return evictionWrites.get();
+   }
+
+   /**
+    * Pins a buffer to the specified block.
+    * If there is already a buffer assigned to that block
+    * then that buffer is used;
+    * otherwise, an unpinned buffer is chosen,
+    * preferably from the specified ring.
+    * Returns a null value if there are no available buffers.
+    * @param blk a reference to a disk block
+    * @param ring the scan's buffer ring, or null if it has none
+    * @return the pinned buffer
+    */
+   Buffer pin(Block blk, BufferRing ring) {
+      while (true) {
+         Buffer loading = null;
+         synchronized (stripeFor(blk)) {
+            Buffer buff = bufferMap.get(blk);
+            if (buff != null)
+               synchronized (buff) {
+                  // a victim is remapped while its monitor is held,
+                  // so recheck that the buffer still holds the block
+                  if (blk.equals(buff.block())) {
+                     if (buff.isLoading())
+                        loading = buff;
+                     else {
+                        if (buff.isPrefetched()) {
+                           buff.setPrefetched(false);
+                           prefetchHits.incrementAndGet();
+                        }
+                        pinBuffer(buff);
+                        policy.accessed(buff.frame());
+                        return buff;
+                     }
+                  }
+               }
+            if (loading == null)
+               return replaceVictim(blk, null, null, ring, PIN);
+         }
+         // the loading thread may need the stripe, so wait without it
+         try {
+            loading.awaitLoaded();
+         }
+         catch(InterruptedException e) {
+            throw new BufferAbortException();
+         }
+      }
+   }
+
+   /**
+    * Allocates a new block in the specified file, and
+    * pins a buffer to it.
+    * The buffer is chosen preferably from the specified ring.
+    * Returns null (without allocating the block) if
+    * there are no available buffers.
+    * @param filename the name of the file
+    * @param fmtr a pageformatter object, used to format the new block
+    * @param ring the scan's buffer ring, or null if it has none
+    * @return the pinned buffer
+    */
+   Buffer pinNew(String filename, PageFormatter fmtr, BufferRing ring) {
+      return replaceVictim(null, filename, fmtr, ring, PIN);
+   }
+   
+   /**
+    * Reads the specified block into an unpinned buffer,
+    * without pinning it.
+    * Nothing happens if the block is already resident,
+    * if it lies beyond the end of its file,
+    * or if there are no available buffers.
+    * @param blk a reference to a disk block
+    * @param ring the scan's buffer ring, or null if it has none
+    * @return true if the block was read
+    */
+   boolean prefetch(Block blk, BufferRing ring) {
+      if (numAvailable.get() == 0
+            || blk.number() >= SimpleDB.fileMgr().size(blk.fileName()))
+         return false;
+      synchronized (stripeFor(blk)) {
+         if (bufferMap.containsKey(blk)
+               || replaceVictim(blk, null, null, ring, PREFETCH) == null)
+            return false;
+         prefetchLoads.incrementAndGet();
+         return true;
+      }
+   }
+
+   /**
+    * Reads n consecutive blocks, starting with the specified one,
+    * into unpinned buffers, without pinning them.
+    * Each run of blocks that are not resident is read with
+    * a single system call.
+    * The blocks beyond the end of the file are ignored,
+    * and the method stops early if there are no available buffers.
+    * @param first a reference to the first disk block
+    * @param n the number of blocks
+    * @param ring the scan's buffer ring, or null if it has none
+    * @return the number of blocks that were read
+    */
+   int load(Block first, int n, BufferRing ring) {
+      String filename = first.fileName();
+      int end = Math.min(first.number() + n, SimpleDB.fileMgr().size(filename));
+      int count = 0;
+      List<Buffer> run = new ArrayList<Buffer>();
+      for (int b=first.number(); b<end; b++) {
+         Block blk = new Block(filename, b);
+         Buffer buff = null;
+         if (numAvailable.get() > 0)
+            synchronized (stripeFor(blk)) {
+               if (!bufferMap.containsKey(blk))
+                  buff = replaceVictim(blk, null, null, ring, LOAD);
+            }
+         if (buff != null)
+            run.add(buff);
+         if (buff == null || run.size() == MAX_RUN || b == end - 1) {
+            count += loadRun(run);
+            run.clear();
+            if (buff == null && numAvailable.get() == 0)
+               break;
+         }
+      }
+      prefetchLoads.addAndGet(count);
+      return count;
+   }
+   
+   /**
+    * Returns the number of blocks that were read ahead.
+    * @return the number of prefetched blocks
+    */
+   long prefetchLoads() {
+      return prefetchLoads.get();
+   }
+   
+   /**
+    * Returns the number of prefetched blocks
+    * that were pinned while still resident.
+    * @return the number of prefetch hits
+    */
+   long prefetchHits() {
+      return prefetchHits.get();
+   }
+   
+   /**
+    * Returns the number of prefetched blocks
+    * that were replaced without having been pinned.
+    * @return the number of prefetch misses
+    */
+   long prefetchMisses() {
+      return prefetchMisses.get();
+   }
+
+   /**
+    * Unpins the specified buffer.
+    * @param buff the buffer to be unpinned
+    */
+   void unpin(Buffer buff) {
+      synchronized (buff) {
+         buff.unpin();
+         if (!buff.isPinned())
+            numAvailable.incrementAndGet();
+      }
+   }
+
+   /**
+    * Returns the number of available (i.e. unpinned) buffers.
+    * @return the number of available buffers
+    */
+   int available() {
+      return numAvailable.get();
+   }
+
+   /**
+    * Reads the blocks of the specified loading buffers
+    * with a single read, and then marks them as prefetched
+    * and unpins them.
+    * If the read fails, the buffers are detached from their blocks,
+    * and become empty.
+    * @param run buffers assigned to consecutive blocks
+    * @return the number of blocks read
+    */
+   private int loadRun(List<Buffer> run) {
+      if (run.isEmpty())
+         return 0;
+      boolean ok = false;
+      try {
+         Buffer.load(run);
+         ok = true;
+      }
+      finally {
+         for (Buffer buff : run) {
+            synchronized (buff) {
+               if (ok) {
+                  buff.setPrefetched(true);
+                  buff.loaded();
+               }
+               else {
+                  bufferMap.remove(buff.block(), buff);
+                  policy.evicted(buff.frame(), buff.block());
+                  buff.unassign();
+                  policy.freed(buff.frame());
+               }
+            }
+            unpin(buff);
+         }
+      }
+      return run.size();
+   }
+
+   /**
+    * Writes the dirty buffers among the specified ones
+    * (only those modified by the specified transaction,
+    * unless txnum is ALL_TX).
+    * Buffers that hold consecutive blocks of the same file
+    * are written together, with a single write.
+    * If unpinnedOnly is set, pinned buffers are skipped,
+    * since their pages may be modified during the write.
+    * @return the number of pages written
+    */
+   private int flushRuns(List<Buffer> buffs, int txnum, boolean unpinnedOnly) {
+      List<Buffer> dirty = new ArrayList<Buffer>();
+      final Map<Buffer,Block> blocks = new HashMap<Buffer,Block>();
+      for (Buffer buff : buffs) {
+         // an unlocked snapshot; flushRun checks each buffer again
+         Block blk = buff.block();
+         if (blk != null && (txnum == ALL_TX ? buff.isModified() : buff.isModifiedBy(txnum))) {
+            dirty.add(buff);
+            blocks.put(buff, blk);
+         }
+      }
+      Collections.sort(dirty, new Comparator<Buffer>() {
+         public int compare(Buffer b1, Buffer b2) {
+            Block blk1 = blocks.get(b1), blk2 = blocks.get(b2);
+            int cmp = blk1.fileName().compareTo(blk2.fileName());
+            return (cmp != 0) ? cmp : blk1.number() - blk2.number();
+         }
+      });
+      int written = 0;
+      List<Buffer> run = new ArrayList<Buffer>();
+      for (Buffer buff : dirty) {
+         if (!run.isEmpty()) {
+            Block last = blocks.get(run.get(run.size()-1));
+            Block blk = blocks.get(buff);
+            if (run.size() == MAX_RUN || !blk.fileName().equals(last.fileName())
+                  || blk.number() != last.number() + 1) {
+               written += flushRun(run, blocks, unpinnedOnly);
+               run.clear();
+            }
+         }
+         run.add(buff);
+      }
+      written += flushRun(run, blocks, unpinnedOnly);
+      return written;
+   }
+
+   /**
+    * Locks the monitors of the buffers of a run, in the order of their frames,
+    * and writes those that still hold their expected block and
+    * are still dirty, one write per sequence of consecutive blocks.
+    */
+   private int flushRun(List<Buffer> run, Map<Buffer,Block> blocks,
+                        boolean unpinnedOnly) {
+      if (run.isEmpty())
+         return 0;
+      Buffer[] monitors = run.toArray(new Buffer[run.size()]);
+      Arrays.sort(monitors, new Comparator<Buffer>() {
+         public int compare(Buffer b1, Buffer b2) {
+            return b1.frame() - b2.frame();
+         }
+      });
+      return flushLocked(run, blocks, unpinnedOnly, monitors, 0);
+   }
+
+   private int flushLocked(List<Buffer> run, Map<Buffer,Block> blocks,
+                            boolean unpinnedOnly, Buffer[] monitors, int i) {
+      if (i < monitors.length)
+         synchronized (monitors[i]) {
+            return flushLocked(run, blocks, unpinnedOnly, monitors, i+1);
+         }
+      int written = 0;
+      List<Buffer> seq = new ArrayList<Buffer>();
+      for (Buffer buff : run) {
+         if (buff.isModified() && blocks.get(buff).equals(buff.block())
+               && !(unpinnedOnly && buff.isPinned()))
+            seq.add(buff);
+         else if (!seq.isEmpty()) {
+            Buffer.flush(seq);
+            written += seq.size();
+            seq.clear();
+         }
+      }
+      if (!seq.isEmpty()) {
+         Buffer.flush(seq);
+         written += seq.size();
+      }
+      return written;
+   }
+
+   /**
+    * Pins the buffer.
+    * The caller must hold the buffer's monitor.
+    */
+   private void pinBuffer(Buffer buff) {
+      if (!buff.isPinned())
+         numAvailable.decrementAndGet();
+      buff.pin();
+   }
+
+   /**
+    * Chooses an unpinned buffer and assigns it to the specified
+    * block, or to a new block of the specified file if blk is null.
+    * The buffer that the ring wants to reuse is tried first;
+    * if it is dirty, the dirty buffers of the ring,
+    * which usually hold consecutive blocks of a temporary table
+    * or of a large table, are all written first.
+    * The mode says whether the buffer is pinned (PIN),
+    * marked as prefetched (PREFETCH), or pinned and marked
+    * as loading, without reading the block (LOAD).
+    * @return the buffer, or null if there are no available buffers
+    */
+   private Buffer replaceVictim(Block blk, String filename, PageFormatter fmtr,
+                                BufferRing ring, int mode) {
+      if (ring != null && ring.nextFrame() >= 0) {
+         Buffer victim = bufferpool[ring.nextFrame()];
+         if (victim.isModified() && !victim.isPinned()) {
+            List<Buffer> ringbuffs = new ArrayList<Buffer>();
+            for (int frame : ring.frames())
+               ringbuffs.add(bufferpool[frame]);
+            evictionWrites.addAndGet(flushRuns(ringbuffs, ALL_TX, true));
+         }
+         if (replace(victim, ring.nextBlock(), blk, filename, fmtr, mode)) {
+            ring.assigned(victim.frame(), victim.block());
+            return victim;
+         }
+      }
+      for (int i=0; i<bufferpool.length; i++) {
+         Buffer victim = chooseVictim();
+         if (victim == null)
+            return null;
+         if (replace(victim, null, blk, filename, fmtr, mode)) {
+            if (ring != null)
+               ring.assigned(victim.frame(), victim.block());
+            return victim;
+         }
+      }
+      return null;
+   }
+
+   /**
+    * Assigns the victim to the specified block
+    * (or to a new block of the specified file) and pins it
+    * according to the mode, provided that the victim is still unpinned
+    * and, if expected is not null, still holds that block.
+    * An unpinned replacement is marked as prefetched.
+    * @return true if the victim was replaced
+    */
+   private boolean replace(Buffer victim, Block expected, Block blk,
+                           String filename, PageFormatter fmtr, int mode) {
+      synchronized (victim) {
+         Block oldblk = victim.block();
+         if (victim.isPinned() || (expected != null && !expected.equals(oldblk)))
+            return false;
+         // a read-ahead never replaces a block that is still waiting to be used
+         if (mode != PIN && victim.isPrefetched())
+            return false;
+         // the old page is written while the victim is still mapped to it,
+         // so a concurrent pin of the old block waits for the monitor
+         // instead of reading the stale copy on disk
+         if (victim.isModified()) {
+            victim.flush();
+            evictionWrites.incrementAndGet();
+         }
+         if (oldblk != null)
+            policy.evicted(victim.frame(), oldblk);
+         if (victim.isPrefetched())
+            prefetchMisses.incrementAndGet();
+         victim.setPrefetched(mode == PREFETCH);
+         if (oldblk != null)
+            bufferMap.remove(oldblk, victim);
+         if (mode == LOAD)
+            victim.assignToLoad(blk);
+         else if (blk != null) {
+            try {
+               victim.assignToBlock(blk);
+            }
+            catch (RuntimeException e) {
+               // the block could not be read, or failed its checksum
+               victim.unassign();
+               policy.freed(victim.frame());
+               throw e;
+            }
+         }
+         else
+            victim.assignToNew(filename, fmtr);
+         if (mode != PREFETCH)
+            pinBuffer(victim);
+         bufferMap.put(victim.block(), victim);
+         policy.loaded(victim.frame(), victim.block());
+         return true;
+      }
+   }
+
+   /**
+    * Asks the replacement policy for a victim.
+    * The victim may have been pinned by another thread
+    * in the meantime, so the caller must check it again
+    * once it holds the victim's monitor.
+    */
+   private Buffer chooseVictim() {
+      int frame = policy.chooseVictim();
+      return (frame < 0) ? null : bufferpool[frame];
+   }
+
+   private Object stripeFor(Block blk) {
+      return stripes[blk.hashCode() & (NUM_STRIPES - 1)];
+   }
+}
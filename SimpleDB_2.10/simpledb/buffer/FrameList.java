@@ -0,0 +1,118 @@
+package simpledb.buffer;
+
+/**
+ * A doubly-linked list of frame numbers,
+ * used by the replacement policies to order the buffers.
+ * The links are stored in arrays indexed by frame number,
+ * so moving a frame within the list does not allocate.
+ * A frame can be in the list at most once.
+ * This class is not thread-safe.
+ */
+class FrameList {
+   private static final int NONE = -1;
+
+   private int[] prev, next;
+   private boolean[] member;
+   private int head = NONE, tail = NONE, size = 0;
+
+   /**
+    * Creates an empty list for the specified number of frames.
+    * @param numframes the number of frames in the buffer pool
+    */
+   FrameList(int numframes) {
+      prev = new int[numframes];
+      next = new int[numframes];
+      member = new boolean[numframes];
+   }
+
+   /**
+    * Adds the frame to the front of the list,
+    * removing it from its current position if necessary.
+    * @param frame the frame number
+    */
+   void addFirst(int frame) {
+      remove(frame);
+      prev[frame] = NONE;
+      next[frame] = head;
+      if (head != NONE)
+         prev[head] = frame;
+      head = frame;
+      if (tail == NONE)
+         tail = frame;
+      member[frame] = true;
+      size++;
+   }
+
+   /**
+    * Adds the frame to the back of the list,
+    * removing it from its current position if necessary.
+    * @param frame the frame number
+    */
+   void addLast(int frame) {
+      remove(frame);
+      next[frame] = NONE;
+      prev[frame] = tail;
+      if (tail != NONE)
+         next[tail] = frame;
+      tail = frame;
+      if (head == NONE)
+         head = frame;
+      member[frame] = true;
+      size++;
+   }
+
+   /**
+    * Removes the frame from the list, if it is there.
+    * @param frame the frame number
+    */
+   void remove(int frame) {
+      if (!member[frame])
+         return;
+      if (prev[frame] != NONE)
+         next[prev[frame]] = next[frame];
+      else
+         head = next[frame];
+      if (next[frame] != NONE)
+         prev[next[frame]] = prev[frame];
+      else
+         tail = prev[frame];
+      member[frame] = false;
+      size--;
+   }
+
+   boolean contains(int frame) {
+      return member[frame];
+   }
+
+   int size() {
+      return size;
+   }
+
+   /**
+    * Returns the first frame of the list, or -1 if it is empty.
+    */
+   int first() {
+      return head;
+   }
+
+   /**
+    * Returns the last frame of the list, or -1 if it is empty.
+    */
+   int last() {
+      return tail;
+   }
+
+   /**
+    * Returns the frame after the specified one, or -1.
+    */
+   int next(int frame) {
+      return next[frame];
+   }
+
+   /**
+    * Returns the frame before the specified one, or -1.
+    */
+   int previous(int frame) {
+      return prev[frame];
+   }
+}
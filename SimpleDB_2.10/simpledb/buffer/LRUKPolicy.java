@@ -0,0 +1,88 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+import java.util.*;
+
+/**
+ * The LRU-K replacement policy of O'Neil, O'Neil and Weikum.
+ * The policy remembers the times of the last K pins of each block,
+ * and chooses the unpinned frame whose K-th most recent pin
+ * is the oldest.
+ * A block pinned fewer than K times has an infinite
+ * backward distance, so blocks read once by a scan are
+ * replaced before blocks that are pinned repeatedly.
+ * Ties are broken by ordinary LRU.
+ * The pin history of recently replaced blocks is retained,
+ * so that a block that is read back in soon afterwards
+ * does not lose its history.
+ */
+class LRUKPolicy implements ReplacementPolicy {
+   /**
+    * The number of pins remembered for each block.
+    */
+   public static final int K = 2;
+
+   private Buffer[] pool;
+   private long[][] history; // history[frame][i] is the time of the i-th most recent pin
+   private Map<Block,long[]> retained;
+   private long clock = 0;
+
+   LRUKPolicy(Buffer[] pool) {
+      this.pool = pool;
+      history = new long[pool.length][K];
+      final int maxretained = pool.length;
+      retained = new LinkedHashMap<Block,long[]>() {
+         protected boolean removeEldestEntry(Map.Entry<Block,long[]> eldest) {
+            return size() > maxretained;
+         }
+      };
+   }
+
+   public synchronized void accessed(int frame) {
+      recordPin(history[frame]);
+   }
+
+   public synchronized void loaded(int frame, Block blk) {
+      long[] h = retained.remove(blk);
+      if (h != null)
+         System.arraycopy(h, 0, history[frame], 0, K);
+      else
+         Arrays.fill(history[frame], 0);
+      recordPin(history[frame]);
+   }
+
+   public synchronized void evicted(int frame, Block blk) {
+      retained.put(blk, history[frame].clone());
+   }
+
+   public synchronized void freed(int frame) {
+      Arrays.fill(history[frame], 0);
+   }
+
+   public synchronized int chooseVictim() {
+      int victim = -1;
+      for (int f=0; f<pool.length; f++) {
+         if (pool[f].isPinned())
+            continue;
+         if (victim < 0 || isOlder(history[f], history[victim]))
+            victim = f;
+      }
+      return victim;
+   }
+
+   private void recordPin(long[] h) {
+      System.arraycopy(h, 0, h, 1, K-1);
+      h[0] = ++clock;
+   }
+
+   /**
+    * Returns true if the first history has a larger
+    * backward K-distance than the second.
+    * A time of 0 means that the pin never happened.
+    */
+   private boolean isOlder(long[] h1, long[] h2) {
+      if (h1[K-1] != h2[K-1])
+         return h1[K-1] < h2[K-1];
+      return h1[0] < h2[0];
+   }
+}
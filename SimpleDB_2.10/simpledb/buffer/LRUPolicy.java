@@ -0,0 +1,46 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+
+/**
+ * The least-recently-used replacement policy.
+ * The frames are kept in a list ordered by the time
+ * of their most recent pin.
+ * The victim is the least recently pinned unpinned frame.
+ * Frames that have never held a block,
+ * or no longer hold one, are used first.
+ */
+class LRUPolicy implements ReplacementPolicy {
+   private Buffer[] pool;
+   private FrameList frames;
+
+   LRUPolicy(Buffer[] pool) {
+      this.pool = pool;
+      frames = new FrameList(pool.length);
+      for (int i=0; i<pool.length; i++)
+         frames.addFirst(i);
+   }
+
+   public synchronized void accessed(int frame) {
+      frames.addFirst(frame);
+   }
+
+   public synchronized void loaded(int frame, Block blk) {
+      frames.addFirst(frame);
+   }
+
+   public void evicted(int frame, Block blk) {
+      // the frame is moved to the front when its new block is loaded
+   }
+
+   public synchronized void freed(int frame) {
+      frames.addLast(frame);
+   }
+
+   public synchronized int chooseVictim() {
+      for (int f = frames.last(); f >= 0; f = frames.previous(f))
+         if (!pool[f].isPinned())
+            return f;
+      return -1;
+   }
+}
@@ -0,0 +1,96 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The read-ahead engine of the buffer manager.
+ * Scans that detect sequential access ask the engine
+ * to read the blocks that they will need next.
+ * The requests are queued and carried out by a small pool
+ * of daemon threads, so that the disk reads overlap
+ * with the scan's processing of the current block.
+ * <p>
+ * A request is only a hint:
+ * it is ignored if the same block is already queued,
+ * if the queue is full, if the read fails,
+ * or if the engine has been shut down.
+ */
+class ReadAhead {
+   private static final int QUEUE_SIZE = 256;
+
+   private ConcurrentBufferMgr bufferMgr;
+   private ThreadPoolExecutor readers;
+   private Set<Block> queued =
+         Collections.newSetFromMap(new ConcurrentHashMap<Block,Boolean>());
+
+   /**
+    * Creates a read-ahead engine for the specified buffer manager.
+    * @param bufferMgr the buffer manager that loads the blocks
+    * @param numthreads the number of reader threads
+    */
+   ReadAhead(ConcurrentBufferMgr bufferMgr, int numthreads) {
+      this.bufferMgr = bufferMgr;
+      ThreadFactory factory = new ThreadFactory() {
+         private int count = 0;
+         public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "simpledb-readahead-" + (count++));
+            t.setDaemon(true);
+            return t;
+         }
+      };
+      readers = new ThreadPoolExecutor(numthreads, numthreads,
+                                       0L, TimeUnit.MILLISECONDS,
+                                       new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+                                       factory);
+   }
+
+   /**
+    * Queues a request to read the specified block.
+    * @param blk a reference to the disk block
+    * @param ring the scan's buffer ring, or null
+    */
+   void request(final Block blk, final BufferRing ring) {
+      if (!queued.add(blk))
+         return;
+      try {
+         readers.execute(new Runnable() {
+            public void run() {
+               try {
+                  bufferMgr.prefetch(blk, ring);
+               }
+               catch(RuntimeException e) {
+                  // the scan will read the block itself
+               }
+               finally {
+                  queued.remove(blk);
+               }
+            }
+         });
+      }
+      catch(RejectedExecutionException e) {
+         queued.remove(blk);
+      }
+   }
+
+   /**
+    * Stops the reader threads.
+    * The queued requests are dropped,
+    * and the method waits for the reads in progress to finish.
+    * The threads are not interrupted, since an interrupt
+    * would close the channel of the file being read.
+    */
+   void shutdown() {
+      readers.shutdown();
+      readers.getQueue().clear();
+      queued.clear();
+      try {
+         while (!readers.awaitTermination(1, TimeUnit.SECONDS))
+            ;
+      }
+      catch(InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+}
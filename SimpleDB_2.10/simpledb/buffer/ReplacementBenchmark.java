@@ -0,0 +1,124 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+import java.util.*;
+
+/**
+ * A benchmark that compares the hit ratios of the
+ * replacement policies.
+ * The benchmark replays synthetic block reference strings
+ * against each policy, using a simulated buffer pool.
+ * No disk I/O is performed, so the database system
+ * does not need to be initialized.
+ * <p>
+ * The scan-heavy workload models queries that repeatedly
+ * scan tables much larger than the pool, interleaved with
+ * lookups of the catalog tables and of a small, hot table.
+ * The index-heavy workload models index selections:
+ * each lookup reads the root and an inner block of a B-tree,
+ * a leaf chosen with a skewed distribution,
+ * and the corresponding data block.
+ * <p>
+ * Usage: java simpledb.buffer.ReplacementBenchmark [poolsize] [references]
+ */
+public class ReplacementBenchmark {
+   private static final String[] POLICIES = {"clock", "lru", "lru-k", "2q"};
+
+   public static void main(String[] args) {
+      int poolsize = (args.length > 0) ? Integer.parseInt(args[0]) : 64;
+      int numrefs  = (args.length > 1) ? Integer.parseInt(args[1]) : 200000;
+      List<Block> scanheavy  = scanHeavyWorkload(poolsize, numrefs);
+      List<Block> indexheavy = indexHeavyWorkload(poolsize, numrefs);
+
+      System.out.println("pool size " + poolsize + ", " + numrefs + " references");
+      System.out.println("policy      scan-heavy   index-heavy");
+      for (String name : POLICIES) {
+         double scanratio  = hitRatio(name, poolsize, scanheavy);
+         double indexratio = hitRatio(name, poolsize, indexheavy);
+         System.out.println(String.format("%-10s %10.2f%% %12.2f%%",
+                            name, 100 * scanratio, 100 * indexratio));
+      }
+   }
+
+   /**
+    * Replays the reference string against a fresh pool
+    * managed by the specified policy, and returns the
+    * fraction of references that found their block resident.
+    */
+   static double hitRatio(String policyname, int poolsize, List<Block> refs) {
+      Buffer[] pool = new Buffer[poolsize];
+      for (int i=0; i<poolsize; i++)
+         pool[i] = new Buffer(i);
+      ReplacementPolicy policy = ConcurrentBufferMgr.newPolicy(policyname, pool);
+      Map<Block,Integer> resident = new HashMap<Block,Integer>();
+      Block[] contents = new Block[poolsize];
+      int hits = 0;
+      for (Block blk : refs) {
+         Integer frame = resident.get(blk);
+         if (frame != null) {
+            hits++;
+            policy.accessed(frame);
+            continue;
+         }
+         int victim = policy.chooseVictim();
+         if (contents[victim] != null) {
+            policy.evicted(victim, contents[victim]);
+            resident.remove(contents[victim]);
+         }
+         contents[victim] = blk;
+         resident.put(blk, victim);
+         policy.loaded(victim, blk);
+      }
+      return (double) hits / refs.size();
+   }
+
+   private static List<Block> scanHeavyWorkload(int poolsize, int numrefs) {
+      Random rand = new Random(4220);
+      List<Block> refs = new ArrayList<Block>(numrefs);
+      int bigsize = 4 * poolsize;
+      int hotsize = poolsize / 2;
+      int scanpos = 0;
+      while (refs.size() < numrefs) {
+         // every query reads the catalog
+         refs.add(new Block("tblcat.tbl", 0));
+         refs.add(new Block("fldcat.tbl", rand.nextInt(2)));
+         // most queries touch the hot table
+         for (int i=0; i<4; i++)
+            refs.add(new Block("hot.tbl", rand.nextInt(hotsize)));
+         // and a report keeps scanning the big table
+         for (int i=0; i<8; i++) {
+            refs.add(new Block("big.tbl", scanpos));
+            scanpos = (scanpos + 1) % bigsize;
+         }
+      }
+      return refs.subList(0, numrefs);
+   }
+
+   private static List<Block> indexHeavyWorkload(int poolsize, int numrefs) {
+      Random rand = new Random(4220);
+      List<Block> refs = new ArrayList<Block>(numrefs);
+      int numleaves = 2 * poolsize;
+      int numinner  = Math.max(1, numleaves / 16);
+      int datasize  = 8 * poolsize;
+      while (refs.size() < numrefs) {
+         int leaf = skewed(rand, numleaves);
+         refs.add(new Block("idx.tbl", 0));
+         refs.add(new Block("idx.tbl", 1 + leaf * numinner / numleaves));
+         refs.add(new Block("idx.tbl", 1 + numinner + leaf));
+         int datablk = (leaf * datasize / numleaves + rand.nextInt(4)) % datasize;
+         refs.add(new Block("data.tbl", datablk));
+         refs.add(new Block("tblcat.tbl", 0));
+      }
+      return refs.subList(0, numrefs);
+   }
+
+   /**
+    * Returns a value between 0 and n-1,
+    * skewed so that roughly 80% of the values fall
+    * in the lowest 20% of the range.
+    */
+   private static int skewed(Random rand, int n) {
+      double x = Math.pow(rand.nextDouble(), 1 / 0.138);
+      return Math.min(n - 1, (int) (x * n));
+   }
+}
@@ -0,0 +1,60 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+
+/**
+ * The strategy used by the buffer manager to decide
+ * which buffer to replace when a block has to be read in.
+ * Buffers are identified by their frame number,
+ * which is their position in the buffer pool.
+ * The buffer manager tells the policy about every
+ * pin of a resident block, every replacement,
+ * and every buffer that is left empty,
+ * and asks it for a victim when a block is not resident.
+ * <p>
+ * The methods of a policy can be called by several
+ * threads at once, so implementations must be thread-safe.
+ * The frame returned by {@link #chooseVictim()} is only a
+ * suggestion: the buffer manager checks again that
+ * the buffer is unpinned before replacing it.
+ */
+public interface ReplacementPolicy {
+   /**
+    * Notes that the block in the specified frame
+    * has been pinned again.
+    * @param frame the frame number of the buffer
+    */
+   public void accessed(int frame);
+
+   /**
+    * Notes that the specified block has been
+    * read into the specified frame.
+    * @param frame the frame number of the buffer
+    * @param blk the block now held by the frame
+    */
+   public void loaded(int frame, Block blk);
+
+   /**
+    * Notes that the specified block is about
+    * to be replaced in the specified frame.
+    * @param frame the frame number of the buffer
+    * @param blk the block that is being replaced
+    */
+   public void evicted(int frame, Block blk);
+
+   /**
+    * Notes that the specified frame no longer holds a block,
+    * after its block was evicted without being replaced
+    * (such as a block removed from its file).
+    * The frame should be the first to be reused.
+    * @param frame the frame number of the buffer
+    */
+   public void freed(int frame);
+
+   /**
+    * Returns the frame of an unpinned buffer to replace,
+    * or -1 if all buffers appear to be pinned.
+    * @return the frame number of the victim, or -1
+    */
+   public int chooseVictim();
+}
@@ -0,0 +1,98 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+import java.util.*;
+
+/**
+ * The 2Q replacement policy of Johnson and Shasha.
+ * A block read in for the first time goes into the FIFO queue A1in.
+ * Pinning it again while it is in A1in does not promote it,
+ * so the blocks of a one-time scan simply pass through A1in.
+ * When a block leaves A1in, its identity is remembered in the
+ * ghost queue A1out.
+ * A block that is read back in while it is remembered in A1out
+ * has proven to be hot, and goes into the LRU queue Am.
+ * <p>
+ * A1in holds about a quarter of the pool,
+ * and A1out remembers about half as many blocks as the pool holds.
+ */
+class TwoQueuePolicy implements ReplacementPolicy {
+   private Buffer[] pool;
+   private FrameList unused, a1in, am;
+   private LinkedHashSet<Block> a1out = new LinkedHashSet<Block>();
+   private int kin, kout;
+
+   TwoQueuePolicy(Buffer[] pool) {
+      this.pool = pool;
+      unused = new FrameList(pool.length);
+      a1in = new FrameList(pool.length);
+      am   = new FrameList(pool.length);
+      kin  = Math.max(1, pool.length / 4);
+      kout = Math.max(1, pool.length / 2);
+      for (int i=0; i<pool.length; i++)
+         unused.addLast(i);
+   }
+
+   public synchronized void accessed(int frame) {
+      if (am.contains(frame))
+         am.addFirst(frame);
+   }
+
+   public synchronized void loaded(int frame, Block blk) {
+      unused.remove(frame);
+      if (a1out.remove(blk))
+         am.addFirst(frame);
+      else
+         a1in.addFirst(frame);
+   }
+
+   public synchronized void evicted(int frame, Block blk) {
+      if (a1in.contains(frame)) {
+         a1out.add(blk);
+         if (a1out.size() > kout) {
+            Iterator<Block> iter = a1out.iterator();
+            iter.next();
+            iter.remove();
+         }
+      }
+      a1in.remove(frame);
+      am.remove(frame);
+   }
+
+   public synchronized void freed(int frame) {
+      unused.addLast(frame);
+   }
+
+   /**
+    * Chooses an unused frame if there is one.
+    * Otherwise the oldest unpinned frame of A1in is chosen
+    * if A1in is over its target size,
+    * and the least-recently used unpinned frame of Am if not.
+    * If the preferred queue has no unpinned frame,
+    * the other queue is tried.
+    * @see simpledb.buffer.ReplacementPolicy#chooseVictim()
+    */
+   public synchronized int chooseVictim() {
+      int victim = oldestUnpinned(unused);
+      if (victim >= 0)
+         return victim;
+      if (a1in.size() > kin) {
+         victim = oldestUnpinned(a1in);
+         if (victim < 0)
+            victim = oldestUnpinned(am);
+      }
+      else {
+         victim = oldestUnpinned(am);
+         if (victim < 0)
+            victim = oldestUnpinned(a1in);
+      }
+      return victim;
+   }
+
+   private int oldestUnpinned(FrameList list) {
+      for (int f = list.last(); f >= 0; f = list.previous(f))
+         if (!pool[f].isPinned())
+            return f;
+      return -1;
+   }
+}
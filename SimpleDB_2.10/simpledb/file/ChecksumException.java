@@ -0,0 +1,24 @@
+package simpledb.file;
+
+/**
+ * A runtime exception indicating that a block was read
+ * whose contents do not match its checksum
+ * (see {@link PageChecksum}).
+ */
+@SuppressWarnings("serial")
+public class ChecksumException extends RuntimeException {
+   private Block blk;
+   
+   public ChecksumException(Block blk) {
+      super("block " + blk + " does not match its checksum");
+      this.blk = blk;
+   }
+   
+   /**
+    * Returns the block that failed its checksum.
+    * @return the damaged block
+    */
+   public Block block() {
+      return blk;
+   }
+}
@@ -0,0 +1,237 @@
+package simpledb.file;
+
+import static simpledb.file.Page.BLOCK_SIZE;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An open file of the database.
+ * Blocks are read and written with positional channel operations,
+ * which do not depend on the channel's position,
+ * so several threads can access different blocks of the file at the same time.
+ * <p>
+ * The file keeps its length, in blocks, so that
+ * {@link #size()} does not need a system call.
+ * Only the operations that extend or truncate the file change the length,
+ * and they are serialized by the file's monitor,
+ * which acts as the extension lock of the file.
+ * <p>
+ * Runs of consecutive blocks can be read or written with a
+ * single scattering or gathering channel operation.
+ * Those operations use the channel's position,
+ * so they are serialized by a separate lock of the file.
+ * <p>
+ * Writes are not synchronous.
+ * The file remembers whether it has writes that were not
+ * {@link #force() forced} to disk, unless it is a temporary file,
+ * whose contents never need to survive a crash.
+ * A file can instead be asked to force every write.
+ */
+class DbFile {
+   private FileChannel fc;
+   private MappedFile mapping;
+   private volatile int numblocks;
+   private boolean durable, syncWrites;
+   private volatile boolean unsynced = false;
+   private Object positionLock = new Object();
+
+   /**
+    * Creates an object for the file having the specified channel.
+    * @param fc the channel of the file
+    * @param map true if the file is to be read through a memory mapping
+    * @param durable false if the file never needs to be forced
+    * @param syncWrites true if every write is to be forced to disk
+    * @throws IOException
+    */
+   DbFile(FileChannel fc, boolean map, boolean durable, boolean syncWrites)
+         throws IOException {
+      this.fc = fc;
+      this.mapping = map ? new MappedFile(fc) : null;
+      this.durable = durable;
+      this.syncWrites = durable && syncWrites;
+      this.numblocks = (int) (fc.size() / BLOCK_SIZE);
+   }
+
+   /**
+    * Reads the specified block into the bytebuffer.
+    * A block beyond the end of the file,
+    * such as a block that a truncation has just removed,
+    * reads as zeros.
+    * @param blknum the block number
+    * @param bb the bytebuffer
+    * @throws IOException
+    */
+   void read(int blknum, ByteBuffer bb) throws IOException {
+      bb.clear();
+      long pos = (long) blknum * BLOCK_SIZE;
+      while (bb.hasRemaining() && fc.read(bb, pos + bb.position()) >= 0)
+         ;
+      zeroFill(bb);
+   }
+
+   /**
+    * Writes the bytebuffer into the specified block.
+    * A block beyond the end of the file is written
+    * while holding the extension lock.
+    * @param blknum the block number
+    * @param bb the bytebuffer
+    * @throws IOException
+    */
+   void write(int blknum, ByteBuffer bb) throws IOException {
+      if (blknum < numblocks) {
+         bb.rewind();
+         fc.write(bb, (long) blknum * BLOCK_SIZE);
+         written();
+      }
+      else
+         extend(blknum, bb);
+   }
+
+   /**
+    * Reads consecutive blocks into the bytebuffers,
+    * with a single scattering read.
+    * The bytebuffers for blocks beyond the end of the file are filled with zeros.
+    * @param first the number of the first block
+    * @param bufs the bytebuffers, one per block
+    * @throws IOException
+    */
+   void readBlocks(int first, ByteBuffer[] bufs) throws IOException {
+      long remaining = 0;
+      for (ByteBuffer bb : bufs) {
+         bb.clear();
+         remaining += bb.remaining();
+      }
+      synchronized (positionLock) {
+         fc.position((long) first * BLOCK_SIZE);
+         while (remaining > 0) {
+            long n = fc.read(bufs);
+            if (n <= 0)
+               break;
+            remaining -= n;
+         }
+      }
+      for (ByteBuffer bb : bufs)
+         zeroFill(bb);
+   }
+
+   /**
+    * Writes the bytebuffers into consecutive blocks,
+    * with a single gathering write.
+    * Writes that extend the file hold the extension lock.
+    * @param first the number of the first block
+    * @param bufs the bytebuffers, one per block
+    * @throws IOException
+    */
+   void writeBlocks(int first, ByteBuffer[] bufs) throws IOException {
+      if (first + bufs.length <= numblocks)
+         gather(first, bufs);
+      else
+         synchronized (this) {
+            gather(first, bufs);
+            if (first + bufs.length > numblocks)
+               numblocks = first + bufs.length;
+         }
+      written();
+   }
+
+   /**
+    * Writes the bytebuffer into a new block at the end of the file.
+    * @param bb the bytebuffer
+    * @return the number of the new block
+    * @throws IOException
+    */
+   synchronized int append(ByteBuffer bb) throws IOException {
+      int blknum = numblocks;
+      extend(blknum, bb);
+      return blknum;
+   }
+
+   /**
+    * Removes the blocks from the specified one to the end of the file.
+    * The caller must make sure that those blocks are no longer in use.
+    * @param numblocks the number of blocks that remain in the file
+    * @throws IOException
+    */
+   synchronized void truncate(int numblocks) throws IOException {
+      if (numblocks >= this.numblocks)
+         return;
+      if (mapping != null)
+         mapping.truncate(numblocks);
+      fc.truncate((long) numblocks * BLOCK_SIZE);
+      this.numblocks = numblocks;
+      written();
+   }
+
+   /**
+    * Forces the writes made to the file since the last call to disk.
+    * The method does nothing if there are no such writes,
+    * or if the file is not durable.
+    * @throws IOException
+    */
+   void force() throws IOException {
+      if (unsynced) {
+         // clear the flag first, so that a concurrent write sets it again
+         unsynced = false;
+         fc.force(false);
+      }
+   }
+
+   /**
+    * Returns the number of blocks in the file.
+    * @return the number of blocks
+    */
+   int size() {
+      return numblocks;
+   }
+
+   /**
+    * Returns the memory mapping of the file,
+    * or null if the file is not read through a mapping.
+    * @return the mapping of the file
+    */
+   MappedFile mapping() {
+      return mapping;
+   }
+
+   /**
+    * Returns the channel of the file.
+    * @return the file channel
+    */
+   FileChannel channel() {
+      return fc;
+   }
+
+   private synchronized void extend(int blknum, ByteBuffer bb) throws IOException {
+      bb.rewind();
+      fc.write(bb, (long) blknum * BLOCK_SIZE);
+      if (blknum >= numblocks)
+         numblocks = blknum + 1;
+      written();
+   }
+
+   private void gather(int first, ByteBuffer[] bufs) throws IOException {
+      long remaining = 0;
+      for (ByteBuffer bb : bufs) {
+         bb.rewind();
+         remaining += bb.remaining();
+      }
+      synchronized (positionLock) {
+         fc.position((long) first * BLOCK_SIZE);
+         while (remaining > 0)
+            remaining -= fc.write(bufs);
+      }
+   }
+
+   private void written() throws IOException {
+      if (syncWrites)
+         fc.force(false);
+      else if (durable)
+         unsynced = true;
+   }
+
+   private static void zeroFill(ByteBuffer bb) {
+      while (bb.hasRemaining())
+         bb.put((byte) 0);
+   }
+}
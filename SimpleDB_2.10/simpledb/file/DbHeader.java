@@ -0,0 +1,181 @@
+package simpledb.file;
+
+import java.io.*;
+import java.nio.charset.Charset;
+
+/**
+ * The header of a database, which records the options
+ * that were chosen when the database was created
+ * and cannot change afterwards, such as the page size.
+ * The header is stored in the file {@value #HEADER_FILE}
+ * of the database directory, as a sequence of integers:
+ * a magic number, the format version, the page size,
+ * and a set of flags, followed by the name of the charset
+ * of the strings stored in the pages.
+ * The flags say whether the data files are read
+ * through memory mappings (see {@link MappedFile}),
+ * whether the blocks end with a checksum
+ * (see {@link PageChecksum}), and whether that checksum is a CRC-32C
+ * rather than a CRC-32.
+ * Version 1 headers have no flags, and headers older
+ * than version 3 have no charset;
+ * those databases use the platform's default charset.
+ * Only headers of version 4 or later can have the checksum flag,
+ * and only headers of version 5 or later the CRC-32C flag.
+ * <p>
+ * Databases created before the header was introduced
+ * have no header file; they use 400-byte pages
+ * and the platform's default charset.
+ */
+class DbHeader {
+   /**
+    * The name of the header file.
+    */
+   static final String HEADER_FILE = "simpledb.hdr";
+
+   /**
+    * The page size of databases that have no header.
+    */
+   static final int LEGACY_PAGE_SIZE = 400;
+
+   private static final int MAGIC   = 0x53444248; // "SDBH"
+   private static final int VERSION = 5;
+   private static final int MMAP_FLAG = 1;
+   private static final int CHECKSUM_FLAG = 2;
+   private static final int CRC32C_FLAG = 4;
+
+   private int pagesize;
+   private int flags;
+   private Charset charset;
+
+   private DbHeader(int pagesize, int flags, Charset charset) {
+      this.pagesize = pagesize;
+      this.flags = flags;
+      this.charset = charset;
+   }
+
+   /**
+    * Creates the header of a new database.
+    * The page size must be a power of two
+    * between 512 bytes and 64K, such as 4K, 8K, or 16K.
+    * @param pagesize the page size, in bytes
+    * @param mmap true if the data files are to be memory-mapped
+    * @param checksums true if the blocks are to end with a checksum
+    * @param charsetname the name of the charset of the strings
+    * @return the new header
+    */
+   static DbHeader create(int pagesize, boolean mmap, boolean checksums,
+                          String charsetname) {
+      if (pagesize < 512 || pagesize > 65536 || Integer.bitCount(pagesize) != 1)
+         throw new RuntimeException("invalid page size " + pagesize);
+      if (!Charset.isSupported(charsetname))
+         throw new RuntimeException("unsupported charset " + charsetname);
+      int flags = (mmap ? MMAP_FLAG : 0) | (checksums ? CHECKSUM_FLAG | CRC32C_FLAG : 0);
+      return new DbHeader(pagesize, flags, Charset.forName(charsetname));
+   }
+
+   /**
+    * Reads the header of the database in the specified directory.
+    * If the directory has no header file, the header
+    * of a legacy database is returned.
+    * @param dbDirectory the database directory
+    * @return the database header
+    */
+   static DbHeader read(File dbDirectory) {
+      File f = new File(dbDirectory, HEADER_FILE);
+      if (!f.exists())
+         return new DbHeader(LEGACY_PAGE_SIZE, 0, Charset.defaultCharset());
+      try {
+         DataInputStream in = new DataInputStream(new FileInputStream(f));
+         try {
+            if (in.readInt() != MAGIC)
+               throw new RuntimeException("bad database header " + f);
+            int version = in.readInt();
+            if (version > VERSION)
+               throw new RuntimeException("unsupported database version " + version);
+            int pagesize = in.readInt();
+            int flags = (version >= 2) ? in.readInt() : 0;
+            Charset charset = (version >= 3) ? Charset.forName(in.readUTF())
+                                             : Charset.defaultCharset();
+            return new DbHeader(pagesize, flags, charset);
+         }
+         finally {
+            in.close();
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot read " + f);
+      }
+   }
+
+   /**
+    * Writes the header into the specified database directory.
+    * @param dbDirectory the database directory
+    */
+   void write(File dbDirectory) {
+      File f = new File(dbDirectory, HEADER_FILE);
+      try {
+         FileOutputStream fos = new FileOutputStream(f);
+         DataOutputStream out = new DataOutputStream(fos);
+         try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(pagesize);
+            out.writeInt(flags);
+            out.writeUTF(charset.name());
+            out.flush();
+            fos.getFD().sync();
+         }
+         finally {
+            out.close();
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot write " + f);
+      }
+   }
+
+   /**
+    * Returns the page size of the database.
+    * @return the page size, in bytes
+    */
+   int pageSize() {
+      return pagesize;
+   }
+
+   /**
+    * Returns the charset of the strings stored in the pages.
+    * @return the charset
+    */
+   Charset charset() {
+      return charset;
+   }
+
+   /**
+    * Returns true if the data files of the database
+    * are read through memory mappings.
+    * @return true if the database uses memory-mapped reads
+    */
+   boolean isMapped() {
+      return (flags & MMAP_FLAG) != 0;
+   }
+
+   /**
+    * Returns true if each block of the database
+    * ends with the checksum of its contents.
+    * @return true if the database has page checksums
+    */
+   boolean hasChecksums() {
+      return (flags & CHECKSUM_FLAG) != 0;
+   }
+
+   /**
+    * Returns true if the checksums of the blocks are CRC-32C,
+    * as in the databases created since version 5,
+    * rather than CRC-32.
+    * @return true if the database uses CRC-32C checksums
+    */
+   boolean usesCrc32c() {
+      return (flags & CRC32C_FLAG) != 0;
+   }
+}
@@ -1,10 +1,10 @@
 package simpledb.file;
 
-import static simpledb.file.Page.BLOCK_SIZE;
+import simpledb.server.SimpleDB;
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The SimpleDB file manager.
@@ -15,16 +15,40 @@ import java.util.*;
  * and appending the contents of a byte buffer to the end of a file.
  * These methods are called exclusively by the class {@link simpledb.file.Page Page},
  * and are thus package-private.
+ * <p>
+ * Files are not opened in synchronous mode.
+ * Instead, the log manager {@link #force(String) forces} the log
+ * when it flushes it, and checkpoints {@link #forceAll() force} every file.
+ * Whether the data files are also forced after each write or at
+ * each commit is decided by {@link SimpleDB#DATA_SYNC};
+ * temporary tables are never forced.
+ * <p>
+ * Runs of consecutive blocks can also be read and written
+ * with a single scattering or gathering system call.
+ * <p>
+ * The file manager has no global lock:
+ * each open file is a {@link DbFile}, whose blocks can be read
+ * and written by several threads at once.
  * The class also contains two public methods:
  * Method {@link #isNew() isNew} is called during system initialization by {@link simpledb.server.SimpleDB#init}.
  * Method {@link #size(String) size} is called by the log manager and transaction manager to
  * determine the end of the file.
+ * <p>
+ * A database can be created in memory-mapped mode
+ * (see {@link SimpleDB#MMAP_IO}), which is recorded in its header.
+ * In that mode, pages read the blocks of the data files directly
+ * from a {@link MappedFile mapping} of the file, without copying them.
+ * The log and the temporary tables are always read through their channel,
+ * and all writes go through the channel, in the order decided by the
+ * log and buffer managers.
  * @author Edward Sciore
  */
 public class FileMgr {
    private File dbDirectory;
    private boolean isNew;
-   private Map<String,FileChannel> openFiles = new HashMap<String,FileChannel>();
+   private boolean mapped;
+   private String syncPolicy;
+   private Map<String,DbFile> openFiles = new ConcurrentHashMap<String,DbFile>();
 
    /**
     * Creates a file manager for the specified database.
@@ -33,6 +57,11 @@ public class FileMgr {
     * If the folder does not exist, then a folder containing
     * an empty database is created automatically.
     * Files for all temporary tables (i.e. tables beginning with "temp") are deleted.
+    * The page size, I/O mode, checksums and charset of a new database
+    * are given by {@link SimpleDB#PAGE_SIZE}, {@link SimpleDB#MMAP_IO},
+    * {@link SimpleDB#PAGE_CHECKSUMS} and {@link SimpleDB#PAGE_CHARSET},
+    * and are recorded in the database header;
+    * those of an existing database are read from its header.
     * @param dbname the name of the directory that holds the database
     */
    public FileMgr(String dbname) {
@@ -44,6 +73,24 @@ public class FileMgr {
       if (isNew && !dbDirectory.mkdir())
          throw new RuntimeException("cannot create " + dbname);
 
+      DbHeader header;
+      if (isNew) {
+         header = DbHeader.create(SimpleDB.PAGE_SIZE, SimpleDB.MMAP_IO,
+                                  SimpleDB.PAGE_CHECKSUMS, SimpleDB.PAGE_CHARSET);
+         header.write(dbDirectory);
+      }
+      else
+         header = DbHeader.read(dbDirectory);
+      Page.BLOCK_SIZE = header.pageSize();
+      PageChecksum.setEnabled(header.hasChecksums(), header.usesCrc32c());
+      Page.USABLE_SIZE = Page.BLOCK_SIZE - PageChecksum.trailerSize();
+      StringCodec.setCharset(header.charset());
+      mapped = header.isMapped();
+      syncPolicy = SimpleDB.DATA_SYNC;
+      if (!syncPolicy.equals("write") && !syncPolicy.equals("commit")
+            && !syncPolicy.equals("checkpoint"))
+         throw new RuntimeException("unknown sync policy " + syncPolicy);
+
       // remove any leftover temporary tables
       for (String filename : dbDirectory.list())
          if (filename.startsWith("temp"))
@@ -55,27 +102,77 @@ public class FileMgr {
     * @param blk a reference to a disk block
     * @param bb  the bytebuffer
     */
-   synchronized void read(Block blk, ByteBuffer bb) {
+   void read(Block blk, ByteBuffer bb) {
       try {
-         bb.clear();
-         FileChannel fc = getFile(blk.fileName());
-         fc.read(bb, blk.number() * BLOCK_SIZE);
+         getFile(blk.fileName()).read(blk.number(), bb);
       }
       catch (IOException e) {
          throw new RuntimeException("cannot read block " + blk);
       }
    }
 
+   /**
+    * Reads the contents of n consecutive disk blocks
+    * into n bytebuffers, with a single system call.
+    * @param first a reference to the first disk block
+    * @param n the number of blocks
+    * @param bufs the bytebuffers, one per block
+    */
+   void readBlocks(Block first, int n, ByteBuffer[] bufs) {
+      try {
+         getFile(first.fileName()).readBlocks(first.number(), bufs(n, bufs));
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot read " + n + " blocks from " + first);
+      }
+   }
+
+   /**
+    * Writes the contents of n bytebuffers into
+    * n consecutive disk blocks, with a single system call.
+    * @param first a reference to the first disk block
+    * @param n the number of blocks
+    * @param bufs the bytebuffers, one per block
+    */
+   void writeBlocks(Block first, int n, ByteBuffer[] bufs) {
+      try {
+         getFile(first.fileName()).writeBlocks(first.number(), bufs(n, bufs));
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot write " + n + " blocks to " + first);
+      }
+   }
+
+   /**
+    * Returns a read-only view of the specified disk block,
+    * taken from the mapping of its file.
+    * The method returns null if the database is not memory-mapped,
+    * if the block belongs to the log or to a temporary table,
+    * or if the block is not in the file;
+    * the block must then be {@link #read(Block, ByteBuffer) read}.
+    * @param blk a reference to a disk block
+    * @return a view of the block, or null
+    */
+   ByteBuffer mappedBlock(Block blk) {
+      if (!mapped)
+         return null;
+      try {
+         MappedFile mf = getFile(blk.fileName()).mapping();
+         return (mf == null) ? null : mf.block(blk.number());
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot map block " + blk);
+      }
+   }
+
    /**
     * Writes the contents of a bytebuffer into a disk block.
     * @param blk a reference to a disk block
     * @param bb  the bytebuffer
     */
-   synchronized void write(Block blk, ByteBuffer bb) {
+   void write(Block blk, ByteBuffer bb) {
       try {
-         bb.rewind();
-         FileChannel fc = getFile(blk.fileName());
-         fc.write(bb, blk.number() * BLOCK_SIZE);
+         getFile(blk.fileName()).write(blk.number(), bb);
       }
       catch (IOException e) {
          throw new RuntimeException("cannot write block" + blk);
@@ -85,32 +182,124 @@ public class FileMgr {
    /**
     * Appends the contents of a bytebuffer to the end
     * of the specified file.
+    * Only the appends to the same file are serialized.
     * @param filename the name of the file
     * @param bb  the bytebuffer
     * @return a reference to the newly-created block.
     */
-   synchronized Block append(String filename, ByteBuffer bb) {
-      int newblknum = size(filename);
-      Block blk = new Block(filename, newblknum);
-      write(blk, bb);
-      return blk;
+   Block append(String filename, ByteBuffer bb) {
+      try {
+         int newblknum = getFile(filename).append(bb);
+         return new Block(filename, newblknum);
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot append to " + filename);
+      }
+   }
+
+   /**
+    * Truncates the specified file to the specified number of blocks.
+    * The buffers of the removed blocks must have been discarded
+    * (see {@link simpledb.buffer.BufferMgr#discard(String, int)}).
+    * @param filename the name of the file
+    * @param numblocks the number of blocks that remain in the file
+    */
+   public void truncate(String filename, int numblocks) {
+      try {
+         getFile(filename).truncate(numblocks);
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot truncate " + filename);
+      }
    }
 
    /**
     * Returns the number of blocks in the specified file.
+    * The length of an open file is cached,
+    * so the method does not access the disk.
     * @param filename the name of the file
     * @return the number of blocks in the file
     */
-   public synchronized int size(String filename) {
+   public int size(String filename) {
       try {
-         FileChannel fc = getFile(filename);
-         return (int)(fc.size() / BLOCK_SIZE);
+         return getFile(filename).size();
       }
       catch (IOException e) {
          throw new RuntimeException("cannot access " + filename);
       }
    }
 
+   /**
+    * Forces the writes made to the specified file to disk.
+    * The method does nothing for a temporary table.
+    * @param filename the name of the file
+    */
+   public void force(String filename) {
+      try {
+         getFile(filename).force();
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot force " + filename);
+      }
+   }
+
+   /**
+    * Forces the writes made to every open file to disk,
+    * except those of the temporary tables.
+    * This method is called when taking a checkpoint.
+    */
+   public void forceAll() {
+      for (Map.Entry<String,DbFile> e : openFiles.entrySet()) {
+         try {
+            e.getValue().force();
+         }
+         catch (IOException ex) {
+            throw new RuntimeException("cannot force " + e.getKey());
+         }
+      }
+   }
+
+   /**
+    * Returns true if the data files must be forced
+    * before a transaction commits,
+    * according to {@link SimpleDB#DATA_SYNC}.
+    * @return true if commits force the data files
+    */
+   public boolean syncsOnCommit() {
+      return syncPolicy.equals("commit");
+   }
+
+   /**
+    * Returns true if the data files of the database
+    * are read through memory mappings.
+    * @return true if the database is memory-mapped
+    */
+   public boolean isMapped() {
+      return mapped;
+   }
+
+   /**
+    * Returns the number of blocks that were read
+    * with a checksum that did not match their contents,
+    * since the system was started.
+    * A database without checksums has no failures.
+    * @return the number of checksum failures
+    */
+   public long checksumFailures() {
+      return PageChecksum.failures();
+   }
+
+   /**
+    * Tells the file manager whether the database is being recovered.
+    * Meanwhile, a block that fails its checksum is read anyway
+    * instead of causing a {@link ChecksumException},
+    * since recovery repairs the pages that a crash left torn.
+    * @param on true while recovery is running
+    */
+   public void setRecovering(boolean on) {
+      PageChecksum.setRecovering(on);
+   }
+
    /**
     * Returns a boolean indicating whether the file manager
     * had to create a new database directory.
@@ -120,23 +309,36 @@ public class FileMgr {
       return isNew;
    }
 
+   private ByteBuffer[] bufs(int n, ByteBuffer[] bufs) {
+      return (n == bufs.length) ? bufs : Arrays.copyOf(bufs, n);
+   }
+
    /**
-    * Returns the file channel for the specified filename.
-    * The file channel is stored in a map keyed on the filename.
-    * If the file is not open, then it is opened and the file channel
-    * is added to the map.
+    * Returns the open file having the specified filename.
+    * The open files are stored in a map keyed on the filename.
+    * If the file is not open, then it is opened and
+    * added to the map; opening is the only operation
+    * that locks the map.
     * @param filename the specified filename
-    * @return the file channel associated with the open file.
+    * @return the open file
     * @throws IOException
     */
-   private FileChannel getFile(String filename) throws IOException {
-      FileChannel fc = openFiles.get(filename);
-      if (fc == null) {
-         File dbTable = new File(dbDirectory, filename);
-         RandomAccessFile f = new RandomAccessFile(dbTable, "rws");
-         fc = f.getChannel();
-         openFiles.put(filename, fc);
+   private DbFile getFile(String filename) throws IOException {
+      DbFile df = openFiles.get(filename);
+      if (df == null) {
+         synchronized (openFiles) {
+            df = openFiles.get(filename);
+            if (df == null) {
+               File dbTable = new File(dbDirectory, filename);
+               RandomAccessFile f = new RandomAccessFile(dbTable, "rw");
+               boolean temp = filename.startsWith("temp");
+               boolean data = !temp && !filename.equals(SimpleDB.LOG_FILE);
+               df = new DbFile(f.getChannel(), mapped && data, !temp,
+                               data && syncPolicy.equals("write"));
+               openFiles.put(filename, df);
+            }
+         }
       }
-      return fc;
+      return df;
    }
 }
@@ -0,0 +1,90 @@
+package simpledb.file;
+
+import simpledb.server.SimpleDB;
+import java.util.*;
+
+/**
+ * A benchmark that measures how block I/O scales with the number of threads.
+ * Each thread owns a table of its own, and reads (or rewrites)
+ * random blocks of it through a private {@link Page}.
+ * Since the threads never touch the same file,
+ * the throughput should grow with the number of threads
+ * until the disk or the CPUs are saturated.
+ * <p>
+ * The benchmark creates its own database in the user's home directory,
+ * and uses only the file manager.
+ * <p>
+ * Usage: java simpledb.file.IOBenchmark [dbname] [blocks per file] [ops per thread]
+ */
+public class IOBenchmark {
+   private static final int[] THREADS = {1, 2, 4, 8};
+
+   public static void main(String[] args) throws Exception {
+      String dbname = (args.length > 0) ? args[0] : "iobenchdb";
+      int numblocks = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+      int numops    = (args.length > 2) ? Integer.parseInt(args[2]) : 20000;
+      SimpleDB.initFileMgr(dbname);
+
+      int maxthreads = THREADS[THREADS.length - 1];
+      for (int i=0; i<maxthreads; i++)
+         createFile(fileName(i), numblocks);
+
+      System.out.println(numblocks + " blocks of " + Page.BLOCK_SIZE
+                         + " bytes per file, " + numops + " operations per thread");
+      System.out.println("threads     reads/s     writes/s");
+      for (int n : THREADS) {
+         double reads  = run(n, numblocks, numops, false);
+         double writes = run(n, numblocks, numops / 10, true);
+         System.out.println(String.format("%7d %11.0f %12.0f", n, reads, writes));
+      }
+   }
+
+   private static String fileName(int i) {
+      return "iobench" + i + ".tbl";
+   }
+
+   private static void createFile(String filename, int numblocks) {
+      Page p = new Page();
+      for (int b=SimpleDB.fileMgr().size(filename); b<numblocks; b++) {
+         p.setInt(0, b);
+         p.append(filename);
+      }
+   }
+
+   /**
+    * Runs the specified number of threads, each performing
+    * the specified number of random block reads or writes
+    * on its own file, and returns the total number
+    * of operations per second.
+    */
+   private static double run(int numthreads, final int numblocks, final int numops,
+                             final boolean write) throws InterruptedException {
+      Thread[] threads = new Thread[numthreads];
+      for (int i=0; i<numthreads; i++) {
+         final String filename = fileName(i);
+         final long seed = 4220 + i;
+         threads[i] = new Thread() {
+            public void run() {
+               Random rand = new Random(seed);
+               Page p = new Page();
+               for (int k=0; k<numops; k++) {
+                  Block blk = new Block(filename, rand.nextInt(numblocks));
+                  if (write) {
+                     p.setInt(0, blk.number());
+                     p.write(blk);
+                  }
+                  else
+                     p.read(blk);
+               }
+            }
+         };
+      }
+      long start = System.nanoTime();
+      for (Thread t : threads)
+         t.start();
+      for (Thread t : threads)
+         t.join();
+      double secs = (System.nanoTime() - start) / 1e9;
+      return numthreads * numops / secs;
+   }
+}
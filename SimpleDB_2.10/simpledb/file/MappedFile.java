@@ -0,0 +1,104 @@
+package simpledb.file;
+
+import static simpledb.file.Page.BLOCK_SIZE;
+import java.io.IOException;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * The read-only memory mappings of a data file.
+ * The file is mapped in segments of {@link #SEGMENT_BYTES} bytes
+ * (rounded down to a whole number of blocks), which are created
+ * the first time one of their blocks is read.
+ * A segment at the end of the file covers only the blocks
+ * that existed when it was mapped; when the file grows,
+ * the segment is mapped again the next time
+ * one of the new blocks is read.
+ * <p>
+ * The mappings are only used for reading.
+ * Blocks are still written through the file channel,
+ * which shares the operating system's page cache with the mappings,
+ * so a mapped block always shows the last write to it.
+ */
+class MappedFile {
+   /**
+    * The largest size of a segment, in bytes.
+    */
+   static final int SEGMENT_BYTES = 16 * 1024 * 1024;
+
+   private FileChannel fc;
+   private int blocksPerSegment;
+   private List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+
+   /**
+    * Creates the mappings of the file having the specified channel.
+    * No segment is mapped yet.
+    * @param fc the channel of the file
+    */
+   MappedFile(FileChannel fc) {
+      this.fc = fc;
+      blocksPerSegment = Math.max(1, SEGMENT_BYTES / BLOCK_SIZE);
+   }
+
+   /**
+    * Returns a read-only view of the specified block,
+    * which shares its memory with the mapping of the file.
+    * The view is independent of the other views of the block,
+    * and remains valid after the segment is mapped again.
+    * @param blknum the block number
+    * @return a view of the block, or null if the block is not in the file
+    * @throws IOException
+    */
+   synchronized ByteBuffer block(int blknum) throws IOException {
+      int seg = blknum / blocksPerSegment;
+      int offset = (blknum % blocksPerSegment) * BLOCK_SIZE;
+      MappedByteBuffer mbb = (seg < segments.size()) ? segments.get(seg) : null;
+      if (mbb == null || mbb.capacity() < offset + BLOCK_SIZE) {
+         mbb = map(seg);
+         if (mbb == null || mbb.capacity() < offset + BLOCK_SIZE)
+            return null;
+      }
+      ByteBuffer view = mbb.duplicate();
+      view.limit(offset + BLOCK_SIZE);
+      view.position(offset);
+      return view.slice();
+   }
+
+   /**
+    * Forgets the segments that cover blocks beyond the specified
+    * number of blocks, before the file is truncated to that number.
+    * A segment that still has blocks is mapped again
+    * the next time one of them is read.
+    * The views of the removed blocks must no longer be used,
+    * since accessing a mapping beyond the end of its file fails.
+    * @param numblocks the number of blocks that remain in the file
+    */
+   synchronized void truncate(int numblocks) {
+      for (int seg=0; seg<segments.size(); seg++) {
+         MappedByteBuffer mbb = segments.get(seg);
+         long end = (long) seg * blocksPerSegment + (mbb == null ? 0 : mbb.capacity() / BLOCK_SIZE);
+         if (mbb != null && end > numblocks)
+            segments.set(seg, null);
+      }
+   }
+
+   /**
+    * Maps the whole blocks of the specified segment
+    * that are currently in the file.
+    * @param seg the segment number
+    * @return the mapping, or null if the segment has no block
+    */
+   private MappedByteBuffer map(int seg) throws IOException {
+      long start = (long) seg * blocksPerSegment * BLOCK_SIZE;
+      long blocks = (fc.size() - start) / BLOCK_SIZE;
+      if (blocks <= 0)
+         return null;
+      int len = (int) Math.min(blocksPerSegment, blocks) * BLOCK_SIZE;
+      MappedByteBuffer mbb = fc.map(FileChannel.MapMode.READ_ONLY, start, len);
+      while (segments.size() <= seg)
+         segments.add(null);
+      segments.set(seg, mbb);
+      return mbb;
+   }
+}
@@ -2,7 +2,6 @@ package simpledb.file;
 
 import simpledb.server.SimpleDB;
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
 
 /**
  * The contents of a disk block in memory.
@@ -33,16 +32,50 @@ import java.nio.charset.Charset;
  * p3.read(blk);
  * String s = p3.getString(20);
  * </pre>
+ * <p>
+ * When the database is memory-mapped,
+ * reading a block of a data file does not copy it:
+ * the page keeps a read-only view of the mapped block,
+ * and copies it into its own buffer the first time
+ * the page is modified.
+ * <p>
+ * If the database has checksums, writing a page stores
+ * the checksum of its contents at the end of the block,
+ * and reading a block verifies it (see {@link PageChecksum}).
+ * <p>
+ * The values of a page are accessed with absolute indexes,
+ * which never move the position of the page's byte buffer,
+ * and without locking.
+ * A page is therefore not thread-safe: the code that shares it
+ * must guard it, as {@link simpledb.buffer.Buffer} does with its latch.
+ * Only the methods that transfer the whole page
+ * (read, write, append and copyTo) synchronize on the page,
+ * because the file manager uses the buffer's position.
  * @author Edward Sciore
  */
 public class Page {
    /**
     * The number of bytes in a block.
-    * This value is set unreasonably low, so that it is easier
-    * to create and test databases having a lot of blocks.
-    * A more realistic value would be 4K.
+    * The value is chosen when a database is created
+    * (see {@link simpledb.server.SimpleDB#PAGE_SIZE}),
+    * and is set by the {@link FileMgr} from the database header
+    * when the database is opened.
+    * Databases created without a header use 400-byte blocks,
+    * which make it easy to test databases having a lot of blocks.
     */
-   public static final int BLOCK_SIZE = 400;
+   public static int BLOCK_SIZE = DbHeader.LEGACY_PAGE_SIZE;
+
+   /**
+    * The number of bytes of a block that can hold values.
+    * When the database has checksums
+    * (see {@link simpledb.server.SimpleDB#PAGE_CHECKSUMS}),
+    * the end of each block is reserved for the checksum
+    * of the block, and this value is smaller than BLOCK_SIZE.
+    * Otherwise, the two values are the same.
+    * The value is set by the {@link FileMgr}
+    * when the database is opened.
+    */
+   public static int USABLE_SIZE = BLOCK_SIZE;
    
    /**
     * The size of an integer in bytes.
@@ -55,18 +88,20 @@ public class Page {
     * The maximum size, in bytes, of a string of length n.
     * A string is represented as the encoding of its characters,
     * preceded by an integer denoting the number of bytes in this encoding.
-    * If the JVM uses the US-ASCII encoding, then each char
+    * The encoding is that of the database's charset
+    * (see {@link simpledb.server.SimpleDB#PAGE_CHARSET}).
+    * If the charset is Latin-1 or US-ASCII, then each char
     * is stored in one byte, so a string of n characters
-    * has a size of 4+n bytes.
+    * has a size of 4+n bytes; in UTF-8 it has a size of 4+3n bytes.
     * @param n the size of the string
     * @return the maximum number of bytes required to store a string of size n
     */
    public static final int STR_SIZE(int n) {
-      float bytesPerChar = Charset.defaultCharset().newEncoder().maxBytesPerChar();
-      return INT_SIZE + (n * (int)bytesPerChar);
+      return INT_SIZE + n * StringCodec.bytesPerChar();
    }
    
    private ByteBuffer contents = ByteBuffer.allocateDirect(BLOCK_SIZE);
+   private ByteBuffer mapped = null; // a view of a mapped block, while unmodified
    private FileMgr filemgr = SimpleDB.fileMgr();
    
    /**
@@ -86,9 +121,13 @@ public class Page {
    /**
     * Populates the page with the contents of the specified disk block. 
     * @param blk a reference to a disk block
+    * @throws ChecksumException if the block does not match its checksum
     */
    public synchronized void read(Block blk) {
-      filemgr.read(blk, contents);
+      mapped = filemgr.mappedBlock(blk);
+      if (mapped == null)
+         filemgr.read(blk, contents);
+      PageChecksum.verify(blk, data());
    }
    
    /**
@@ -96,7 +135,7 @@ public class Page {
     * @param blk a reference to a disk block
     */
    public synchronized void write(Block blk) {
-      filemgr.write(blk, contents);
+      filemgr.write(blk, stamped());
    }
    
    /**
@@ -105,7 +144,21 @@ public class Page {
     * @return the reference to the newly-created disk block
     */
    public synchronized Block append(String filename) {
-      return filemgr.append(filename, contents);
+      return filemgr.append(filename, stamped());
+   }
+   
+   /**
+    * Copies the contents of this page into the specified page.
+    * @param dest the page that receives the contents
+    */
+   public synchronized void copyTo(Page dest) {
+      ByteBuffer src = data().duplicate();
+      src.clear();
+      synchronized (dest) {
+         dest.mapped = null;
+         dest.contents.clear();
+         dest.contents.put(src);
+      }
    }
    
    /**
@@ -115,9 +168,8 @@ public class Page {
     * @param offset the byte offset within the page
     * @return the integer value at that offset
     */
-   public synchronized int getInt(int offset) {
-      contents.position(offset);
-      return contents.getInt();
+   public int getInt(int offset) {
+      return data().getInt(offset);
    }
    
    /**
@@ -125,9 +177,8 @@ public class Page {
     * @param offset the byte offset within the page
     * @param val the integer to be written to the page
     */
-   public synchronized void setInt(int offset, int val) {
-      contents.position(offset);
-      contents.putInt(val);
+   public void setInt(int offset, int val) {
+      modifiable().putInt(offset, val);
    }
    
    /**
@@ -137,12 +188,25 @@ public class Page {
     * @param offset the byte offset within the page
     * @return the string value at that offset
     */
-   public synchronized String getString(int offset) {
-      contents.position(offset);
-      int len = contents.getInt();
-      byte[] byteval = new byte[len];
-      contents.get(byteval);
-      return new String(byteval);
+   public String getString(int offset) {
+      ByteBuffer data = data();
+      int len = data.getInt(offset);
+      return StringCodec.get().decode(data, offset + INT_SIZE, len);
+   }
+
+   /**
+    * Returns true if the string value at the specified offset
+    * of the page is equal to the specified string.
+    * The bytes of the page are compared with the encoding
+    * of the string, so no string is created.
+    * @param offset the byte offset within the page
+    * @param val the string to compare with
+    * @return true if the page holds that string at that offset
+    */
+   public boolean stringEquals(int offset, String val) {
+      ByteBuffer data = data();
+      int len = data.getInt(offset);
+      return StringCodec.get().equals(data, offset + INT_SIZE, len, val);
    }
    
    /**
@@ -150,10 +214,113 @@ public class Page {
     * @param offset the byte offset within the page
     * @param val the string to be written to the page
     */
-   public synchronized void setString(int offset, String val) {
-      contents.position(offset);
-      byte[] byteval = val.getBytes();
-      contents.putInt(byteval.length);
-      contents.put(byteval);
+   public void setString(int offset, String val) {
+      ByteBuffer contents = modifiable();
+      int len = StringCodec.get().encode(val, contents, offset + INT_SIZE);
+      contents.putInt(offset, len);
+   }
+
+   /**
+    * Copies the view of the mapped block, if the page has one,
+    * into the page's own buffer.
+    * This method is called when the page's block is about to be
+    * removed from its file while the page is still in use,
+    * since the view of a removed block must no longer be read.
+    */
+   public synchronized void detach() {
+      modifiable();
+   }
+
+   /**
+    * Drops the view of the mapped block, if the page has one,
+    * without copying it.
+    * This method is called when the page's block is removed from its file,
+    * after which the contents of the page are meaningless.
+    */
+   public synchronized void forget() {
+      mapped = null;
+   }
+
+   /**
+    * Returns the buffer that holds the current contents of the page:
+    * the view of the mapped block if the page has one,
+    * or else the page's own buffer.
+    */
+   private ByteBuffer data() {
+      return (mapped != null) ? mapped : contents;
+   }
+
+   /**
+    * Returns the buffer that holds the current contents of the page,
+    * after storing their checksum.
+    * The view of a mapped block is returned as it is,
+    * since it holds the checksum that was read.
+    */
+   private ByteBuffer stamped() {
+      if (mapped == null)
+         PageChecksum.stamp(contents);
+      return data();
+   }
+
+   /**
+    * Returns the page's own buffer, after copying into it
+    * the view of the mapped block, if any.
+    */
+   private ByteBuffer modifiable() {
+      if (mapped != null) {
+         ByteBuffer src = mapped.duplicate();
+         src.clear();
+         contents.clear();
+         contents.put(src);
+         mapped = null;
+      }
+      return contents;
+   }
+
+   /**
+    * Populates the specified pages with the contents of
+    * consecutive disk blocks, starting with the specified block.
+    * The blocks are read with a single system call,
+    * unless they can all be mapped.
+    * The caller must make sure that no other thread
+    * uses the pages at the same time.
+    * @param first a reference to the first disk block
+    * @param pages the pages, one per block
+    * @throws ChecksumException if a block does not match its checksum
+    */
+   public static void readBlocks(Block first, Page[] pages) {
+      FileMgr filemgr = SimpleDB.fileMgr();
+      boolean allmapped = true;
+      for (int i=0; i<pages.length; i++) {
+         Block blk = new Block(first.fileName(), first.number() + i);
+         pages[i].mapped = filemgr.mappedBlock(blk);
+         allmapped &= (pages[i].mapped != null);
+      }
+      if (!allmapped) {
+         ByteBuffer[] bufs = new ByteBuffer[pages.length];
+         for (int i=0; i<pages.length; i++) {
+            pages[i].mapped = null;
+            bufs[i] = pages[i].contents;
+         }
+         filemgr.readBlocks(first, bufs.length, bufs);
+      }
+      for (int i=0; i<pages.length; i++)
+         PageChecksum.verify(new Block(first.fileName(), first.number() + i), pages[i].data());
+   }
+
+   /**
+    * Writes the contents of the specified pages to
+    * consecutive disk blocks, starting with the specified block,
+    * using a single system call.
+    * The caller must make sure that no other thread
+    * uses the pages at the same time.
+    * @param first a reference to the first disk block
+    * @param pages the pages, one per block
+    */
+   public static void writeBlocks(Block first, Page[] pages) {
+      ByteBuffer[] bufs = new ByteBuffer[pages.length];
+      for (int i=0; i<pages.length; i++)
+         bufs[i] = pages[i].stamped().duplicate();
+      SimpleDB.fileMgr().writeBlocks(first, bufs.length, bufs);
    }
 }
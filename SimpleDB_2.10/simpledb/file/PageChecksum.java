@@ -0,0 +1,139 @@
+package simpledb.file;
+
+import static simpledb.file.Page.*;
+import simpledb.server.SimpleDB;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * The checksums of the pages of a database.
+ * When a database has checksums
+ * (see {@link simpledb.server.SimpleDB#PAGE_CHECKSUMS}),
+ * the last {@value Page#INT_SIZE} bytes of every block hold
+ * the CRC-32C of the rest of the block
+ * (or its CRC-32, in a database created before CRC-32C was used;
+ * see {@link DbHeader}).
+ * The checksum is stored when a page is written,
+ * and verified when a block is read.
+ * <p>
+ * A block whose bytes are all zero has never been written,
+ * and is accepted as it is.
+ * A block whose checksum does not match was not written
+ * completely (such as a page torn by a crash) or was damaged afterwards.
+ * Every failure is counted (see {@link FileMgr#checksumFailures()}),
+ * and the read throws a {@link ChecksumException},
+ * so that the caller can give up on the block.
+ * While the database is being recovered, however,
+ * the page is read anyway:
+ * recovery undoes or redoes every logged update since the last checkpoint,
+ * which repairs a page torn while it was being written,
+ * and the page gets a new checksum when it is written again.
+ * Damaged blocks can also be read anyway by setting
+ * {@link simpledb.server.SimpleDB#IGNORE_CHECKSUM_FAILURES}.
+ * <p>
+ * Each thread has its own checksum object.
+ */
+class PageChecksum {
+   private static volatile boolean enabled = false, crc32c = true;
+   private static volatile boolean recovering = false;
+   private static AtomicLong failures = new AtomicLong();
+
+   private static final ThreadLocal<Checksum> crc32cs = new ThreadLocal<Checksum>() {
+      protected Checksum initialValue() {
+         return new CRC32C();
+      }
+   };
+   private static final ThreadLocal<Checksum> crc32s = new ThreadLocal<Checksum>() {
+      protected Checksum initialValue() {
+         return new CRC32();
+      }
+   };
+
+   /**
+    * Turns the checksums of the pages on or off.
+    * @param on true if the database has checksums
+    * @param castagnoli true if the checksums are CRC-32C, rather than CRC-32
+    */
+   static void setEnabled(boolean on, boolean castagnoli) {
+      enabled = on;
+      crc32c = castagnoli;
+   }
+
+   /**
+    * Tells whether the database is being recovered,
+    * in which case the blocks that fail their checksum are read anyway.
+    * @param on true while recovery is running
+    */
+   static void setRecovering(boolean on) {
+      recovering = on;
+   }
+
+   /**
+    * Returns the number of bytes at the end of each block
+    * that are reserved for the checksum.
+    * @return the size of the checksum trailer, in bytes
+    */
+   static int trailerSize() {
+      return enabled ? INT_SIZE : 0;
+   }
+
+   /**
+    * Stores the checksum of the block held by the bytebuffer
+    * in the trailer of the block.
+    * The method does nothing if the database has no checksums.
+    * @param bb the bytebuffer
+    */
+   static void stamp(ByteBuffer bb) {
+      if (enabled)
+         bb.putInt(BLOCK_SIZE - INT_SIZE, compute(bb));
+   }
+
+   /**
+    * Checks that the specified block, held by the bytebuffer,
+    * matches its checksum or has never been written.
+    * A mismatch is counted as a failure, and a {@link ChecksumException}
+    * is thrown unless the database is being recovered
+    * or failures are to be ignored.
+    * @param blk a reference to the block
+    * @param bb the bytebuffer
+    */
+   static void verify(Block blk, ByteBuffer bb) {
+      if (!enabled)
+         return;
+      int stored = bb.getInt(BLOCK_SIZE - INT_SIZE);
+      if (stored == compute(bb) || (stored == 0 && isZero(bb)))
+         return;
+      failures.incrementAndGet();
+      if (!recovering && !SimpleDB.IGNORE_CHECKSUM_FAILURES)
+         throw new ChecksumException(blk);
+   }
+
+   /**
+    * Returns the number of blocks that failed their checksum
+    * since the system was started.
+    * @return the number of checksum failures
+    */
+   static long failures() {
+      return failures.get();
+   }
+
+   private static int compute(ByteBuffer bb) {
+      ByteBuffer data = bb.duplicate();
+      data.limit(BLOCK_SIZE - INT_SIZE);
+      data.position(0);
+      Checksum crc = crc32c ? crc32cs.get() : crc32s.get();
+      crc.reset();
+      crc.update(data);
+      return (int) crc.getValue();
+   }
+
+   private static boolean isZero(ByteBuffer bb) {
+      for (int pos=0; pos<BLOCK_SIZE; pos+=INT_SIZE)
+         if (bb.getInt(pos) != 0)
+            return false;
+      return true;
+   }
+}
@@ -0,0 +1,206 @@
+package simpledb.file;
+
+import java.nio.*;
+import java.nio.charset.*;
+
+/**
+ * The encoder and decoder of the strings stored in pages.
+ * The charset of a database is chosen when it is created
+ * (see {@link simpledb.server.SimpleDB#PAGE_CHARSET}),
+ * and is set by the {@link FileMgr} from the database header.
+ * <p>
+ * Each thread has its own codec, with its own scratch buffers,
+ * so encoding and decoding a string allocate nothing
+ * except the decoded string itself.
+ * Characters that the charset stores as a single byte of
+ * the same value (ASCII, or all of Latin-1) are encoded directly;
+ * the charset's encoder is used only for the others.
+ * The codec reads and writes the page's buffer with absolute
+ * indexes, so it never changes the buffer's position.
+ */
+class StringCodec {
+   private static volatile Charset charset = Charset.defaultCharset();
+   private static volatile int bytesPerChar = maxBytesPerChar(charset);
+   private static volatile int directLimit = directLimit(charset);
+
+   private static final ThreadLocal<StringCodec> codecs = new ThreadLocal<StringCodec>();
+
+   private Charset cs;
+   private CharsetEncoder encoder;
+   private char[] chars = new char[64];
+   private byte[] bytes = new byte[64];
+   private CharBuffer charbuf = CharBuffer.wrap(chars);
+   private ByteBuffer bytebuf = ByteBuffer.wrap(bytes);
+
+   private StringCodec(Charset cs) {
+      this.cs = cs;
+      encoder = cs.newEncoder()
+                  .onMalformedInput(CodingErrorAction.REPLACE)
+                  .onUnmappableCharacter(CodingErrorAction.REPLACE);
+   }
+
+   /**
+    * Sets the charset of the strings in the pages.
+    * @param cs the charset
+    */
+   static void setCharset(Charset cs) {
+      charset = cs;
+      bytesPerChar = maxBytesPerChar(cs);
+      directLimit = directLimit(cs);
+   }
+
+   /**
+    * Returns the charset of the strings in the pages.
+    * @return the charset
+    */
+   static Charset charset() {
+      return charset;
+   }
+
+   /**
+    * Returns the maximum number of bytes needed
+    * to encode a character.
+    * @return the maximum size of a character, in bytes
+    */
+   static int bytesPerChar() {
+      return bytesPerChar;
+   }
+
+   /**
+    * Returns the codec of the calling thread.
+    * @return the thread's codec
+    */
+   static StringCodec get() {
+      StringCodec codec = codecs.get();
+      if (codec == null || codec.cs != charset) {
+         codec = new StringCodec(charset);
+         codecs.set(codec);
+      }
+      return codec;
+   }
+
+   /**
+    * Decodes the string whose len bytes start at the
+    * specified position of the buffer.
+    * @param src the buffer
+    * @param pos the position of the first byte
+    * @param len the number of bytes
+    * @return the decoded string
+    */
+   String decode(ByteBuffer src, int pos, int len) {
+      byte[] bbuf = bytes(len);
+      for (int i=0; i<len; i++)
+         bbuf[i] = src.get(pos + i);
+      return new String(bbuf, 0, len, cs);
+   }
+
+   /**
+    * Encodes the string into the buffer,
+    * starting at the specified position.
+    * @param val the string
+    * @param dest the buffer
+    * @param pos the position of the first byte
+    * @return the number of bytes written
+    */
+   int encode(String val, ByteBuffer dest, int pos) {
+      int n = val.length();
+      if (isDirect(val)) {
+         for (int i=0; i<n; i++)
+            dest.put(pos + i, (byte) val.charAt(i));
+         return n;
+      }
+      int len = encodeSlow(val);
+      for (int i=0; i<len; i++)
+         dest.put(pos + i, bytes[i]);
+      return len;
+   }
+
+   /**
+    * Returns true if the len bytes that start at the
+    * specified position of the buffer encode the string.
+    * No string is created.
+    * @param src the buffer
+    * @param pos the position of the first byte
+    * @param len the number of bytes
+    * @param val the string
+    * @return true if the bytes encode the string
+    */
+   boolean equals(ByteBuffer src, int pos, int len, String val) {
+      if (isDirect(val)) {
+         // a single-byte encoding; the lengths must match
+         if (len != val.length())
+            return false;
+         for (int i=0; i<len; i++)
+            if (src.get(pos + i) != (byte) val.charAt(i))
+               return false;
+         return true;
+      }
+      int n = encodeSlow(val);
+      if (n != len)
+         return false;
+      for (int i=0; i<len; i++)
+         if (src.get(pos + i) != bytes[i])
+            return false;
+      return true;
+   }
+
+   private boolean isDirect(String val) {
+      int limit = directLimit;
+      for (int i=0; i<val.length(); i++)
+         if (val.charAt(i) >= limit)
+            return false;
+      return true;
+   }
+
+   /**
+    * Encodes the string into the scratch byte array.
+    * @return the number of bytes
+    */
+   private int encodeSlow(String val) {
+      int n = val.length();
+      char[] cbuf = chars(n);
+      val.getChars(0, n, cbuf, 0);
+      bytes(n * bytesPerChar);
+      charbuf.clear();
+      charbuf.limit(n);
+      bytebuf.clear();
+      encoder.reset();
+      encoder.encode(charbuf, bytebuf, true);
+      encoder.flush(bytebuf);
+      return bytebuf.position();
+   }
+
+   private char[] chars(int n) {
+      if (chars.length < n) {
+         chars = new char[Math.max(n, 2 * chars.length)];
+         charbuf = CharBuffer.wrap(chars);
+      }
+      return chars;
+   }
+
+   private byte[] bytes(int n) {
+      if (bytes.length < n) {
+         bytes = new byte[Math.max(n, 2 * bytes.length)];
+         bytebuf = ByteBuffer.wrap(bytes);
+      }
+      return bytes;
+   }
+
+   private static int maxBytesPerChar(Charset cs) {
+      return (int) Math.ceil(cs.newEncoder().maxBytesPerChar());
+   }
+
+   /**
+    * Returns the smallest character that the charset
+    * does not store as a single byte of the same value.
+    */
+   private static int directLimit(Charset cs) {
+      String name = cs.name();
+      if (name.equals("ISO-8859-1"))
+         return 0x100;
+      else if (name.equals("UTF-8") || name.equals("US-ASCII"))
+         return 0x80;
+      else
+         return 0;
+   }
+}
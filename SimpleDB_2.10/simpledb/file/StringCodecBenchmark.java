@@ -0,0 +1,115 @@
+package simpledb.file;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A benchmark of the string path of a page:
+ * {@link Page#setString(int, String) setString},
+ * {@link Page#getString(int) getString} and
+ * {@link Page#stringEquals(int, String) stringEquals}.
+ * For comparison, it also times the former implementation,
+ * which encoded with {@link String#getBytes()} and decoded
+ * from a new byte array, both with the platform's default charset,
+ * and which could only compare decoded strings.
+ * <p>
+ * Each measurement is repeated a few times after a warm-up,
+ * and the best time is reported, in nanoseconds per operation.
+ * No disk I/O is performed, so the database system
+ * does not need to be initialized.
+ * <p>
+ * Usage: java simpledb.file.StringCodecBenchmark [charset] [operations]
+ */
+public class StringCodecBenchmark {
+   private static final int ROUNDS = 5;
+   private static final int SLOTS = 16;
+   private static final int SLOT_SIZE = 24;
+
+   private static int sink = 0; // keeps the results alive
+
+   public static void main(String[] args) {
+      String csname = (args.length > 0) ? args[0] : "UTF-8";
+      int numops = (args.length > 1) ? Integer.parseInt(args[1]) : 2000000;
+      StringCodec.setCharset(Charset.forName(csname));
+
+      String[] ascii = new String[SLOTS];
+      String[] accented = new String[SLOTS];
+      for (int i=0; i<SLOTS; i++) {
+         ascii[i] = "student" + i;
+         accented[i] = "\u00e9l\u00e8ve" + i;
+      }
+      System.out.println(csname + ", " + numops + " operations, ns/op");
+      System.out.println("strings      op        page   former");
+      report("ascii", ascii, numops);
+      report("accented", accented, numops);
+      if (sink == 42)
+         System.out.println();
+   }
+
+   private static void report(String name, String[] vals, int numops) {
+      Page p = new Page();
+      ByteBuffer bb = ByteBuffer.allocateDirect(Page.BLOCK_SIZE);
+      for (String op : new String[] {"set", "get", "equals"}) {
+         double page = best(op, p, bb, vals, numops, false);
+         double former = best(op, p, bb, vals, numops, true);
+         System.out.println(String.format("%-10s %-8s %7.1f %8.1f",
+                                          name, op, page, former));
+      }
+   }
+
+   private static double best(String op, Page p, ByteBuffer bb, String[] vals,
+                              int numops, boolean former) {
+      run(op, p, bb, vals, numops, former); // warm-up
+      long best = Long.MAX_VALUE;
+      for (int r=0; r<ROUNDS; r++) {
+         long start = System.nanoTime();
+         run(op, p, bb, vals, numops, former);
+         best = Math.min(best, System.nanoTime() - start);
+      }
+      return (double) best / numops;
+   }
+
+   private static void run(String op, Page p, ByteBuffer bb, String[] vals,
+                           int numops, boolean former) {
+      for (int i=0; i<SLOTS; i++) {
+         p.setString(i * SLOT_SIZE, vals[i]);
+         formerSet(bb, i * SLOT_SIZE, vals[i]);
+      }
+      for (int k=0; k<numops; k++) {
+         int i = k % SLOTS;
+         int offset = i * SLOT_SIZE;
+         if (op.equals("set")) {
+            if (former)
+               formerSet(bb, offset, vals[i]);
+            else
+               p.setString(offset, vals[i]);
+         }
+         else if (op.equals("get")) {
+            String s = former ? formerGet(bb, offset) : p.getString(offset);
+            sink += s.length();
+         }
+         else {
+            String val = vals[(k / SLOTS) % SLOTS];
+            boolean eq = former ? formerGet(bb, offset).equals(val)
+                                : p.stringEquals(offset, val);
+            if (eq)
+               sink++;
+         }
+      }
+   }
+
+   private static synchronized void formerSet(ByteBuffer bb, int offset, String val) {
+      bb.position(offset);
+      byte[] byteval = val.getBytes();
+      bb.putInt(byteval.length);
+      bb.put(byteval);
+   }
+
+   private static synchronized String formerGet(ByteBuffer bb, int offset) {
+      bb.position(offset);
+      int len = bb.getInt();
+      byte[] byteval = new byte[len];
+      bb.get(byteval);
+      return new String(byteval);
+   }
+}
@@ -1,9 +1,11 @@
 package simpledb.index.planner;
 
+import static java.sql.Types.INTEGER;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 
-import simpledb.record.RID;
+import simpledb.record.*;
 import simpledb.server.SimpleDB;
 import simpledb.tx.Transaction;
 import simpledb.index.Index;
@@ -117,4 +119,43 @@ public class IndexUpdatePlanner implements UpdatePlanner {
       SimpleDB.mdMgr().createIndex(data.indexName(), data.tableName(), data.fieldName(), tx);
       return 0;
    }
+   
+   public int executeVacuum(VacuumData data, Transaction tx) {
+      String tblname = data.tableName();
+      TableInfo ti = SimpleDB.mdMgr().getTableInfo(tblname, tx);
+      Schema sch = ti.schema();
+      Map<String,Index> indexes = new HashMap<String,Index>();
+      for (Map.Entry<String,IndexInfo> e : SimpleDB.mdMgr().getIndexInfo(tblname, tx).entrySet())
+         indexes.put(e.getKey(), e.getValue().open());
+      
+      TableCompactor tc = new TableCompactor(ti, tx);
+      Map<String,Constant> vals = new HashMap<String,Constant>();
+      int count = 0;
+      while (tc.next()) {
+         // first, save the indexed values and move the record
+         RID oldrid = tc.getRid();
+         for (String fldname : indexes.keySet()) {
+            if (sch.type(fldname) == INTEGER)
+               vals.put(fldname, new IntConstant(tc.getInt(fldname)));
+            else
+               vals.put(fldname, new StringConstant(tc.getString(fldname)));
+         }
+         RID newrid = tc.move();
+         if (newrid == null)
+            break;
+         
+         // then point each index record to the new RID
+         for (String fldname : indexes.keySet()) {
+            Index idx = indexes.get(fldname);
+            idx.delete(vals.get(fldname), oldrid);
+            idx.insert(vals.get(fldname), newrid);
+         }
+         count++;
+      }
+      tc.close();
+      tc.truncate();
+      for (Index idx : indexes.values())
+         idx.close();
+      return count;
+   }
 }
@@ -0,0 +1,158 @@
+package simpledb.log;
+
+/**
+ * The group-commit stage of the log manager.
+ * A committing transaction appends its commit record
+ * and then calls {@link #flush(long)}, which returns once the
+ * record is on disk.
+ * Concurrent callers are collected into batches.
+ * The first caller of a batch becomes its leader:
+ * it waits for at most the commit window (or until the batch
+ * is full), closes the batch, and flushes the log once on
+ * behalf of every member of the batch.
+ * Callers that arrive while a flush is in progress
+ * join the next batch, so batches form naturally
+ * even when the window is zero.
+ * If the leader's flush fails, the leader gets the exception,
+ * and the other members of the batch get an exception as well,
+ * unless a later flush has put their records on disk.
+ * <p>
+ * The stage records the size of every batch and the
+ * latency of every call in two {@link Histogram histograms}.
+ */
+public class GroupCommit {
+   private LogMgr logMgr;
+   private long windowNanos;
+   private int maxBatch;
+
+   private long openBatch = 1, completedBatch = 0;
+   private int batchSize = 0;
+   private long batchLSN = -1;
+   private long durableLSN = -1;
+   private boolean flushing = false;
+
+   private Histogram batchSizes = new Histogram("");
+   private Histogram latencies  = new Histogram("us");
+
+   /**
+    * Creates a group-commit stage for the specified log manager.
+    * @param logMgr the log manager
+    * @param windowMicros the longest time, in microseconds,
+    * that a leader waits for its batch to fill up
+    * @param maxBatch the largest number of callers in a batch
+    */
+   GroupCommit(LogMgr logMgr, long windowMicros, int maxBatch) {
+      this.logMgr = logMgr;
+      this.windowNanos = windowMicros * 1000;
+      this.maxBatch = Math.max(1, maxBatch);
+   }
+
+   /**
+    * Ensures that the log record having the specified LSN,
+    * and all earlier records, are on disk.
+    * The calling thread either flushes the log itself,
+    * as the leader of its batch,
+    * or waits for the leader of its batch to do so.
+    * An exception is thrown if the flush of the batch failed.
+    * @param lsn the LSN of the caller's log record
+    */
+   public void flush(long lsn) {
+      long start = System.nanoTime();
+      boolean interrupted = false;
+      long mybatch;
+      int size = 0;
+      long flushlsn = -1;
+      boolean leader = false;
+      synchronized (this) {
+         mybatch = openBatch;
+         batchSize++;
+         if (lsn > batchLSN)
+            batchLSN = lsn;
+         if (batchSize >= maxBatch)
+            notifyAll();
+         while (completedBatch < mybatch && flushing)
+            interrupted |= await(0);
+         if (completedBatch < mybatch) {
+            // no flush is in progress, so the open batch is this thread's own
+            leader = flushing = true;
+            long deadline = start + windowNanos;
+            long remaining = deadline - System.nanoTime();
+            while (batchSize < maxBatch && remaining > 0) {
+               interrupted |= await(remaining);
+               remaining = deadline - System.nanoTime();
+            }
+            size = batchSize;
+            flushlsn = batchLSN;
+            openBatch++;
+            batchSize = 0;
+            batchLSN = -1;
+         }
+      }
+      if (leader) {
+         boolean flushed = false;
+         try {
+            logMgr.flush(flushlsn);
+            flushed = true;
+         }
+         finally {
+            synchronized (this) {
+               if (flushed && flushlsn > durableLSN)
+                  durableLSN = flushlsn;
+               completedBatch = mybatch;
+               flushing = false;
+               notifyAll();
+            }
+         }
+         batchSizes.add(size);
+      }
+      else {
+         synchronized (this) {
+            if (lsn > durableLSN) {
+               if (interrupted)
+                  Thread.currentThread().interrupt();
+               throw new RuntimeException("log flush failed: record " + lsn + " may not be on disk");
+            }
+         }
+      }
+      latencies.add((System.nanoTime() - start) / 1000);
+      if (interrupted)
+         Thread.currentThread().interrupt();
+   }
+
+   /**
+    * Returns the histogram of the number of commits per flush.
+    * @return the batch-size histogram
+    */
+   public Histogram batchSizes() {
+      return batchSizes;
+   }
+
+   /**
+    * Returns the histogram of the time, in microseconds,
+    * that callers of {@link #flush(long)} spent waiting.
+    * @return the latency histogram
+    */
+   public Histogram latencies() {
+      return latencies;
+   }
+
+   /**
+    * Waits on this object's monitor for at most the specified
+    * number of nanoseconds, or indefinitely if it is zero.
+    * A commit cannot be abandoned halfway, so an interrupt
+    * only ends the wait.
+    * @return true if the thread was interrupted
+    */
+   private boolean await(long nanos) {
+      try {
+         if (nanos == 0)
+            wait();
+         else
+            wait(nanos / 1000000, (int) (nanos % 1000000));
+         return false;
+      }
+      catch(InterruptedException e) {
+         return true;
+      }
+   }
+}
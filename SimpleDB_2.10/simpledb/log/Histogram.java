@@ -0,0 +1,104 @@
+package simpledb.log;
+
+/**
+ * A thread-safe histogram of non-negative values,
+ * such as batch sizes or latencies.
+ * Bucket i counts the values v such that
+ * 2<sup>i-1</sup> &lt;= v &lt; 2<sup>i</sup>;
+ * bucket 0 counts the zeros.
+ * The histogram keeps no samples, so it uses constant space.
+ */
+public class Histogram {
+   private static final int NUM_BUCKETS = 64;
+
+   private String unit;
+   private long[] buckets = new long[NUM_BUCKETS];
+   private long count = 0, sum = 0, max = 0;
+
+   /**
+    * Creates an empty histogram.
+    * @param unit the unit of the values, used when printing
+    */
+   public Histogram(String unit) {
+      this.unit = unit;
+   }
+
+   /**
+    * Adds a value to the histogram.
+    * Negative values are counted as zero.
+    * @param val the value
+    */
+   public synchronized void add(long val) {
+      if (val < 0)
+         val = 0;
+      buckets[bucketOf(val)]++;
+      count++;
+      sum += val;
+      if (val > max)
+         max = val;
+   }
+
+   /**
+    * Returns the number of values added.
+    * @return the number of values
+    */
+   public synchronized long count() {
+      return count;
+   }
+
+   /**
+    * Returns the mean of the values added,
+    * or 0 if there are none.
+    * @return the mean value
+    */
+   public synchronized double mean() {
+      return (count == 0) ? 0 : (double) sum / count;
+   }
+
+   /**
+    * Returns the largest value added.
+    * @return the maximum value
+    */
+   public synchronized long max() {
+      return max;
+   }
+
+   /**
+    * Returns an upper bound of the specified percentile,
+    * namely the upper limit of the bucket that contains it.
+    * @param pct the percentile, between 0 and 100
+    * @return an upper bound of the percentile
+    */
+   public synchronized long percentile(double pct) {
+      long target = (long) Math.ceil(count * pct / 100);
+      long seen = 0;
+      for (int i=0; i<NUM_BUCKETS; i++) {
+         seen += buckets[i];
+         if (seen >= target && seen > 0)
+            return Math.min(max, upperLimit(i));
+      }
+      return max;
+   }
+
+   /**
+    * Returns the values as a list of non-empty buckets,
+    * together with their count, mean, and maximum.
+    */
+   public synchronized String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("count=%d mean=%.1f%s max=%d%s",
+                              count, mean(), unit, max, unit));
+      for (int i=0; i<NUM_BUCKETS; i++)
+         if (buckets[i] > 0)
+            sb.append(String.format("%n  <%-12d %d", upperLimit(i) + 1, buckets[i]));
+      return sb.toString();
+   }
+
+   private static int bucketOf(long val) {
+      return NUM_BUCKETS - Long.numberOfLeadingZeros(val);
+   }
+
+   private static long upperLimit(int bucket) {
+      return (bucket == 0) ? 0 : (bucket >= 63) ? Long.MAX_VALUE : (1L << bucket) - 1;
+   }
+}
@@ -13,6 +13,26 @@ import java.util.*;
  * The log manager does not understand the meaning of these
  * values, which are written and read by the
  * {@link simpledb.tx.recovery.RecoveryMgr recovery manager}.
+ * Commit records are flushed through a {@link GroupCommit} stage,
+ * so that concurrent commits share a single log write.
+ * <p>
+ * The tail of the log is kept in a ring of
+ * {@link SimpleDB#LOG_BUFFERS} pages.
+ * Records are appended to the page of the last block.
+ * When that page is full, it is sealed and the next page
+ * of the ring becomes the tail, so appends can continue
+ * while the sealed pages are being written.
+ * A flush writes the sealed pages in block order,
+ * followed by a copy of the tail page;
+ * the log manager's monitor is held only while the copy is made.
+ * The log file is then forced to disk.
+ * <p>
+ * The LSN of a log record is the byte address in the log file
+ * of the end of the record,
+ * namely blknum * BLOCK_SIZE + offset.
+ * LSNs therefore increase with every record,
+ * and {@link #flush(long)} writes no more than
+ * the blocks that hold the requested records.
  * @author Edward Sciore
  */
 public class LogMgr implements Iterable<BasicLogRecord> {
@@ -23,9 +43,14 @@ public class LogMgr implements Iterable<BasicLogRecord> {
    public static final int LAST_POS = 0;
 
    private String logfile;
-   private Page mypage = new Page();
-   private Block currentblk;
+   private Page[] pages;
+   private int tailblk;   // the block whose page receives the appends
+   private int lowblk;    // the first block that is not completely on disk
    private int currentpos;
+   private volatile long flushedLSN;  // all records up to this LSN are on disk
+   private Object flushLock = new Object();
+   private Page tailcopy = new Page(); // used only while holding flushLock
+   private GroupCommit groupCommit;
 
    /**
     * Creates the manager for the specified log file.
@@ -42,25 +67,86 @@ public class LogMgr implements Iterable<BasicLogRecord> {
     */
    public LogMgr(String logfile) {
       this.logfile = logfile;
+      groupCommit = new GroupCommit(this, SimpleDB.GROUP_COMMIT_WINDOW,
+                                    SimpleDB.GROUP_COMMIT_MAX_BATCH);
+      pages = new Page[Math.max(2, SimpleDB.LOG_BUFFERS)];
+      for (int i=0; i<pages.length; i++)
+         pages[i] = new Page();
       int logsize = SimpleDB.fileMgr().size(logfile);
-      if (logsize == 0)
-         appendNewBlock();
+      if (logsize == 0) {
+         tailblk = 0;
+         setLastRecordPosition(0);
+         currentpos = INT_SIZE;
+         tail().write(new Block(logfile, tailblk));
+         SimpleDB.fileMgr().force(logfile);
+      }
       else {
-         currentblk = new Block(logfile, logsize-1);
-         mypage.read(currentblk);
+         tailblk = logsize - 1;
+         tail().read(new Block(logfile, tailblk));
          currentpos = getLastRecordPosition() + INT_SIZE;
       }
+      lowblk = tailblk;
+      flushedLSN = currentLSN();
    }
 
    /**
-    * Ensures that the log records corresponding to the
+    * Ensures that the log record corresponding to the
     * specified LSN has been written to disk.
     * All earlier log records will also be written to disk.
     * @param lsn the LSN of a log record
     */
-   public void flush(int lsn) {
-      if (lsn >= currentLSN())
-         flush();
+   public void flush(long lsn) {
+      if (lsn <= flushedLSN)
+         return;
+      synchronized (flushLock) {
+         if (lsn <= flushedLSN)
+            return;
+         int lastblk, endblk;
+         long endLSN;
+         boolean writetail;
+         synchronized (this) {
+            lastblk = (int) Math.min(lsn / BLOCK_SIZE, tailblk);
+            writetail = (lastblk == tailblk);
+            if (writetail) {
+               tail().copyTo(tailcopy);
+               endLSN = currentLSN();
+            }
+            else
+               endLSN = (long) (lastblk + 1) * BLOCK_SIZE;
+            endblk = Math.min(lastblk, tailblk - 1);
+         }
+         // sealed pages are not modified until lowblk moves past them
+         for (int b=lowblk; b<=endblk; b++)
+            pageFor(b).write(new Block(logfile, b));
+         if (writetail)
+            tailcopy.write(new Block(logfile, lastblk));
+         SimpleDB.fileMgr().force(logfile);
+         synchronized (this) {
+            lowblk = Math.max(lowblk, endblk + 1);
+            flushedLSN = Math.max(flushedLSN, endLSN);
+         }
+      }
+   }
+
+   /**
+    * Ensures that the commit (or rollback) record having the
+    * specified LSN has been written to disk.
+    * Unlike {@link #flush(long)}, the write is shared
+    * with the other transactions that are committing
+    * at the same time.
+    * @param lsn the LSN of the commit record
+    */
+   public void flushCommit(long lsn) {
+      groupCommit.flush(lsn);
+   }
+
+   /**
+    * Returns the group-commit stage, whose histograms
+    * describe the commit batches.
+    * @return the group-commit stage
+    */
+   public GroupCommit groupCommit() {
+      return groupCommit;
    }
 
    /**
@@ -68,9 +154,15 @@ public class LogMgr implements Iterable<BasicLogRecord> {
     * which will be returned in reverse order starting with the most recent.
     * @see java.lang.Iterable#iterator()
     */
-   public synchronized Iterator<BasicLogRecord> iterator() {
-      flush();
-      return new LogIterator(currentblk);
+   public Iterator<BasicLogRecord> iterator() {
+      long lsn;
+      int blknum;
+      synchronized (this) {
+         lsn = currentLSN();
+         blknum = tailblk;
+      }
+      flush(lsn);
+      return new LogIterator(new Block(logfile, blknum));
    }
 
    /**
@@ -79,21 +171,31 @@ public class LogMgr implements Iterable<BasicLogRecord> {
     * The method also writes an integer to the end of each log record whose value
     * is the offset of the corresponding integer for the previous log record.
     * These integers allow log records to be read in reverse order.
+    * If the record does not fit in the tail page and the ring
+    * has no free page, the sealed pages are written first.
     * @param rec the list of values
-    * @return the LSN of the final value
+    * @return the LSN of the record
     */
-   public synchronized int append(Object[] rec) {
+   public long append(Object[] rec) {
       int recsize = INT_SIZE;  // 4 bytes for the integer that points to the previous log record
       for (Object obj : rec)
          recsize += size(obj);
-      if (currentpos + recsize >= BLOCK_SIZE){ // the log record doesn't fit,
-         flush();        // so move to the next block.
-         appendNewBlock();
+      while (true) {
+         long sealed;
+         synchronized (this) {
+            if (currentpos + recsize < USABLE_SIZE || tailblk + 1 - lowblk < pages.length) {
+               if (currentpos + recsize >= USABLE_SIZE) // the log record doesn't fit,
+                  appendNewBlock();                    // so move to the next block.
+               for (Object obj : rec)
+                  appendVal(obj);
+               finalizeRecord();
+               return currentLSN();
+            }
+            sealed = (long) tailblk * BLOCK_SIZE - 1;
+         }
+         // the ring is full of sealed pages
+         flush(sealed);
       }
-      for (Object obj : rec)
-         appendVal(obj);
-      finalizeRecord();
-      return currentLSN();
    }
 
    /**
@@ -103,9 +205,9 @@ public class LogMgr implements Iterable<BasicLogRecord> {
     */
    private void appendVal(Object val) {
       if (val instanceof String)
-         mypage.setString(currentpos, (String)val);
+         tail().setString(currentpos, (String)val);
       else
-         mypage.setInt(currentpos, (Integer)val);
+         tail().setInt(currentpos, (Integer)val);
       currentpos += size(val);
    }
 
@@ -124,29 +226,23 @@ public class LogMgr implements Iterable<BasicLogRecord> {
    }
 
    /**
-    * Returns the LSN of the most recent log record.
-    * As implemented, the LSN is the block number where the record is stored.
-    * Thus every log record in a block has the same LSN.
+    * Returns the LSN of the most recent log record,
+    * which is the byte address of the end of the log.
     * @return the LSN of the most recent log record
     */
-   private int currentLSN() {
-      return currentblk.number();
-   }
-
-   /**
-    * Writes the current page to the log file.
-    */
-   private void flush() {
-      mypage.write(currentblk);
+   private long currentLSN() {
+      return (long) tailblk * BLOCK_SIZE + currentpos;
    }
 
    /**
-    * Clear the current page, and append it to the log file.
+    * Seals the tail page, and makes the next page
+    * of the ring the (empty) page of the next block.
+    * The caller has checked that the next page is free.
     */
    private void appendNewBlock() {
+      tailblk++;
       setLastRecordPosition(0);
       currentpos = INT_SIZE;
-      currentblk = mypage.append(logfile);
    }
 
    /**
@@ -157,16 +253,24 @@ public class LogMgr implements Iterable<BasicLogRecord> {
     * is the offset of the integer for the last log record in the page.
     */
    private void finalizeRecord() {
-      mypage.setInt(currentpos, getLastRecordPosition());
+      tail().setInt(currentpos, getLastRecordPosition());
       setLastRecordPosition(currentpos);
       currentpos += INT_SIZE;
    }
 
    private int getLastRecordPosition() {
-      return mypage.getInt(LAST_POS);
+      return tail().getInt(LAST_POS);
    }
 
    private void setLastRecordPosition(int pos) {
-      mypage.setInt(LAST_POS, pos);
+      tail().setInt(LAST_POS, pos);
+   }
+
+   private Page tail() {
+      return pageFor(tailblk);
+   }
+
+   private Page pageFor(int blknum) {
+      return pages[blknum % pages.length];
    }
 }
@@ -1,6 +1,7 @@
 package simpledb.materialize;
 
 import simpledb.tx.Transaction;
+import simpledb.buffer.BufferRing;
 import simpledb.record.*;
 import simpledb.query.*;
 
@@ -19,20 +20,23 @@ public class TempTable {
    /**
     * Allocates a name for for a new temporary table
     * having the specified schema.
+    * The table stores its records in the BITMAP format.
     * @param sch the new table's schema
     * @param tx the calling transaction
     */
    public TempTable(Schema sch, Transaction tx) {
       String tblname = nextTableName();
-      ti = new TableInfo(tblname, sch);
+      ti = new TableInfo(tblname, sch, TableInfo.BITMAP);
       this.tx = tx;
    }
    
    /**
     * Opens a table scan for the temporary table.
+    * A temporary table is written and read sequentially,
+    * so the scan always uses its own buffer ring.
     */
    public UpdateScan open() {
-      return new TableScan(ti, tx);
+      return new TableScan(ti, tx, new BufferRing());
    }
    
    /**
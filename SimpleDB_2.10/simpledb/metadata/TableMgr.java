@@ -1,5 +1,6 @@
 package simpledb.metadata;
 
+import simpledb.server.SimpleDB;
 import simpledb.tx.Transaction;
 import simpledb.record.*;
 import java.util.*;
@@ -9,6 +10,13 @@ import java.util.*;
  * There are methods to create a table, save the metadata
  * in the catalog, and obtain the metadata of a
  * previously-created table.
+ * <p>
+ * The record format of a new table is given by
+ * {@link SimpleDB#RECORD_FORMAT}, and is saved in the catalog;
+ * the catalog tables themselves always have fixed-size records.
+ * Databases created before record formats were introduced
+ * have no format in their catalog, and all of their tables
+ * have fixed-size records.
  * @author Edward Sciore
  *
  */
@@ -21,6 +29,7 @@ public class TableMgr {
    public static final int MAX_NAME = 16;
    
    private TableInfo tcatInfo, fcatInfo;
+   private boolean hasFormats;
    
    /**
     * Creates a new catalog manager for the database system.
@@ -33,6 +42,9 @@ public class TableMgr {
       Schema tcatSchema = new Schema();
       tcatSchema.addStringField("tblname", MAX_NAME);
       tcatSchema.addIntField("reclength");
+      Schema legacySchema = new Schema();
+      legacySchema.addAll(tcatSchema);
+      tcatSchema.addIntField("format");
       tcatInfo = new TableInfo("tblcat", tcatSchema);
       
       Schema fcatSchema = new Schema();
@@ -43,6 +55,9 @@ public class TableMgr {
       fcatSchema.addIntField("offset");
       fcatInfo = new TableInfo("fldcat", fcatSchema);
       
+      hasFormats = isNew || catalogHasFormats(tx);
+      if (!hasFormats)
+         tcatInfo = new TableInfo("tblcat", legacySchema);
       if (isNew) {
          createTable("tblcat", tcatSchema, tx);
          createTable("fldcat", fcatSchema, tx);
@@ -56,12 +71,17 @@ public class TableMgr {
     * @param tx the transaction creating the table
     */
    public void createTable(String tblname, Schema sch, Transaction tx) {
-      TableInfo ti = new TableInfo(tblname, sch);
+      int format = TableInfo.FIXED;
+      if (hasFormats && !tblname.equals("tblcat") && !tblname.equals("fldcat"))
+         format = recordFormat(SimpleDB.RECORD_FORMAT);
+      TableInfo ti = new TableInfo(tblname, sch, format);
       // insert one record into tblcat
       RecordFile tcatfile = new RecordFile(tcatInfo, tx);
       tcatfile.insert();
       tcatfile.setString("tblname", tblname);
       tcatfile.setInt("reclength", ti.recordLength());
+      if (hasFormats)
+         tcatfile.setInt("format", format);
       tcatfile.close();
       
       // insert a record into fldcat for each field
@@ -87,9 +107,12 @@ public class TableMgr {
    public TableInfo getTableInfo(String tblname, Transaction tx) {
       RecordFile tcatfile = new RecordFile(tcatInfo, tx);
       int reclen = -1;
+      int format = TableInfo.FIXED;
       while (tcatfile.next())
          if(tcatfile.getString("tblname").equals(tblname)) {
          reclen = tcatfile.getInt("reclength");
+         if (hasFormats)
+            format = tcatfile.getInt("format");
          break;
       }
       tcatfile.close();
@@ -107,6 +130,31 @@ public class TableMgr {
          sch.addField(fldname, fldtype, fldlen);
       }
       fcatfile.close();
-      return new TableInfo(tblname, sch, offsets, reclen);
+      return new TableInfo(tblname, sch, offsets, reclen, format);
+   }
+   
+   /**
+    * Returns true if the catalog records the format of each table,
+    * which is the case if tblcat has a format field.
+    */
+   private boolean catalogHasFormats(Transaction tx) {
+      RecordFile fcatfile = new RecordFile(fcatInfo, tx);
+      boolean found = false;
+      while (!found && fcatfile.next())
+         found = fcatfile.getString("tblname").equals("tblcat")
+               && fcatfile.getString("fldname").equals("format");
+      fcatfile.close();
+      return found;
+   }
+   
+   private static int recordFormat(String name) {
+      if (name.equals("fixed"))
+         return TableInfo.FIXED;
+      else if (name.equals("bitmap"))
+         return TableInfo.BITMAP;
+      else if (name.equals("slotted"))
+         return TableInfo.SLOTTED;
+      else
+         throw new RuntimeException("unknown record format " + name);
    }
 }
\ No newline at end of file
@@ -4,6 +4,7 @@ import static java.sql.Types.INTEGER;
 import simpledb.tx.Transaction;
 import simpledb.record.*;
 import simpledb.file.Block;
+import simpledb.buffer.BufferRing;
 import simpledb.query.*;
 
 import java.util.ArrayList;
@@ -14,27 +15,32 @@ import java.util.List;
  * @author Edward Sciore
  */
 public class ChunkScan implements Scan {
-   private List<RecordPage> pages;
+   private List<RecordBlock> pages;
    private int startbnum, endbnum, current;
    private Schema sch;
-   private RecordPage rp;
+   private RecordBlock rp;
    
    /**
     * Creates a chunk consisting of the specified pages. 
+    * The pages of the chunk that are not resident are
+    * read together, with as few system calls as possible,
+    * before they are pinned.
     * @param ti the metadata for the chunked table
     * @param startbnum the starting block number
     * @param endbnum  the ending block number
     * @param tx the current transaction
+    * @param ring the buffer ring that the pages are read into, or null
     */ 
-   public ChunkScan(TableInfo ti, int startbnum, int endbnum, Transaction tx) {
-      pages = new ArrayList<RecordPage>();
+   public ChunkScan(TableInfo ti, int startbnum, int endbnum, Transaction tx, BufferRing ring) {
+      pages = new ArrayList<RecordBlock>();
       this.startbnum = startbnum;
       this.endbnum   = endbnum;
       this.sch = ti.schema();
       String filename = ti.fileName();
+      tx.load(new Block(filename, startbnum), endbnum - startbnum + 1, ring);
       for (int i=startbnum; i<=endbnum; i++) {
          Block blk = new Block(filename, i);
-         pages.add(new RecordPage(blk, ti, tx));
+         pages.add(RecordFile.openBlock(blk, ti, tx, ring));
       }
       beforeFirst();
    }
@@ -68,7 +74,7 @@ public class ChunkScan implements Scan {
     * @see simpledb.query.Scan#close()
     */
    public void close() {
-      for (RecordPage r : pages)
+      for (RecordBlock r : pages)
          r.close();
    }
    
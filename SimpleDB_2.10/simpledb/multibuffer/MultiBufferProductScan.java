@@ -1,6 +1,7 @@
 package simpledb.multibuffer;
 
 import simpledb.tx.Transaction;
+import simpledb.buffer.BufferRing;
 import simpledb.record.TableInfo;
 import simpledb.query.*;
 
@@ -14,6 +15,7 @@ public class MultiBufferProductScan implements Scan {
    private TableInfo ti;
    private Transaction tx;
    private int chunksize, nextblknum, filesize;
+   private BufferRing ring;
    
    
    /**
@@ -28,6 +30,7 @@ public class MultiBufferProductScan implements Scan {
       this.tx = tx;
       filesize = tx.size(ti.fileName());
       chunksize = BufferNeeds.bestFactor(filesize);
+      ring = new BufferRing(chunksize);
       beforeFirst();
    }
    
@@ -112,7 +115,7 @@ public class MultiBufferProductScan implements Scan {
       int end = nextblknum + chunksize - 1;
       if (end >= filesize)
          end = filesize - 1;
-      rhsscan = new ChunkScan(ti, nextblknum, end, tx);
+      rhsscan = new ChunkScan(ti, nextblknum, end, tx, ring);
       lhsscan.beforeFirst();
       prodscan = new ProductScan(lhsscan, rhsscan);
       nextblknum = end + 1;
@@ -95,6 +95,8 @@ public class Parser {
          return delete();
       else if (lex.matchKeyword("update"))
          return modify();
+      else if (lex.matchKeyword("vacuum"))
+         return vacuum();
       else
          return create();
    }
@@ -123,6 +125,14 @@ public class Parser {
       return new DeleteData(tblname, pred);
    }
    
+// Method for parsing vacuum commands
+   
+   public VacuumData vacuum() {
+      lex.eatKeyword("vacuum");
+      String tblname = lex.eatId();
+      return new VacuumData(tblname);
+   }
+   
 // Methods for parsing insert commands
    
    public InsertData insert() {
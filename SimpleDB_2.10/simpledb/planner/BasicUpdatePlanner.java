@@ -5,6 +5,7 @@ import simpledb.server.SimpleDB;
 import simpledb.tx.Transaction;
 import simpledb.parse.*;
 import simpledb.query.*;
+import simpledb.record.*;
 
 /**
  * The basic planner for SQL update statements.
@@ -65,4 +66,15 @@ public class BasicUpdatePlanner implements UpdatePlanner {
       SimpleDB.mdMgr().createIndex(data.indexName(), data.tableName(), data.fieldName(), tx);
       return 0;  
    }
+   
+   public int executeVacuum(VacuumData data, Transaction tx) {
+      TableInfo ti = SimpleDB.mdMgr().getTableInfo(data.tableName(), tx);
+      TableCompactor tc = new TableCompactor(ti, tx);
+      int count = 0;
+      while (tc.next() && tc.move() != null)
+         count++;
+      tc.close();
+      tc.truncate();
+      return count;
+   }
 }
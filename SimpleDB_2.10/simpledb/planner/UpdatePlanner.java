@@ -63,4 +63,15 @@ public interface UpdatePlanner {
     * @return the number of affected records
     */
    public int executeCreateIndex(CreateIndexData data, Transaction tx);
+   
+   /**
+    * Executes the specified vacuum statement, which moves
+    * the records of the table into as few blocks as possible
+    * and removes the blocks that are left empty,
+    * and returns the number of moved records.
+    * @param data the parsed representation of the vacuum statement
+    * @param tx the calling transaction
+    * @return the number of moved records
+    */
+   public int executeVacuum(VacuumData data, Transaction tx);
 }
@@ -2,6 +2,7 @@ package simpledb.query;
 
 import static java.sql.Types.INTEGER;
 import simpledb.tx.Transaction;
+import simpledb.buffer.BufferRing;
 import simpledb.record.*;
 
 /**
@@ -23,7 +24,18 @@ public class TableScan implements UpdateScan {
     * @param tx the calling transaction
     */
    public TableScan(TableInfo ti, Transaction tx) {
-      rf  = new RecordFile(ti, tx);
+      this(ti, tx, null);
+   }
+   
+   /**
+    * Creates a new table scan whose record file
+    * uses the specified buffer ring.
+    * @param ti the table's metadata
+    * @param tx the calling transaction
+    * @param ring the buffer ring, or null
+    */
+   public TableScan(TableInfo ti, Transaction tx, BufferRing ring) {
+      rf  = new RecordFile(ti, tx, ring);
       sch = ti.schema();
    }
    
@@ -63,6 +75,22 @@ public class TableScan implements UpdateScan {
       return rf.getString(fldname);
    }
    
+   /**
+    * Returns true if the specified field of the current record
+    * holds the specified string.
+    * A string field is compared on the bytes of its page,
+    * without creating a string.
+    * @param fldname the name of the field
+    * @param val the string to compare with
+    * @return true if the field holds that string
+    */
+   public boolean stringEquals(String fldname, String val) {
+      if (sch.type(fldname) == INTEGER)
+         return new StringConstant(val).equals(getVal(fldname));
+      else
+         return rf.stringEquals(fldname, val);
+   }
+   
    public boolean hasField(String fldname) {
       return sch.hasField(fldname);
    }
@@ -108,10 +108,19 @@ public class Term {
     * Returns true if both of the term's expressions
     * evaluate to the same constant,
     * with respect to the specified scan.
+    * When a field of a table scan is compared with a string constant,
+    * the constant is compared with the bytes of the field's page.
     * @param s the scan
     * @return true if both expressions have the same value in the scan
     */
    public boolean isSatisfied(Scan s) {
+      if (s instanceof TableScan) {
+         TableScan ts = (TableScan) s;
+         if (isStringMatch(lhs, rhs))
+            return ts.stringEquals(lhs.asFieldName(), (String) rhs.asConstant().asJavaVal());
+         if (isStringMatch(rhs, lhs))
+            return ts.stringEquals(rhs.asFieldName(), (String) lhs.asConstant().asJavaVal());
+      }
       Constant lhsval = lhs.evaluate(s);
       Constant rhsval = rhs.evaluate(s);
       return rhsval.equals(lhsval);
@@ -120,4 +129,9 @@ public class Term {
    public String toString() {
       return lhs.toString() + "=" + rhs.toString();
    }
+   
+   private static boolean isStringMatch(Expression fld, Expression val) {
+      return fld.isFieldName() && val.isConstant()
+            && val.asConstant() instanceof StringConstant;
+   }
 }
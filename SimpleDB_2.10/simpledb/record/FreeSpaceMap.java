@@ -0,0 +1,190 @@
+package simpledb.record;
+
+import static simpledb.file.Page.*;
+import simpledb.server.SimpleDB;
+import simpledb.file.*;
+import simpledb.buffer.PageFormatter;
+import simpledb.tx.Transaction;
+
+/**
+ * The free-space map of a table, which records how many bytes
+ * of each block of the table are available to new records,
+ * so that an insertion can go straight to a block that has room.
+ * The map is stored in its own file (see {@link TableInfo#fsmFileName()}).
+ * Each block of the map begins with an upper bound of its entries,
+ * followed by one entry per block of the table,
+ * so that the blocks of the map whose entries are all too small
+ * can be skipped without reading them.
+ * <p>
+ * The map is only a hint.
+ * It is read and written without locks, and its updates
+ * are not logged, so an entry can be out of date:
+ * the record file corrects an entry whenever a block
+ * turns out to have less room than recorded,
+ * and whenever records are deleted from a block.
+ * A table that has blocks but no map (such as a table
+ * created before the maps were introduced) gets its map
+ * rebuilt the first time it is needed.
+ * Likewise, a block of the map that fails its checksum
+ * (such as a page torn by a crash, which recovery cannot repair
+ * since the map is not logged) is reformatted,
+ * and its entries are recomputed from the blocks of the table.
+ */
+class FreeSpaceMap {
+   private TableInfo ti;
+   private Transaction tx;
+   private String filename;
+   private int perBlock;
+
+   /**
+    * Creates the free-space map of the specified table.
+    * @param ti the table's metadata
+    * @param tx the transaction using the map
+    */
+   FreeSpaceMap(TableInfo ti, Transaction tx) {
+      this.ti = ti;
+      this.tx = tx;
+      filename = ti.fsmFileName();
+      perBlock = USABLE_SIZE / INT_SIZE - 1;
+   }
+
+   /**
+    * Returns the first block of the table that has at least
+    * the specified number of free bytes, according to the map.
+    * @param room the number of bytes needed
+    * @return the block number, or -1 if no block has room
+    */
+   int find(int room) {
+      return find(room, 0);
+   }
+
+   /**
+    * Returns the first block of the table, from the specified one on,
+    * that has at least the specified number of free bytes,
+    * according to the map.
+    * @param room the number of bytes needed
+    * @param start the number of the first block to consider
+    * @return the block number, or -1 if no such block has room
+    */
+   int find(int room, int start) {
+      ensureMap();
+      int numblocks = mapSize();
+      for (int i=start/perBlock; i<numblocks; i++) {
+         Block blk = new Block(filename, i);
+         pin(blk);
+         try {
+            if (tx.getHint(blk, 0) < room)
+               continue;
+            int max = 0;
+            for (int k=0; k<perBlock; k++) {
+               int free = tx.getHint(blk, entrypos(k));
+               if (free >= room && i * perBlock + k >= start)
+                  return i * perBlock + k;
+               max = Math.max(max, free);
+            }
+            tx.setHint(blk, 0, max);
+         }
+         finally {
+            tx.unpin(blk);
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Records the number of free bytes of the specified block.
+    * The map is extended if it does not cover the block yet.
+    * @param blknum the number of a block of the table
+    * @param free the number of bytes available to new records
+    */
+   void update(int blknum, int free) {
+      ensureMap();
+      set(blknum, free);
+   }
+
+   /**
+    * Rebuilds the map from the blocks of the table.
+    */
+   void rebuild() {
+      int size = SimpleDB.fileMgr().size(ti.fileName());
+      for (int b=0; b<size; b++) {
+         RecordBlock rb = RecordFile.openBlock(new Block(ti.fileName(), b), ti, tx, null);
+         set(b, rb.freeSpace());
+         rb.close();
+      }
+   }
+
+   private void ensureMap() {
+      if (mapSize() == 0 && SimpleDB.fileMgr().size(ti.fileName()) > 0)
+         rebuild();
+   }
+
+   private void set(int blknum, int free) {
+      int i = blknum / perBlock;
+      while (mapSize() <= i)
+         tx.append(filename, new PageFormatter() {
+            public void format(Page p) {
+               clear(p);
+            }
+         });
+      Block blk = new Block(filename, i);
+      pin(blk);
+      int pos = entrypos(blknum % perBlock);
+      if (tx.getHint(blk, pos) != free)
+         tx.setHint(blk, pos, free);
+      if (tx.getHint(blk, 0) < free)
+         tx.setHint(blk, 0, free);
+      tx.unpin(blk);
+   }
+
+   /**
+    * Pins the specified block of the map,
+    * repairing it first if it fails its checksum.
+    */
+   private void pin(Block blk) {
+      try {
+         tx.pin(blk);
+      }
+      catch(ChecksumException e) {
+         repair(blk);
+         tx.pin(blk);
+      }
+   }
+
+   /**
+    * Overwrites the specified block of the map with zero entries,
+    * and then sets the entries of the table blocks that it covers.
+    * The block is written directly to disk, since it could not
+    * be read into a buffer.
+    */
+   private void repair(Block blk) {
+      Page p = new Page();
+      clear(p);
+      p.write(blk);
+      int first = blk.number() * perBlock;
+      int size = Math.min(SimpleDB.fileMgr().size(ti.fileName()), first + perBlock);
+      for (int b=first; b<size; b++) {
+         RecordBlock rb = RecordFile.openBlock(new Block(ti.fileName(), b), ti, tx, null);
+         set(b, rb.freeSpace());
+         rb.close();
+      }
+   }
+
+   private static void clear(Page p) {
+      for (int pos=0; pos<USABLE_SIZE; pos+=INT_SIZE)
+         p.setInt(pos, 0);
+   }
+
+   /**
+    * Returns the number of blocks of the map.
+    * The sizes of the map and of the table are read
+    * without locking the end of the file, since the map is only a hint.
+    */
+   private int mapSize() {
+      return SimpleDB.fileMgr().size(filename);
+   }
+
+   private static int entrypos(int k) {
+      return (k + 1) * INT_SIZE;
+   }
+}
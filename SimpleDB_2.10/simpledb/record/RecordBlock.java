@@ -0,0 +1,119 @@
+package simpledb.record;
+
+/**
+ * The records of a block of a table.
+ * The placement of the records in the block depends on
+ * the record format of the table (see {@link TableInfo#format()}):
+ * {@link RecordPage} stores them in fixed-size slots,
+ * and {@link SlottedPage} stores variable-length records
+ * behind a slot directory.
+ * Use {@link RecordFile#openBlock} to create the object
+ * that corresponds to a table's format.
+ */
+public interface RecordBlock {
+
+   /**
+    * Closes the manager, by unpinning the block.
+    */
+   public void close();
+
+   /**
+    * Moves to the next record in the block.
+    * @return false if there is no next record.
+    */
+   public boolean next();
+
+   /**
+    * Returns the integer value stored for the
+    * specified field of the current record.
+    * @param fldname the name of the field.
+    * @return the integer stored in that field
+    */
+   public int getInt(String fldname);
+
+   /**
+    * Returns the string value stored for the
+    * specified field of the current record.
+    * @param fldname the name of the field.
+    * @return the string stored in that field
+    */
+   public String getString(String fldname);
+
+   /**
+    * Returns true if the specified field of the current record
+    * holds the specified string.
+    * @param fldname the name of the field.
+    * @param val the string to compare with
+    * @return true if the field holds that string
+    */
+   public boolean stringEquals(String fldname, String val);
+
+   /**
+    * Stores an integer at the specified field
+    * of the current record.
+    * @param fldname the name of the field
+    * @param val the integer value stored in that field
+    */
+   public void setInt(String fldname, int val);
+
+   /**
+    * Stores a string at the specified field
+    * of the current record.
+    * @param fldname the name of the field
+    * @param val the string value stored in that field
+    */
+   public void setString(String fldname, String val);
+
+   /**
+    * Deletes the current record.
+    * The current record does not change;
+    * to get to the next record, call next().
+    */
+   public void delete();
+
+   /**
+    * Inserts a new, blank record somewhere in the block,
+    * and makes it the current record.
+    * Return false if there was no room for it.
+    * @return false if the insertion was not possible
+    */
+   public boolean insert();
+
+   /**
+    * Returns true if the block holds no record,
+    * nor any part of a record.
+    * The current record does not change.
+    * @return true if the block is empty
+    */
+   public boolean isEmpty();
+
+   /**
+    * Returns the number of bytes of the block
+    * that are available to new records.
+    * A record can be inserted in the block if this value
+    * is at least {@link #recordRoom()}.
+    * @return the number of free bytes
+    */
+   public int freeSpace();
+
+   /**
+    * Returns the number of free bytes that the block
+    * needs in order to insert a record.
+    * @return the room needed by a new record
+    */
+   public int recordRoom();
+
+   /**
+    * Sets the current record to be the record having the
+    * specified ID.
+    * An ID of -1 positions the block before its first record.
+    * @param id the ID of the record within the block.
+    */
+   public void moveToId(int id);
+
+   /**
+    * Returns the ID of the current record.
+    * @return the ID of the current record
+    */
+   public int currentId();
+}
@@ -1,20 +1,41 @@
 package simpledb.record;
 
+import simpledb.server.SimpleDB;
 import simpledb.file.Block;
+import simpledb.buffer.*;
 import simpledb.tx.Transaction;
 
 /**
  * Manages a file of records.
  * There are methods for iterating through the records
  * and accessing their contents.
+ * When the record file moves from a block to the next one,
+ * it asks for the following blocks to be read ahead.
+ * The records of each block are managed by a {@link RecordBlock}
+ * that corresponds to the format of the table.
+ * <p>
+ * Only a scan asks the transaction for the size of the file,
+ * which locks the end of the file against appends until the transaction ends.
+ * Inserting a record reads the size without locking,
+ * so that transactions can insert into the same table
+ * (and append blocks to it) concurrently.
+ * The first block of an empty file is the exception:
+ * it is appended only after the size has been read under the lock,
+ * so two transactions that open the empty file at the same time
+ * do not both append a first block
+ * (one of them waits, or is aborted if both had read the size).
  * @author Edward Sciore
  */
 public class RecordFile {
    private TableInfo ti;
    private Transaction tx;
    private String filename;
-   private RecordPage rp;
+   private RecordBlock rp;
    private int currentblknum;
+   private int readahead; // the last block requested for read-ahead
+   private BufferRing ring;
+   private FreeSpaceMap fsm;
+   private boolean freed = false; // records were deleted from the current block
    
    /**
     * Constructs an object to manage a file of records.
@@ -23,19 +44,37 @@ public class RecordFile {
     * @param tx the transaction
     */
    public RecordFile(TableInfo ti, Transaction tx) {
+      this(ti, tx, null);
+   }
+   
+   /**
+    * Constructs an object to manage a file of records,
+    * whose blocks are read into the buffers of the specified ring.
+    * If the ring is null, then a ring is created as soon as
+    * a sequential scan of a large file is detected.
+    * Blocks accessed by RID never use the ring.
+    * @param ti the table metadata
+    * @param tx the transaction
+    * @param ring the buffer ring, or null
+    */
+   public RecordFile(TableInfo ti, Transaction tx, BufferRing ring) {
       this.ti = ti;
       this.tx = tx;
+      this.ring = ring;
       filename = ti.fileName();
-      if (tx.size(filename) == 0)
+      fsm = new FreeSpaceMap(ti, tx);
+      // the size is read again under the lock on the end of the file,
+      // so that only one transaction appends the first block
+      if (SimpleDB.fileMgr().size(filename) == 0 && tx.size(filename) == 0)
          appendBlock();
-      moveTo(0);
+      moveTo(0, this.ring);
    }
    
    /**
     * Closes the record file.
     */
    public void close() {
-      rp.close();
+      leaveBlock();
    }
    
    /**
@@ -43,7 +82,7 @@ public class RecordFile {
     * will wind up at the first record. 
     */
    public void beforeFirst() {
-      moveTo(0);
+      moveTo(0, ring);
    }
    
    /**
@@ -57,7 +96,7 @@ public class RecordFile {
             return true;
          if (atLastBlock())
             return false;
-         moveTo(currentblknum + 1);
+         moveToNextBlock();
       }
    }
    
@@ -81,6 +120,18 @@ public class RecordFile {
       return rp.getString(fldname);
    }
    
+   /**
+    * Returns true if the specified field
+    * in the current record holds the specified string,
+    * without creating a string from the page.
+    * @param fldname the name of the field
+    * @param val the string to compare with
+    * @return true if the field holds that string
+    */
+   public boolean stringEquals(String fldname, String val) {
+      return rp.stringEquals(fldname, val);
+   }
+   
    /**
     * Sets the value of the specified field 
     * in the current record.
@@ -110,19 +161,36 @@ public class RecordFile {
     */
    public void delete() {
       rp.delete();
+      freed = true;
    }
    
    /**
-    * Inserts a new, blank record somewhere in the file
-    * beginning at the current record.
-    * If the new record does not fit into an existing block,
-    * then a new block is appended to the file.
+    * Inserts a new, blank record somewhere in the file.
+    * The record is inserted in the current block if it has room.
+    * Otherwise, the free-space map of the table gives a block that has room;
+    * if there is none, then a new block is appended to the file.
+    * The map entry of a block that turns out to be full is corrected.
     */
    public void insert() {
-      while (!rp.insert()) {
-         if (atLastBlock())
-            appendBlock();
-         moveTo(currentblknum + 1);
+      if (rp.insert())
+         return;
+      int room = rp.recordRoom();
+      while (true) {
+         fsm.update(currentblknum, rp.freeSpace());
+         int b = fsm.find(room);
+         boolean appended = false;
+         if (b < 0 || b == currentblknum || b >= SimpleDB.fileMgr().size(filename)) {
+            b = appendBlock();
+            appended = true;
+         }
+         moveTo(b, ring);
+         if (rp.insert()) {
+            if (appended)
+               fsm.update(b, rp.freeSpace());
+            return;
+         }
+         if (appended)
+            throw new RuntimeException("record too large for a block of " + filename);
       }
    }
    
@@ -132,7 +200,7 @@ public class RecordFile {
     * @param rid a record identifier
     */
    public void moveToRid(RID rid) {
-      moveTo(rid.blockNumber());
+      moveTo(rid.blockNumber(), null);
       rp.moveToId(rid.id());
    }
    
@@ -145,20 +213,85 @@ public class RecordFile {
       return new RID(currentblknum, id);
    }
    
-   private void moveTo(int b) {
+   /**
+    * Creates the manager of the records of the specified block,
+    * according to the record format of the table.
+    * The block is pinned with a buffer of the specified ring.
+    * @param blk a reference to the disk block
+    * @param ti the table's metadata
+    * @param tx the transaction performing the operations
+    * @param ring the buffer ring, or null
+    * @return the manager of the block's records
+    */
+   public static RecordBlock openBlock(Block blk, TableInfo ti, Transaction tx,
+                                       BufferRing ring) {
+      if (ti.format() == TableInfo.SLOTTED)
+         return new SlottedPage(blk, ti, tx, ring);
+      else
+         return new RecordPage(blk, ti, tx, ring);
+   }
+   
+   /**
+    * Moves to the next block of a sequential pass through the file.
+    * A ring is created as soon as the file turns out to be large.
+    */
+   private void moveToNextBlock() {
+      if (ring == null && BufferRing.isLargeScan(tx.size(filename)))
+         ring = new BufferRing();
+      moveTo(currentblknum + 1, ring);
+      readAhead(ring);
+   }
+   
+   private void moveTo(int b, BufferRing ring) {
       if (rp != null)
-         rp.close();
+         leaveBlock();
+      if (rp == null || b != currentblknum + 1)
+         readahead = b;
       currentblknum = b;
       Block blk = new Block(filename, currentblknum);
-      rp = new RecordPage(blk, ti, tx);
+      rp = openBlock(blk, ti, tx, ring);
+   }
+   
+   /**
+    * Asks for the blocks that follow the current block
+    * to be read ahead.
+    * At most {@link SimpleDB#PREFETCH_DEPTH} blocks beyond the
+    * current one are requested, and never more than the ring
+    * can hold alongside the current block.
+    * Each block is requested only once.
+    */
+   private void readAhead(BufferRing ring) {
+      int depth = SimpleDB.PREFETCH_DEPTH;
+      if (ring != null)
+         depth = Math.min(depth, ring.size() - 1);
+      int last = Math.min(currentblknum + depth, tx.size(filename) - 1);
+      for (int b = Math.max(readahead, currentblknum) + 1; b <= last; b++)
+         tx.prefetch(new Block(filename, b), ring);
+      readahead = Math.max(readahead, last);
+   }
+   
+   /**
+    * Closes the current block, after recording its free space
+    * in the free-space map if records were deleted from it.
+    */
+   private void leaveBlock() {
+      if (freed) {
+         fsm.update(currentblknum, rp.freeSpace());
+         freed = false;
+      }
+      rp.close();
    }
    
    private boolean atLastBlock() {
-      return currentblknum == tx.size(filename) - 1;
+      return currentblknum >= tx.size(filename) - 1;
    }
    
-   private void appendBlock() {
-      RecordFormatter fmtr = new RecordFormatter(ti);
-      tx.append(filename, fmtr);
+   private int appendBlock() {
+      PageFormatter fmtr;
+      if (ti.format() == TableInfo.SLOTTED)
+         fmtr = new SlottedFormatter();
+      else
+         fmtr = new RecordFormatter(ti);
+      return tx.append(filename, fmtr, ring).number();
    }
 }
\ No newline at end of file
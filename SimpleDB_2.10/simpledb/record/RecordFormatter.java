@@ -25,16 +25,25 @@ class RecordFormatter implements PageFormatter {
    /** 
     * Formats the page by allocating as many record slots
     * as possible, given the record length.
-    * Each record slot is assigned a flag of EMPTY.
+    * Each record slot is assigned a flag of EMPTY,
+    * or in the BITMAP format, the bits of the header are cleared.
     * Each integer field is given a value of 0, and
     * each string field is given a value of "".
     * @see simpledb.buffer.PageFormatter#format(simpledb.file.Page)
     */
    public void format(Page page) {
-      int recsize = ti.recordLength() + INT_SIZE;
-      for (int pos=0; pos+recsize<=BLOCK_SIZE; pos += recsize) {
-         page.setInt(pos, EMPTY);
-         makeDefaultRecord(page, pos);
+      boolean bitmap = (ti.format() == TableInfo.BITMAP);
+      int flagsize = bitmap ? 0 : INT_SIZE;
+      int recsize = ti.recordLength() + flagsize;
+      int numslots = RecordPage.slotCount(ti);
+      int hdrsize = RecordPage.headerSize(ti, numslots);
+      for (int pos=0; pos<hdrsize; pos += INT_SIZE)
+         page.setInt(pos, 0);
+      for (int slot=0; slot<numslots; slot++) {
+         int pos = hdrsize + slot * recsize;
+         if (!bitmap)
+            page.setInt(pos, EMPTY);
+         makeDefaultRecord(page, pos + flagsize);
       }
    }
    
@@ -42,9 +51,9 @@ class RecordFormatter implements PageFormatter {
       for (String fldname : ti.schema().fields()) {
          int offset = ti.offset(fldname);
          if (ti.schema().type(fldname) == INTEGER)
-            page.setInt(pos + INT_SIZE + offset, 0);
+            page.setInt(pos + offset, 0);
          else
-            page.setString(pos + INT_SIZE + offset, "");
+            page.setString(pos + offset, "");
       }
    }
 }
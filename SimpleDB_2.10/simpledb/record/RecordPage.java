@@ -2,19 +2,39 @@ package simpledb.record;
 
 import static simpledb.file.Page.*;
 import simpledb.file.Block;
+import simpledb.buffer.BufferRing;
 import simpledb.tx.Transaction;
 
 /**
- * Manages the placement and access of records in a block.
+ * Manages the placement and access of fixed-size records in a block.
+ * In the FIXED format, the block is divided into slots of the record length
+ * plus a flag, which says whether the slot is in use.
+ * In the BITMAP format, the block begins with a header holding
+ * one bit per slot, which is set if the slot is in use,
+ * and the rest of the block is divided into slots of the record length.
+ * The next used or empty slot is then found by scanning
+ * the bits of the header, 32 slots per integer read from the block.
+ * <p>
+ * In the FIXED format, each record is only accessed through its own slot,
+ * so the fields of the current record are read and written
+ * under a lock on the record, and transactions can
+ * update different records of the block concurrently.
+ * Moving through the block with next() locks the whole block,
+ * so that no record can be inserted behind a scan.
+ * In the BITMAP format, the bits of several slots share an integer
+ * of the header, whose old value would be restored
+ * if a transaction that changed it rolled back,
+ * so the whole block is locked for every access.
  * @author Edward Sciore
  */
-public class RecordPage {
+public class RecordPage implements RecordBlock {
    public static final int EMPTY = 0, INUSE = 1;
    
    private Block blk;
    private TableInfo ti;
    private Transaction tx;
-   private int slotsize;
+   private int slotsize, flagsize, hdrsize, numslots;
+   private boolean bitmap;
    private int currentslot = -1;
    
    /** Creates the record manager for the specified block.
@@ -24,12 +44,27 @@ public class RecordPage {
      * @param tx the transaction performing the operations
      */
    public RecordPage(Block blk, TableInfo ti, Transaction tx) {
+      this(blk, ti, tx, null);
+   }
+   
+   /** Creates the record manager for the specified block,
+     * pinning the block with a buffer of the specified ring.
+     * @param blk a reference to the disk block
+     * @param ti the table's metadata
+     * @param tx the transaction performing the operations
+     * @param ring the scan's buffer ring, or null
+     */
+   public RecordPage(Block blk, TableInfo ti, Transaction tx, BufferRing ring) {
       this.blk = blk;
       this.ti = ti;
       this.tx = tx;
-      slotsize = ti.recordLength() + INT_SIZE;
-      tx.pin(blk);
-  }
+      bitmap = (ti.format() == TableInfo.BITMAP);
+      flagsize = bitmap ? 0 : INT_SIZE;
+      slotsize = ti.recordLength() + flagsize;
+      numslots = slotCount(ti);
+      hdrsize = headerSize(ti, numslots);
+      tx.pin(blk, ring);
+   }
    
    /**
     * Closes the manager, by unpinning the block.
@@ -46,7 +81,7 @@ public class RecordPage {
     * @return false if there is no next record.
     */
    public boolean next() {
-      return searchFor(INUSE);
+      return bitmap ? searchBits(INUSE) : searchFor(INUSE);
    }
    
    /**
@@ -57,7 +92,10 @@ public class RecordPage {
     */
    public int getInt(String fldname) {
       int position = fieldpos(fldname);
-      return tx.getInt(blk, position);
+      if (bitmap)
+         return tx.getInt(blk, position);
+      else
+         return tx.getRecordInt(blk, currentslot, position);
    }
    
    /**
@@ -68,7 +106,26 @@ public class RecordPage {
     */
    public String getString(String fldname) {
       int position = fieldpos(fldname);
-      return tx.getString(blk, position);
+      if (bitmap)
+         return tx.getString(blk, position);
+      else
+         return tx.getRecordString(blk, currentslot, position);
+   }
+   
+   /**
+    * Returns true if the specified field of the current record
+    * holds the specified string.
+    * The comparison is made on the bytes of the page.
+    * @param fldname the name of the field.
+    * @param val the string to compare with
+    * @return true if the field holds that string
+    */
+   public boolean stringEquals(String fldname, String val) {
+      int position = fieldpos(fldname);
+      if (bitmap)
+         return tx.stringEquals(blk, position, val);
+      else
+         return tx.recordStringEquals(blk, currentslot, position, val);
    }
    
    /**
@@ -79,7 +136,10 @@ public class RecordPage {
     */
    public void setInt(String fldname, int val) {
       int position = fieldpos(fldname);
-      tx.setInt(blk, position, val);
+      if (bitmap)
+         tx.setInt(blk, position, val);
+      else
+         tx.setRecordInt(blk, currentslot, position, val);
    }
    
    /**
@@ -90,7 +150,10 @@ public class RecordPage {
     */
    public void setString(String fldname, String val) {
       int position = fieldpos(fldname);
-      tx.setString(blk, position, val);
+      if (bitmap)
+         tx.setString(blk, position, val);
+      else
+         tx.setRecordString(blk, currentslot, position, val);
    }
    
    /**
@@ -100,23 +163,79 @@ public class RecordPage {
     * To get to the next record, call next().
     */
    public void delete() {
-      int position = currentpos();
-      tx.setInt(blk, position, EMPTY);
+      if (bitmap)
+         setBit(currentslot, EMPTY);
+      else
+         tx.setRecordInt(blk, currentslot, currentpos(), EMPTY);
    }
    
    /**
     * Inserts a new, blank record somewhere in the page.
     * Return false if there were no available slots.
+    * In the FIXED format, a slot is only taken if
+    * it can be locked without waiting;
+    * a slot that another transaction has locked may belong
+    * to a deleted record that would come back if it rolled back.
     * @return false if the insertion was not possible
     */
    public boolean insert() {
       currentslot = -1;
-      boolean found = searchFor(EMPTY);
-      if (found) {
+      if (bitmap) {
+         boolean found = searchBits(EMPTY);
+         if (found)
+            setBit(currentslot, INUSE);
+         return found;
+      }
+      while (searchEmpty()) {
          int position = currentpos();
-         tx.setInt(blk, position, INUSE);
+         if (tx.tryLockRecord(blk, currentslot)
+               && tx.getRecordInt(blk, currentslot, position) == EMPTY) {
+            tx.setRecordInt(blk, currentslot, position, INUSE);
+            return true;
+         }
       }
-      return found;
+      return false;
+   }
+   
+   /**
+    * Returns true if no slot of the block is in use.
+    * @return true if the block is empty
+    */
+   public boolean isEmpty() {
+      int saved = currentslot;
+      currentslot = -1;
+      boolean found = bitmap ? searchBits(INUSE) : searchFor(INUSE);
+      currentslot = saved;
+      return !found;
+   }
+   
+   /**
+    * Returns the number of bytes in the empty slots of the block.
+    * The block is not locked, since the value is only used
+    * for the free-space map.
+    * @return the number of free bytes
+    */
+   public int freeSpace() {
+      int empty = 0;
+      if (bitmap) {
+         empty = numslots;
+         for (int pos=0; pos<hdrsize; pos+=INT_SIZE)
+            empty -= Integer.bitCount(tx.getHint(blk, pos));
+      }
+      else {
+         for (int slot=0; slot<numslots; slot++)
+            if (tx.getHint(blk, slot * slotsize) == EMPTY)
+               empty++;
+      }
+      return empty * slotsize;
+   }
+   
+   /**
+    * Returns the size of a slot.
+    * @return the room needed by a new record
+    */
+   public int recordRoom() {
+      return slotsize;
    }
    
    /**
@@ -136,17 +255,48 @@ public class RecordPage {
       return currentslot;
    }
    
+   /**
+    * Returns the number of slots in a block of the specified table.
+    * In the BITMAP format, this is the largest number of slots
+    * that fit in the block together with their header.
+    * @param ti the table's metadata
+    * @return the number of slots in a block
+    */
+   static int slotCount(TableInfo ti) {
+      if (ti.format() != TableInfo.BITMAP)
+         return USABLE_SIZE / (ti.recordLength() + INT_SIZE);
+      int reclen = ti.recordLength();
+      int n = USABLE_SIZE * 8 / (reclen * 8 + 1);
+      while (headerSize(ti, n) + n * reclen > USABLE_SIZE)
+         n--;
+      return n;
+   }
+   
+   /**
+    * Returns the size of the header of a block of the specified table,
+    * which is a whole number of integers in the BITMAP format,
+    * and 0 in the FIXED format.
+    * @param ti the table's metadata
+    * @param numslots the number of slots in a block
+    * @return the size of the header, in bytes
+    */
+   static int headerSize(TableInfo ti, int numslots) {
+      if (ti.format() != TableInfo.BITMAP)
+         return 0;
+      return (numslots + 31) / 32 * INT_SIZE;
+   }
+   
    private int currentpos() {
-      return currentslot * slotsize;
+      return hdrsize + currentslot * slotsize;
    }
    
    private int fieldpos(String fldname) {
-      int offset = INT_SIZE + ti.offset(fldname);
+      int offset = flagsize + ti.offset(fldname);
       return currentpos() + offset;
    }
    
    private boolean isValidSlot() {
-      return currentpos() + slotsize <= BLOCK_SIZE;
+      return currentslot < numslots;
    }
    
    private boolean searchFor(int flag) {
@@ -159,4 +309,50 @@ public class RecordPage {
       }
       return false;
    }
+   
+   /**
+    * Moves to the next slot that looks empty, without locking the block.
+    * The slot may be in use by the time it is locked.
+    */
+   private boolean searchEmpty() {
+      currentslot++;
+      while (isValidSlot()) {
+         if (tx.getHint(blk, currentpos()) == EMPTY)
+            return true;
+         currentslot++;
+      }
+      return false;
+   }
+   
+   /**
+    * Moves to the next slot whose bit in the header
+    * says that it is in use (or empty, as specified).
+    */
+   private boolean searchBits(int flag) {
+      int slot = currentslot + 1;
+      while (slot < numslots) {
+         int bits = tx.getInt(blk, bitpos(slot));
+         if (flag == EMPTY)
+            bits = ~bits;
+         bits &= -1 << (slot & 31);
+         if (bits != 0) {
+            slot = (slot & ~31) + Integer.numberOfTrailingZeros(bits);
+            break;
+         }
+         slot = (slot & ~31) + 32;
+      }
+      currentslot = Math.min(slot, numslots);
+      return isValidSlot();
+   }
+   
+   private void setBit(int slot, int flag) {
+      int pos = bitpos(slot);
+      int bits = tx.getInt(blk, pos);
+      int mask = 1 << (slot & 31);
+      tx.setInt(blk, pos, (flag == INUSE) ? (bits | mask) : (bits & ~mask));
+   }
+   
+   private static int bitpos(int slot) {
+      return (slot >>> 5) * INT_SIZE;
+   }
 }
@@ -0,0 +1,22 @@
+package simpledb.record;
+
+import static simpledb.record.SlottedPage.*;
+import simpledb.file.Page;
+import simpledb.buffer.PageFormatter;
+
+/**
+ * An object that can format a page to look like
+ * an empty block of variable-length records.
+ */
+class SlottedFormatter implements PageFormatter {
+
+   /** 
+    * Formats the page with an empty slot directory,
+    * and with all of its space free.
+    * @see simpledb.buffer.PageFormatter#format(simpledb.file.Page)
+    */
+   public void format(Page page) {
+      page.setInt(NUMSLOTS, 0);
+      page.setInt(FREEPTR, HEADER_SIZE);
+   }
+}
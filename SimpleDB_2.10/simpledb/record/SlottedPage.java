@@ -0,0 +1,536 @@
+package simpledb.record;
+
+import static java.sql.Types.INTEGER;
+import static simpledb.file.Page.*;
+import static simpledb.record.RecordPage.INUSE;
+import simpledb.file.*;
+import simpledb.buffer.BufferRing;
+import simpledb.tx.Transaction;
+import java.util.*;
+
+/**
+ * Manages the placement and access of variable-length records in a block.
+ * The block begins with a header that holds the number of slots
+ * and the offset of its free space, and ends with a slot directory,
+ * which grows towards the beginning of the block.
+ * Slot i is the i-th pair of integers from the end of the block,
+ * and holds the offset and the allocated length of record i
+ * (or an offset of 0, if the slot is empty).
+ * The records follow the header.
+ * <p>
+ * A record begins with a flag, followed by its fields
+ * in the order of their offsets (see {@link TableInfo#fieldOrder()}).
+ * An integer occupies 4 bytes, and a string occupies
+ * only the bytes of its current value.
+ * When a string changes size, the record is rewritten,
+ * either in place or at the end of the free space;
+ * the block is compacted when its free space is fragmented.
+ * A record that no longer fits in its block is moved to another block,
+ * and its slot keeps a forwarding record that holds the new location,
+ * so that the RID of the record does not change.
+ * Records that were moved are only accessed through their forwarding record.
+ * <p>
+ * Each change to the block is made, and logged, as a sequence of integers,
+ * so that undoing the changes restores every byte that they overwrote.
+ * @author Edward Sciore
+ */
+public class SlottedPage implements RecordBlock {
+   /**
+    * The flags of the forwarding record of a record that was moved,
+    * and of a moved record.
+    * A record stored in its own slot has the flag {@link RecordPage#INUSE}.
+    */
+   public static final int FORWARD = 2, MOVED = 3;
+
+   static final int NUMSLOTS = 0, FREEPTR = INT_SIZE, HEADER_SIZE = 2 * INT_SIZE;
+   static final int SLOT_SIZE = 2 * INT_SIZE;
+   static final int MIN_RECORD = 3 * INT_SIZE; // large enough for a forwarding record
+
+   private static final ThreadLocal<Page> images = new ThreadLocal<Page>() {
+      protected Page initialValue() {
+         return new Page();
+      }
+   };
+
+   private Block blk;
+   private TableInfo ti;
+   private Transaction tx;
+   private boolean[] isInt;
+   private int currentslot = -1;
+   private Block datablk = null; // the block of a moved current record
+   private int dataslot;
+
+   /** Creates the record manager for the specified block,
+     * pinning the block with a buffer of the specified ring.
+     * @param blk a reference to the disk block
+     * @param ti the table's metadata
+     * @param tx the transaction performing the operations
+     * @param ring the scan's buffer ring, or null
+     */
+   public SlottedPage(Block blk, TableInfo ti, Transaction tx, BufferRing ring) {
+      this.blk = blk;
+      this.ti = ti;
+      this.tx = tx;
+      List<String> fields = ti.fieldOrder();
+      isInt = new boolean[fields.size()];
+      for (int i=0; i<isInt.length; i++)
+         isInt[i] = (ti.schema().type(fields.get(i)) == INTEGER);
+      tx.pin(blk, ring);
+   }
+
+   public void close() {
+      if (blk != null) {
+         release();
+         tx.unpin(blk);
+         blk = null;
+      }
+   }
+
+   /**
+    * Moves to the next record in the block.
+    * Moved records are skipped,
+    * since they are reached from their forwarding record.
+    * @return false if there is no next record.
+    */
+   public boolean next() {
+      int n = tx.getInt(blk, NUMSLOTS);
+      for (currentslot++; currentslot < n; currentslot++) {
+         int off = offset(blk, currentslot);
+         if (off != 0 && tx.getInt(blk, off) != MOVED)
+            return true;
+      }
+      return false;
+   }
+
+   public int getInt(String fldname) {
+      Block b = locate();
+      return tx.getInt(b, fieldpos(b, fldname));
+   }
+
+   public String getString(String fldname) {
+      Block b = locate();
+      return tx.getString(b, fieldpos(b, fldname));
+   }
+
+   public boolean stringEquals(String fldname, String val) {
+      Block b = locate();
+      return tx.stringEquals(b, fieldpos(b, fldname), val);
+   }
+
+   public void setInt(String fldname, int val) {
+      Block b = locate();
+      tx.setInt(b, fieldpos(b, fldname), val);
+   }
+
+   /**
+    * Stores a string at the specified field of the current record.
+    * A string of the same size as the current one is overwritten;
+    * otherwise, the record is rewritten with the new value,
+    * and moved if it no longer fits.
+    * @param fldname the name of the field
+    * @param val the string value stored in that field
+    */
+   public void setString(String fldname, String val) {
+      Block b = locate();
+      int slot = (b == blk) ? currentslot : dataslot;
+      int pos = fieldpos(b, fldname);
+      Page img = images.get();
+      img.setString(0, val);
+      if (img.getInt(0) == tx.getInt(b, pos)) {
+         tx.setString(b, pos, val);
+         return;
+      }
+      int size = buildImage(b, slot, ti.fieldNumber(fldname), val, img);
+      if (!rewrite(b, slot, img, size))
+         move(img, size);
+   }
+
+   /**
+    * Deletes the current record, and the record it forwards to.
+    * The space of the record is reclaimed
+    * when the block is next compacted.
+    */
+   public void delete() {
+      Block b = locate();
+      if (b != blk)
+         free(b, dataslot);
+      free(blk, currentslot);
+      release();
+   }
+
+   /**
+    * Inserts a new, blank record in the block.
+    * The record is inserted only if the block has room
+    * for the record at its largest (or for a block-sized record),
+    * so that setting its fields does not make it move.
+    * @return false if the insertion was not possible
+    */
+   public boolean insert() {
+      release();
+      Page img = images.get();
+      img.setInt(0, INUSE);
+      int pos = INT_SIZE;
+      for (int i=0; i<isInt.length; i++) {
+         img.setInt(pos, 0);
+         pos += INT_SIZE;
+      }
+      int slot = place(blk, img, align(pos), maxRecordSize());
+      if (slot < 0)
+         return false;
+      currentslot = slot;
+      return true;
+   }
+
+   /**
+    * Returns true if no slot of the block is in use,
+    * including the slots that hold the data of forwarded records.
+    * @return true if the block is empty
+    */
+   public boolean isEmpty() {
+      int n = tx.getInt(blk, NUMSLOTS);
+      for (int slot=0; slot<n; slot++)
+         if (offset(blk, slot) != 0)
+            return false;
+      return true;
+   }
+
+   /**
+    * Returns the number of free bytes the block would have after
+    * compaction, less the size of a directory entry
+    * if the directory has no empty slot.
+    * @return the number of free bytes
+    */
+   public int freeSpace() {
+      return freeSpace(blk);
+   }
+
+   /**
+    * Returns the room reserved for a new record.
+    * @return the room needed by a new record
+    */
+   public int recordRoom() {
+      return maxRecordSize();
+   }
+
+   public void moveToId(int id) {
+      release();
+      currentslot = id;
+   }
+
+   public int currentId() {
+      return currentslot;
+   }
+
+   /**
+    * Returns the block that holds the current record,
+    * following its forwarding record if it has one.
+    * The block of a moved record stays pinned
+    * while the record is current.
+    */
+   private Block locate() {
+      int off = offset(blk, currentslot);
+      if (off == 0 || tx.getInt(blk, off) != FORWARD) {
+         release();
+         return blk;
+      }
+      int blknum = tx.getInt(blk, off + INT_SIZE);
+      if (datablk == null || datablk.number() != blknum) {
+         release();
+         datablk = new Block(blk.fileName(), blknum);
+         tx.pin(datablk);
+      }
+      dataslot = tx.getInt(blk, off + 2*INT_SIZE);
+      return datablk;
+   }
+
+   private void release() {
+      if (datablk != null) {
+         tx.unpin(datablk);
+         datablk = null;
+      }
+   }
+
+   private int fieldpos(Block b, String fldname) {
+      int slot = (b == blk) ? currentslot : dataslot;
+      int pos = offset(b, slot) + INT_SIZE;
+      int n = ti.fieldNumber(fldname);
+      for (int i=0; i<n; i++)
+         pos += isInt[i] ? INT_SIZE : INT_SIZE + tx.getInt(b, pos);
+      return pos;
+   }
+
+   /**
+    * Copies the record in the specified slot into the image,
+    * replacing the value of the specified string field,
+    * and returns the size of the image.
+    */
+   private int buildImage(Block b, int slot, int fldnum, String val, Page img) {
+      int src = offset(b, slot);
+      img.setInt(0, tx.getInt(b, src));
+      src += INT_SIZE;
+      int dest = INT_SIZE;
+      for (int i=0; i<isInt.length; i++) {
+         if (isInt[i]) {
+            img.setInt(dest, tx.getInt(b, src));
+            src += INT_SIZE;
+            dest += INT_SIZE;
+         }
+         else {
+            int len = tx.getInt(b, src);
+            img.setString(dest, (i == fldnum) ? val : tx.getString(b, src));
+            src += INT_SIZE + len;
+            dest += INT_SIZE + img.getInt(dest);
+         }
+      }
+      return align(dest);
+   }
+
+   /**
+    * Writes the image over the record in the specified slot
+    * of the block, if the block has room for it.
+    * The record stays in place if it fits in its allocated space,
+    * or if it is the last record and the free space can extend it;
+    * otherwise, it is written at the end of the free space,
+    * after compacting the block if necessary.
+    * @return false if the block has no room for the image
+    */
+   private boolean rewrite(Block b, int slot, Page img, int size) {
+      int off = offset(b, slot);
+      int len = length(b, slot);
+      int freeptr = tx.getInt(b, FREEPTR);
+      boolean last = (off + len == freeptr);
+      if (size <= len || (last && size - len <= contiguous(b))) {
+         copyImage(b, off, img, size);
+         if (last) {
+            setLength(b, slot, size);
+            setInt(b, FREEPTR, off + size);
+         }
+         return true;
+      }
+      if (size > contiguous(b)) {
+         if (size > reclaimable(b, slot))
+            return false;
+         compact(b, slot);
+      }
+      off = tx.getInt(b, FREEPTR);
+      copyImage(b, off, img, size);
+      setInt(b, slotpos(slot), off);
+      setLength(b, slot, size);
+      setInt(b, FREEPTR, off + size);
+      return true;
+   }
+
+   /**
+    * Moves the current record, whose new contents are in the image,
+    * to another block, and makes its slot forward to it.
+    * The record is moved to a block that has room according to
+    * the table's free-space map, or else to the last block of the file
+    * if it has room, and to a new block otherwise.
+    */
+   private void move(Page img, int size) {
+      img.setInt(0, MOVED);
+      FreeSpaceMap fsm = new FreeSpaceMap(ti, tx);
+      Block target = null;
+      int slot = -1;
+      int last = tx.size(blk.fileName()) - 1;
+      int b = fsm.find(size + SLOT_SIZE);
+      if (b >= 0 && b < last) {
+         target = new Block(blk.fileName(), b);
+         slot = placeIn(target, img, size, fsm);
+      }
+      if (slot < 0) {
+         target = new Block(blk.fileName(), last);
+         slot = placeIn(target, img, size, fsm);
+      }
+      if (slot < 0) {
+         target = tx.append(blk.fileName(), new SlottedFormatter());
+         slot = placeIn(target, img, size, fsm);
+         if (slot < 0)
+            throw new RuntimeException("record too large for a block of " + blk.fileName());
+      }
+      if (datablk != null)
+         free(datablk, dataslot);
+      int off = offset(blk, currentslot);
+      setInt(blk, off, FORWARD);
+      setInt(blk, off + INT_SIZE, target.number());
+      setInt(blk, off + 2*INT_SIZE, slot);
+      release();
+      datablk = target;
+      dataslot = slot;
+   }
+
+   /**
+    * Writes the image of a moved record into a slot of the target block,
+    * unless the target is the block of the current slot or of its data.
+    * The free-space map entry of the target is brought up to date.
+    * The target stays pinned if the record was placed in it.
+    * @return the slot, or -1 if the target cannot take the record
+    */
+   private int placeIn(Block target, Page img, int size, FreeSpaceMap fsm) {
+      if (target.equals(blk) || (datablk != null && target.equals(datablk)))
+         return -1;
+      tx.pin(target);
+      int slot = place(target, img, size, size);
+      fsm.update(target.number(), freeSpace(target));
+      if (slot < 0)
+         tx.unpin(target);
+      return slot;
+   }
+
+   /**
+    * Writes the image into a slot of the block,
+    * provided that the block has room for a record of
+    * the specified size in addition to the directory entry.
+    * @return the slot, or -1 if the block has no room
+    */
+   private int place(Block b, Page img, int size, int room) {
+      int n = tx.getInt(b, NUMSLOTS);
+      int slot = 0;
+      while (slot < n && offset(b, slot) != 0)
+         slot++;
+      int needed = room + ((slot == n) ? SLOT_SIZE : 0);
+      if (needed > contiguous(b)) {
+         if (needed > reclaimable(b, -1))
+            return -1;
+         compact(b, -1);
+      }
+      if (slot == n)
+         setInt(b, NUMSLOTS, n + 1);
+      int off = tx.getInt(b, FREEPTR);
+      copyImage(b, off, img, size);
+      setInt(b, slotpos(slot), off);
+      setLength(b, slot, size);
+      setInt(b, FREEPTR, off + size);
+      return slot;
+   }
+
+   /**
+    * Empties the specified slot.
+    * The space of the last record is returned to the free space.
+    */
+   private void free(Block b, int slot) {
+      int off = offset(b, slot);
+      if (off + length(b, slot) == tx.getInt(b, FREEPTR))
+         setInt(b, FREEPTR, off);
+      setInt(b, slotpos(slot), 0);
+      setLength(b, slot, 0);
+   }
+
+   /**
+    * Moves the records of the block next to each other,
+    * in the order of their offsets, after the header,
+    * and shrinks their allocated space to their current size.
+    * The record in the specified slot (if not -1) is discarded,
+    * since the caller is about to write it elsewhere.
+    */
+   private void compact(Block b, int skipslot) {
+      int n = tx.getInt(b, NUMSLOTS);
+      long[] recs = new long[n];
+      int count = 0;
+      for (int slot=0; slot<n; slot++) {
+         int off = offset(b, slot);
+         if (off != 0 && slot != skipslot)
+            recs[count++] = ((long) off << 32) | slot;
+      }
+      Arrays.sort(recs, 0, count);
+      int dest = HEADER_SIZE;
+      for (int i=0; i<count; i++) {
+         int off = (int) (recs[i] >>> 32);
+         int slot = (int) recs[i];
+         int size = recordSize(b, off);
+         for (int k=0; k<size; k+=INT_SIZE)
+            setInt(b, dest + k, tx.getInt(b, off + k));
+         setInt(b, slotpos(slot), dest);
+         setLength(b, slot, size);
+         dest += size;
+      }
+      setInt(b, FREEPTR, dest);
+   }
+
+   /**
+    * Returns the current size of the record at the specified offset.
+    */
+   private int recordSize(Block b, int off) {
+      if (tx.getInt(b, off) == FORWARD)
+         return MIN_RECORD;
+      int pos = off + INT_SIZE;
+      for (int i=0; i<isInt.length; i++)
+         pos += isInt[i] ? INT_SIZE : INT_SIZE + tx.getInt(b, pos);
+      return align(pos - off);
+   }
+
+   private int freeSpace(Block b) {
+      int n = tx.getInt(b, NUMSLOTS);
+      int slot = 0;
+      while (slot < n && offset(b, slot) != 0)
+         slot++;
+      int free = reclaimable(b, -1) - ((slot == n) ? SLOT_SIZE : 0);
+      return Math.max(0, free);
+   }
+
+   /**
+    * Returns the number of free bytes between the records and the slot directory.
+    */
+   private int contiguous(Block b) {
+      int dirstart = USABLE_SIZE - tx.getInt(b, NUMSLOTS) * SLOT_SIZE;
+      return dirstart - tx.getInt(b, FREEPTR);
+   }
+
+   /**
+    * Returns the number of free bytes the block would have
+    * after compacting it without the record in the specified slot.
+    */
+   private int reclaimable(Block b, int skipslot) {
+      int n = tx.getInt(b, NUMSLOTS);
+      int free = USABLE_SIZE - HEADER_SIZE - n * SLOT_SIZE;
+      for (int slot=0; slot<n; slot++)
+         if (slot != skipslot)
+            free -= length(b, slot);
+      return free;
+   }
+
+   /**
+    * Writes the image into the block, one integer at a time;
+    * the integers that do not change are not written.
+    */
+   private void copyImage(Block b, int off, Page img, int size) {
+      for (int k=0; k<size; k+=INT_SIZE)
+         setInt(b, off + k, img.getInt(k));
+   }
+
+   private void setInt(Block b, int pos, int val) {
+      if (tx.getInt(b, pos) != val)
+         tx.setInt(b, pos, val);
+   }
+
+   /**
+    * Returns the room to reserve for a new record:
+    * the size of the record at its largest,
+    * but no more than an empty block can hold.
+    */
+   private int maxRecordSize() {
+      int largest = align(INT_SIZE + ti.recordLength());
+      return Math.min(largest, USABLE_SIZE - HEADER_SIZE - SLOT_SIZE);
+   }
+
+   private static int align(int size) {
+      int n = (size + INT_SIZE - 1) / INT_SIZE * INT_SIZE;
+      return Math.max(MIN_RECORD, n);
+   }
+
+   private static int slotpos(int slot) {
+      return USABLE_SIZE - (slot + 1) * SLOT_SIZE;
+   }
+
+   private int offset(Block b, int slot) {
+      return tx.getInt(b, slotpos(slot));
+   }
+
+   private int length(Block b, int slot) {
+      return tx.getInt(b, slotpos(slot) + INT_SIZE);
+   }
+
+   private void setLength(Block b, int slot, int len) {
+      setInt(b, slotpos(slot) + INT_SIZE, len);
+   }
+}
@@ -0,0 +1,203 @@
+package simpledb.record;
+
+import static java.sql.Types.INTEGER;
+import simpledb.file.Block;
+import simpledb.tx.Transaction;
+
+/**
+ * Compacts a table, by moving the records of its last blocks
+ * into the free room of its first blocks,
+ * and then removing the blocks at the end of the file
+ * that no longer hold anything.
+ * <p>
+ * The compactor is used like a scan.
+ * The method {@link #next()} moves to the next record to be moved,
+ * taking the blocks from the last one backwards,
+ * and the method {@link #move()} moves that record to an earlier block.
+ * Between those calls, the values and the RID of the record
+ * can be read, so that the caller can fix the indexes of the table.
+ * The compaction ends when no earlier block has room
+ * for the current record.
+ * A block whose free slots turn out to be locked
+ * by other transactions is skipped.
+ * The free room of the earlier blocks is found through
+ * the free-space map of the table,
+ * which the compactor first rebuilds so that it is exact.
+ * <p>
+ * Moving a record deletes it and inserts a copy,
+ * so the compaction is logged and locked like any other update.
+ * The file is truncated when the transaction commits
+ * (see {@link Transaction#truncate(String, int)}).
+ */
+public class TableCompactor {
+   private TableInfo ti;
+   private Transaction tx;
+   private String filename;
+   private FreeSpaceMap fsm;
+   private int srcblk, dstblk;
+   private int firstdst = 0; // the earlier blocks cannot take a record
+   private RecordBlock src = null, dst = null;
+   private boolean done = false;
+
+   /**
+    * Creates a compactor for the specified table,
+    * and rebuilds the table's free-space map.
+    * @param ti the table's metadata
+    * @param tx the transaction performing the compaction
+    */
+   public TableCompactor(TableInfo ti, Transaction tx) {
+      this.ti = ti;
+      this.tx = tx;
+      filename = ti.fileName();
+      fsm = new FreeSpaceMap(ti, tx);
+      fsm.rebuild();
+      srcblk = tx.size(filename);
+   }
+
+   /**
+    * Moves to the next record that can be moved to an earlier block.
+    * @return false if the compaction is over
+    */
+   public boolean next() {
+      while (!done) {
+         if (src != null && src.next()) {
+            done = !findRoom();
+            return !done;
+         }
+         if (src != null)
+            src.close();
+         src = null;
+         srcblk--;
+         if (srcblk <= 0)
+            done = true;
+         else
+            src = RecordFile.openBlock(new Block(filename, srcblk), ti, tx, null);
+      }
+      return false;
+   }
+
+   /**
+    * Returns the integer value of the specified field
+    * of the current record.
+    * @param fldname the name of the field
+    * @return the integer stored in that field
+    */
+   public int getInt(String fldname) {
+      return src.getInt(fldname);
+   }
+
+   /**
+    * Returns the string value of the specified field
+    * of the current record.
+    * @param fldname the name of the field
+    * @return the string stored in that field
+    */
+   public String getString(String fldname) {
+      return src.getString(fldname);
+   }
+
+   /**
+    * Returns the RID of the current record.
+    * @return the RID of the current record
+    */
+   public RID getRid() {
+      return new RID(srcblk, src.currentId());
+   }
+
+   /**
+    * Moves the current record to an earlier block that has room for it,
+    * by inserting a copy of the record and deleting the original.
+    * The insertion can fail even though the block has room,
+    * if another transaction has locked its free slots
+    * (for example, by deleting a record without committing yet);
+    * the next block that has room is then tried.
+    * If no earlier block can take the record after all,
+    * the record stays where it is and the compaction is over.
+    * @return the new RID of the record, or null if it could not be moved
+    */
+   public RID move() {
+      while (!dst.insert()) {
+         firstdst = dstblk + 1;
+         dst.close();
+         dst = null;
+         if (!findRoom()) {
+            done = true;
+            return null;
+         }
+      }
+      for (String fldname : ti.schema().fields()) {
+         if (ti.schema().type(fldname) == INTEGER)
+            dst.setInt(fldname, src.getInt(fldname));
+         else
+            dst.setString(fldname, src.getString(fldname));
+      }
+      src.delete();
+      return new RID(dstblk, dst.currentId());
+   }
+
+   /**
+    * Closes the compactor, recording the free space
+    * of the last block that received records.
+    */
+   public void close() {
+      if (src != null)
+         src.close();
+      if (dst != null) {
+         fsm.update(dstblk, dst.freeSpace());
+         dst.close();
+      }
+      src = dst = null;
+   }
+
+   /**
+    * Removes the blocks at the end of the file that hold
+    * no record, keeping at least one block.
+    * The file is truncated when the transaction commits,
+    * or later if a running snapshot may still read the removed blocks.
+    * The free-space map entries of the removed blocks are set to zero,
+    * so that insertions do not wait for those blocks meanwhile.
+    * (If the transaction rolls back, the empty blocks stay
+    * unused until the map is rebuilt.)
+    * @return the number of blocks removed
+    */
+   public int truncate() {
+      int size = tx.size(filename);
+      int numblocks = size;
+      while (numblocks > 1) {
+         RecordBlock rb = RecordFile.openBlock(new Block(filename, numblocks-1), ti, tx, null);
+         boolean empty = rb.isEmpty();
+         rb.close();
+         if (!empty)
+            break;
+         numblocks--;
+      }
+      if (numblocks < size) {
+         tx.truncate(filename, numblocks);
+         for (int b=numblocks; b<size; b++)
+            fsm.update(b, 0);
+      }
+      return size - numblocks;
+   }
+
+   /**
+    * Makes dst a block before the current record's block
+    * that has room for a record, if there is one.
+    * The map entry of each block that turns out to be full is corrected.
+    */
+   private boolean findRoom() {
+      while (true) {
+         if (dst != null && dst.freeSpace() >= dst.recordRoom())
+            return true;
+         if (dst != null) {
+            fsm.update(dstblk, dst.freeSpace());
+            dst.close();
+            dst = null;
+         }
+         int b = fsm.find(src.recordRoom(), firstdst);
+         if (b < 0 || b >= srcblk)
+            return false;
+         dstblk = b;
+         dst = RecordFile.openBlock(new Block(filename, b), ti, tx, null);
+      }
+   }
+}
@@ -6,23 +6,54 @@ import java.util.*;
 
 /**
  * The metadata about a table and its records.
+ * The records of a table are stored in one of three formats:
+ * {@link #FIXED}, where every record occupies a slot of
+ * {@link #recordLength()} bytes plus a flag (see {@link RecordPage}),
+ * {@link #BITMAP}, where the slots have no flag and
+ * each block begins with a bitmap of the slots in use,
+ * or {@link #SLOTTED}, where a record occupies only the bytes
+ * of its current values (see {@link SlottedPage}).
+ * In all formats, the fields of a record follow each other
+ * in the order of their offsets.
  * @author Edward Sciore
  */
 public class TableInfo {
+   /**
+    * The record formats.
+    */
+   public static final int FIXED = 0, SLOTTED = 1, BITMAP = 2;
+
    private Schema schema;
    private Map<String,Integer> offsets;
    private int recordlen;
    private String tblname;
+   private int format;
+   private List<String> order;
+   private Map<String,Integer> fieldnums;
    
    /**
     * Creates a TableInfo object, given a table name
     * and schema. The constructor calculates the
     * physical offset of each field.
-    * This constructor is used when a table is created. 
+    * This constructor is used when a table is created,
+    * and creates a table of fixed-size records.
     * @param tblname the name of the table
     * @param schema the schema of the table's records
     */
    public TableInfo(String tblname, Schema schema) {
+      this(tblname, schema, FIXED);
+   }
+   
+   /**
+    * Creates a TableInfo object, given a table name,
+    * schema and record format. The constructor calculates the
+    * physical offset of each field.
+    * This constructor is used when a table is created. 
+    * @param tblname the name of the table
+    * @param schema the schema of the table's records
+    * @param format the record format, FIXED, BITMAP or SLOTTED
+    */
+   public TableInfo(String tblname, Schema schema, int format) {
       this.schema = schema;
       this.tblname = tblname;
       offsets  = new HashMap<String,Integer>();
@@ -32,6 +63,8 @@ public class TableInfo {
          pos += lengthInBytes(fldname);
       }
       recordlen = pos;
+      this.format = format;
+      orderFields();
    }
    
    /**
@@ -43,12 +76,16 @@ public class TableInfo {
     * @param schema the schema of the table's records
     * @param offsets the already-calculated offsets of the fields within a record
     * @param recordlen the already-calculated length of each record
+    * @param format the record format, FIXED, BITMAP or SLOTTED
     */
-   public TableInfo(String tblname, Schema schema, Map<String,Integer> offsets, int recordlen) {
+   public TableInfo(String tblname, Schema schema, Map<String,Integer> offsets,
+                    int recordlen, int format) {
       this.tblname   = tblname;
       this.schema    = schema;
       this.offsets   = offsets;
       this.recordlen = recordlen;
+      this.format    = format;
+      orderFields();
    }
    
    /**
@@ -61,6 +98,16 @@ public class TableInfo {
       return tblname + ".tbl";
    }
    
+   /**
+    * Returns the name of the file that holds
+    * the free-space map of the table,
+    * which is the table name followed by ".fsm".
+    * @return the name of the table's free-space map
+    */
+   public String fsmFileName() {
+      return tblname + ".fsm";
+   }
+   
    /**
     * Returns the schema of the table's records
     * @return the table's record schema
@@ -80,12 +127,52 @@ public class TableInfo {
    
    /**
     * Returns the length of a record, in bytes.
+    * In the SLOTTED format, this is the largest length of a record.
     * @return the length in bytes of a record
     */
    public int recordLength() {
       return recordlen;
    }
    
+   /**
+    * Returns the format of the table's records.
+    * @return FIXED, BITMAP or SLOTTED
+    */
+   public int format() {
+      return format;
+   }
+   
+   /**
+    * Returns the names of the fields, in the order
+    * in which they are stored in a record.
+    * @return the fields in record order
+    */
+   List<String> fieldOrder() {
+      return order;
+   }
+   
+   /**
+    * Returns the position of the specified field
+    * in the order in which the fields are stored.
+    * @param fldname the name of the field
+    * @return the number of fields that precede it in a record
+    */
+   int fieldNumber(String fldname) {
+      return fieldnums.get(fldname);
+   }
+   
+   private void orderFields() {
+      order = new ArrayList<String>(offsets.keySet());
+      Collections.sort(order, new Comparator<String>() {
+         public int compare(String f1, String f2) {
+            return offsets.get(f1) - offsets.get(f2);
+         }
+      });
+      fieldnums = new HashMap<String,Integer>();
+      for (int i=0; i<order.size(); i++)
+         fieldnums.put(order.get(i), i);
+   }
+   
    private int lengthInBytes(String fldname) {
       int fldtype = schema.type(fldname);
       if (fldtype == INTEGER)
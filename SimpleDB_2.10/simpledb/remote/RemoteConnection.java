@@ -11,5 +11,7 @@ import java.rmi.*;
 public interface RemoteConnection extends Remote {
    public RemoteStatement createStatement() throws RemoteException;
    public void close() throws RemoteException;
+   public void setReadOnly(boolean readOnly) throws RemoteException;
+   public boolean isReadOnly() throws RemoteException;
 }
 
@@ -11,6 +11,7 @@ import java.rmi.server.UnicastRemoteObject;
 @SuppressWarnings("serial") 
 class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteConnection {
    private Transaction tx;
+   private boolean readOnly = false;
    
    /**
     * Creates a remote connection
@@ -38,6 +39,28 @@ class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteConnecti
       tx.commit();
    }
    
+   /**
+    * Makes the transactions of the connection read-only, or not.
+    * The current transaction is committed,
+    * and a new one begins in the specified mode.
+    * A read-only transaction reads a snapshot of the database
+    * (see {@link simpledb.server.SimpleDB#SNAPSHOT_READS}),
+    * and its updates fail.
+    * @see simpledb.remote.RemoteConnection#setReadOnly(boolean)
+    */
+   public void setReadOnly(boolean readOnly) throws RemoteException {
+      this.readOnly = readOnly;
+      commit();
+   }
+   
+   /**
+    * Returns true if the transactions of the connection are read-only.
+    * @see simpledb.remote.RemoteConnection#isReadOnly()
+    */
+   public boolean isReadOnly() throws RemoteException {
+      return readOnly;
+   }
+   
 // The following methods are used by the server-side classes.
    
    /**
@@ -55,7 +78,7 @@ class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteConnecti
     */
    void commit() {
       tx.commit();
-      tx = new Transaction();
+      tx = new Transaction(readOnly);
    }
    
    /**
@@ -64,7 +87,7 @@ class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteConnecti
     */
    void rollback() {
       tx.rollback();
-      tx = new Transaction();
+      tx = new Transaction(readOnly);
    }
 }
 
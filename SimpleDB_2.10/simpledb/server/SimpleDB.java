@@ -24,6 +24,24 @@ import simpledb.index.planner.IndexUpdatePlanner;
  */
 public class SimpleDB {
    public static int BUFFER_SIZE = 8;
+   public static int PAGE_SIZE = 4096; // used only when a database is created
+   public static boolean MMAP_IO = false; // used only when a database is created
+   public static String PAGE_CHARSET = "UTF-8"; // used only when a database is created
+   public static boolean PAGE_CHECKSUMS = true; // used only when a database is created
+   public static boolean IGNORE_CHECKSUM_FAILURES = false; // read damaged blocks instead of throwing
+   public static String DATA_SYNC = "commit"; // "write", "commit" or "checkpoint"
+   public static String RECORD_FORMAT = "fixed"; // "fixed", "bitmap" or "slotted", used when a table is created
+   public static String BUFFER_POLICY = "clock";
+   public static int RING_SIZE = 16;
+   public static int PREFETCH_DEPTH = 4;
+   public static int PREFETCH_THREADS = 2;
+   public static long BGWRITER_DELAY = 200;
+   public static int BGWRITER_MAX_PAGES = 100;
+   public static boolean NO_FORCE_COMMIT = false;
+   public static boolean SNAPSHOT_READS = true; // read-only transactions read a snapshot, without locks
+   public static long GROUP_COMMIT_WINDOW = 0; // microseconds
+   public static int GROUP_COMMIT_MAX_BATCH = 64;
+   public static int LOG_BUFFERS = 4;
    public static String LOG_FILE = "simpledb.log";
    
    private static FileMgr     fm;
@@ -73,11 +91,15 @@ public class SimpleDB {
    
    /**
     * Initializes the file, log, and buffer managers.
+    * The background threads of the previous buffer manager,
+    * if any, are stopped first.
     * @param dirname the name of the database directory
     */
    public static void initFileLogAndBufferMgr(String dirname) {
+      if (bm != null)
+         bm.shutdown();
       initFileAndLogMgr(dirname);
-      bm = new BufferMgr(BUFFER_SIZE);
+      bm = new BufferMgr(BUFFER_SIZE, BUFFER_POLICY);
    }
    
    /**
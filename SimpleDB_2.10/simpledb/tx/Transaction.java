@@ -5,13 +5,27 @@ import simpledb.file.Block;
 import simpledb.buffer.*;
 import simpledb.tx.recovery.RecoveryMgr;
 import simpledb.tx.concurrency.ConcurrencyMgr;
+import simpledb.tx.concurrency.LockAbortException;
+import simpledb.tx.concurrency.Snapshot;
 import static simpledb.tx.recovery.LogRecord.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Provides transaction management for clients,
  * ensuring that all transactions are serializable, recoverable,
  * and in general satisfy the ACID properties.
+ * <p>
+ * A read-only transaction can update only temporary files.
+ * If {@link SimpleDB#SNAPSHOT_READS} is set, it reads the
+ * {@link Snapshot snapshot} of the database as of its start,
+ * without locking, so that long reads and writers do not wait for each other;
+ * writers then save the old values of their updates for the snapshots.
  * @author Edward Sciore
  */
 public class Transaction {
@@ -21,8 +35,14 @@ public class Transaction {
    private ConcurrencyMgr concurMgr;
    private int txnum;
    private BufferList myBuffers = new BufferList();
+   private Map<String,Integer> truncations = new HashMap<String,Integer>();
+   private boolean readOnly;
+   private Snapshot snapshot;
+   private Set<Block> versioned = new HashSet<Block>(); // blocks with saved old values
+   private static Set<Integer> startingTx = new HashSet<Integer>(); // numbered, but not yet running
    private static ArrayList<Integer> curRunningTx = new ArrayList<Integer>();
    private static ArrayList<Integer> allRunningTx = new ArrayList<Integer>();
+   private static boolean quiescing = false;
    
    /**
     * Creates a new transaction and its associated 
@@ -37,28 +57,55 @@ public class Transaction {
     * is called first.
     */
    public Transaction() {
+      this(false);
+   }
+   
+   /**
+    * Creates a new transaction that is read-only or not.
+    * A read-only transaction that reads a snapshot
+    * sees the updates of the transactions that
+    * have finished before it started.
+    * @param readOnly true if the transaction is read-only
+    */
+   public Transaction(boolean readOnly) {
       txnum       = nextTxNumber();
       if (txnum % 4 == 0) {
         quiescentCheck();
       }
       recoveryMgr = new RecoveryMgr(txnum);
-      concurMgr   = new ConcurrencyMgr();
-      curRunningTx.add(txnum);
-      allRunningTx.add(txnum);
+      concurMgr   = new ConcurrencyMgr(txnum);
+      this.readOnly = readOnly;
+      txStarted(txnum);
+      if (readOnly && SimpleDB.SNAPSHOT_READS)
+         snapshot = takeSnapshot(txnum);
    }
    
    /**
     * Commits the current transaction.
-    * Flushes all modified buffers (and their log records),
+    * Flushes all modified buffers (and their log records)
+    * unless the system runs in no-force mode,
     * writes and flushes a commit record to the log,
-    * releases all locks, and unpins any pinned buffers.
+    * unpins any pinned buffers, truncates the files
+    * that the transaction asked to truncate, and releases all locks.
+    * A file is not truncated while a snapshot that does not see
+    * the transaction is running, since the snapshot may still read
+    * the removed blocks; the truncation is done when the last
+    * such snapshot ends.
+    * Until then the transaction keeps SLocks on the end of the file
+    * and on the removed blocks: other transactions can still read the file,
+    * but the ones that append to it or insert into the removed blocks
+    * wait meanwhile.
     */
    public void commit() {
       recoveryMgr.commit();
-      concurMgr.release();
       myBuffers.unpinAll();
       System.out.println("transaction " + txnum + " committed");
-      curRunningTx.remove(new Integer(txnum));
+      txFinished(txnum);
+      if (truncations.isEmpty())
+         concurMgr.release();
+      else
+         truncateFiles();
+      endVersions();
    }
    
    /**
@@ -73,7 +120,16 @@ public class Transaction {
       concurMgr.release();
       myBuffers.unpinAll();
       System.out.println("transaction " + txnum + " rolled back");
-      curRunningTx.remove(new Integer(txnum));
+      txFinished(txnum);
+      endVersions();
+   }
+   
+   /**
+    * Returns true if the transaction is read-only.
+    * @return true if the transaction is read-only
+    */
+   public boolean isReadOnly() {
+      return readOnly;
    }
    
    /**
@@ -98,6 +154,43 @@ public class Transaction {
       myBuffers.pin(blk);
    }
    
+   /**
+    * Pins the specified block on behalf of a scan
+    * that has a buffer ring.
+    * If the block is not resident, it is preferably read
+    * into one of the ring's buffers, so that a large scan
+    * does not flood the buffer pool.
+    * @param blk a reference to the disk block
+    * @param ring the scan's buffer ring, or null
+    */
+   public void pin(Block blk, BufferRing ring) {
+      myBuffers.pin(blk, ring);
+   }
+   
+   /**
+    * Asks for the specified block to be read ahead,
+    * because the transaction is likely to pin it soon.
+    * The block is neither locked nor pinned;
+    * the request is only a hint to the buffer manager.
+    * @param blk a reference to the disk block
+    * @param ring the scan's buffer ring, or null
+    */
+   public void prefetch(Block blk, BufferRing ring) {
+      SimpleDB.bufferMgr().prefetch(blk, ring);
+   }
+   
+   /**
+    * Reads n consecutive blocks, starting with the specified one,
+    * because the transaction is about to pin them all.
+    * The blocks are read together, but are neither locked nor pinned.
+    * @param first a reference to the first disk block
+    * @param n the number of blocks
+    * @param ring the scan's buffer ring, or null
+    */
+   public void load(Block first, int n, BufferRing ring) {
+      SimpleDB.bufferMgr().load(first, n, ring);
+   }
+   
    /**
     * Unpins the specified block.
     * The transaction looks up the buffer pinned to this block,
@@ -118,6 +211,8 @@ public class Transaction {
     * @return the integer stored at that offset
     */
    public int getInt(Block blk, int offset) {
+      if (inSnapshot(blk))
+         return snapshot.read(blk, myBuffers.getBuffer(blk)).getInt(offset);
       concurMgr.sLock(blk);
       Buffer buff = myBuffers.getBuffer(blk);
       return buff.getInt(offset);
@@ -133,11 +228,33 @@ public class Transaction {
     * @return the string stored at that offset
     */
    public String getString(Block blk, int offset) {
+      if (inSnapshot(blk))
+         return snapshot.read(blk, myBuffers.getBuffer(blk)).getString(offset);
       concurMgr.sLock(blk);
       Buffer buff = myBuffers.getBuffer(blk);
       return buff.getString(offset);
    }
    
+   /**
+    * Returns true if the string value stored at the
+    * specified offset of the specified block is equal
+    * to the specified string.
+    * The method first obtains an SLock on the block,
+    * then it compares the value in the buffer's page,
+    * without creating a string.
+    * @param blk a reference to a disk block
+    * @param offset the byte offset within the block
+    * @param val the string to compare with
+    * @return true if the block holds that string at that offset
+    */
+   public boolean stringEquals(Block blk, int offset, String val) {
+      if (inSnapshot(blk))
+         return snapshot.read(blk, myBuffers.getBuffer(blk)).stringEquals(offset, val);
+      concurMgr.sLock(blk);
+      Buffer buff = myBuffers.getBuffer(blk);
+      return buff.stringEquals(offset, val);
+   }
+   
    /**
     * Stores an integer at the specified offset 
     * of the specified block.
@@ -147,15 +264,33 @@ public class Transaction {
     * writes that record to the log.
     * Finally, it calls the buffer to store the value,
     * passing in the LSN of the log record and the transaction's id. 
+    * The buffer's latch is held in exclusive mode throughout.
     * @param blk a reference to the disk block
     * @param offset a byte offset within that block
     * @param val the value to be stored
     */
    public void setInt(Block blk, int offset, int val) {
+      checkWritable(blk);
       concurMgr.xLock(blk);
+      writeInt(blk, offset, val);
+   }
+   
+   private void writeInt(Block blk, int offset, int val) {
+      checkExists(blk);
       Buffer buff = myBuffers.getBuffer(blk);
-      int lsn = recoveryMgr.setInt(buff, offset, val);
-      buff.setInt(offset, val, txnum, lsn);
+      Lock latch = buff.latch().writeLock();
+      latch.lock();
+      try {
+         if (keepsVersions(blk)) {
+            Snapshot.saveInt(txnum, blk, offset, buff.getInt(offset));
+            versioned.add(blk);
+         }
+         long lsn = recoveryMgr.setInt(buff, offset, val);
+         buff.setInt(offset, val, txnum, lsn);
+      }
+      finally {
+         latch.unlock();
+      }
    }
    
    /**
@@ -167,15 +302,215 @@ public class Transaction {
     * writes that record to the log.
     * Finally, it calls the buffer to store the value,
     * passing in the LSN of the log record and the transaction's id. 
+    * The buffer's latch is held in exclusive mode throughout.
     * @param blk a reference to the disk block
     * @param offset a byte offset within that block
     * @param val the value to be stored
     */
    public void setString(Block blk, int offset, String val) {
+      checkWritable(blk);
       concurMgr.xLock(blk);
+      writeString(blk, offset, val);
+   }
+   
+   private void writeString(Block blk, int offset, String val) {
+      checkExists(blk);
       Buffer buff = myBuffers.getBuffer(blk);
-      int lsn = recoveryMgr.setString(buff, offset, val);
-      buff.setString(offset, val, txnum, lsn);
+      Lock latch = buff.latch().writeLock();
+      latch.lock();
+      try {
+         if (keepsVersions(blk)) {
+            Snapshot.saveString(txnum, blk, offset, buff.getString(offset));
+            versioned.add(blk);
+         }
+         long lsn = recoveryMgr.setString(buff, offset, val);
+         buff.setString(offset, val, txnum, lsn);
+      }
+      finally {
+         latch.unlock();
+      }
+   }
+   
+   /**
+    * Returns the integer value stored at the
+    * specified offset of the specified block,
+    * which belongs to the record in the specified slot.
+    * The method locks the record rather than the block:
+    * it first obtains an SLock on the record,
+    * unless the transaction already has a lock on the block
+    * that covers it.
+    * The caller must not read outside of the record.
+    * @param blk a reference to a disk block
+    * @param slot the slot of the record within the block
+    * @param offset the byte offset within the block
+    * @return the integer stored at that offset
+    */
+   public int getRecordInt(Block blk, int slot, int offset) {
+      if (inSnapshot(blk))
+         return getInt(blk, offset);
+      concurMgr.sLock(blk, slot);
+      Buffer buff = myBuffers.getBuffer(blk);
+      return buff.getInt(offset);
+   }
+   
+   /**
+    * Returns the string value stored at the
+    * specified offset of the specified block,
+    * which belongs to the record in the specified slot.
+    * The method first obtains an SLock on the record,
+    * as {@link #getRecordInt(Block, int, int) getRecordInt} does.
+    * @param blk a reference to a disk block
+    * @param slot the slot of the record within the block
+    * @param offset the byte offset within the block
+    * @return the string stored at that offset
+    */
+   public String getRecordString(Block blk, int slot, int offset) {
+      if (inSnapshot(blk))
+         return getString(blk, offset);
+      concurMgr.sLock(blk, slot);
+      Buffer buff = myBuffers.getBuffer(blk);
+      return buff.getString(offset);
+   }
+   
+   /**
+    * Returns true if the string value stored at the
+    * specified offset of the specified block,
+    * which belongs to the record in the specified slot,
+    * is equal to the specified string.
+    * The method first obtains an SLock on the record,
+    * as {@link #getRecordInt(Block, int, int) getRecordInt} does.
+    * @param blk a reference to a disk block
+    * @param slot the slot of the record within the block
+    * @param offset the byte offset within the block
+    * @param val the string to compare with
+    * @return true if the block holds that string at that offset
+    */
+   public boolean recordStringEquals(Block blk, int slot, int offset, String val) {
+      if (inSnapshot(blk))
+         return stringEquals(blk, offset, val);
+      concurMgr.sLock(blk, slot);
+      Buffer buff = myBuffers.getBuffer(blk);
+      return buff.stringEquals(offset, val);
+   }
+   
+   /**
+    * Stores an integer at the specified offset
+    * of the specified block, which belongs to the record
+    * in the specified slot.
+    * The method first obtains an XLock on the record,
+    * unless the transaction already has an XLock on the block,
+    * and then logs and stores the value as {@link #setInt(Block, int, int) setInt} does.
+    * Other transactions can meanwhile update other records of the block,
+    * so the caller must not write outside of the record:
+    * the update is undone by restoring the old value at that offset.
+    * @param blk a reference to the disk block
+    * @param slot the slot of the record within the block
+    * @param offset a byte offset within that block
+    * @param val the value to be stored
+    */
+   public void setRecordInt(Block blk, int slot, int offset, int val) {
+      checkWritable(blk);
+      concurMgr.xLock(blk, slot);
+      writeInt(blk, offset, val);
+   }
+   
+   /**
+    * Stores a string at the specified offset
+    * of the specified block, which belongs to the record
+    * in the specified slot.
+    * The method first obtains an XLock on the record,
+    * as {@link #setRecordInt(Block, int, int, int) setRecordInt} does.
+    * @param blk a reference to the disk block
+    * @param slot the slot of the record within the block
+    * @param offset a byte offset within that block
+    * @param val the value to be stored
+    */
+   public void setRecordString(Block blk, int slot, int offset, String val) {
+      checkWritable(blk);
+      concurMgr.xLock(blk, slot);
+      writeString(blk, offset, val);
+   }
+   
+   /**
+    * Obtains an XLock on the record in the specified slot
+    * of the specified block, if no other transaction has locked it.
+    * This method is used to claim an empty slot for a new record,
+    * where another slot can be tried if this one is taken.
+    * The method also returns false if the block no longer
+    * belongs to its file, because a truncation that was waiting
+    * for the last snapshots removed it meanwhile.
+    * @param blk a reference to the disk block
+    * @param slot the slot of the record within the block
+    * @return true if the transaction has an XLock on the record
+    */
+   public boolean tryLockRecord(Block blk, int slot) {
+      checkWritable(blk);
+      if (!concurMgr.tryXLock(blk, slot))
+         return false;
+      return blk.number() < SimpleDB.fileMgr().size(blk.fileName());
+   }
+   
+   /**
+    * Returns the integer value stored at the
+    * specified offset of the specified block,
+    * without locking the block.
+    * This method and {@link #setHint(Block, int, int) setHint}
+    * are used for data that are only hints,
+    * such as a free-space map,
+    * which readers must be prepared to find out of date.
+    * @param blk a reference to a disk block
+    * @param offset the byte offset within the block
+    * @return the integer stored at that offset
+    */
+   public int getHint(Block blk, int offset) {
+      Buffer buff = myBuffers.getBuffer(blk);
+      return buff.getInt(offset);
+   }
+   
+   /**
+    * Stores an integer at the specified offset
+    * of the specified block, without locking the block
+    * and without logging the update.
+    * The update is therefore not undone if the transaction
+    * rolls back, and may be lost in a crash.
+    * @param blk a reference to the disk block
+    * @param offset a byte offset within that block
+    * @param val the value to be stored
+    */
+   public void setHint(Block blk, int offset, int val) {
+      Buffer buff = myBuffers.getBuffer(blk);
+      buff.setInt(offset, val, txnum, -1);
+   }
+   
+   /**
+    * Removes the blocks of the specified file
+    * from the specified block number on,
+    * when the transaction commits.
+    * The removal cannot be undone,
+    * which is why it is postponed until the commit:
+    * if the transaction rolls back, the file is left as it is.
+    * This method obtains an XLock on the "end of the file"
+    * and on each block to be removed,
+    * so that no other transaction can use them
+    * until the file has been truncated.
+    * The caller must make sure that the removed blocks
+    * hold nothing that is still needed.
+    * The removal is logged (see {@link RecoveryMgr#truncate(String, int)}),
+    * so that recovery does not redo older updates of the removed blocks
+    * into the blocks that are appended later.
+    * @param filename the name of the file
+    * @param numblocks the number of blocks that remain in the file
+    */
+   public void truncate(String filename, int numblocks) {
+      Block dummyblk = new Block(filename, END_OF_FILE);
+      checkWritable(dummyblk);
+      concurMgr.xLock(dummyblk);
+      int size = SimpleDB.fileMgr().size(filename);
+      for (int b=numblocks; b<size; b++)
+         concurMgr.xLock(new Block(filename, b));
+      Integer pending = truncations.get(filename);
+      if (pending == null || numblocks < pending)
+         truncations.put(filename, numblocks);
    }
    
    /**
@@ -183,62 +518,196 @@ public class Transaction {
     * This method first obtains an SLock on the 
     * "end of the file", before asking the file manager
     * to return the file size.
+    * A snapshot does not lock the end of the file:
+    * the blocks appended since it started hold no records
+    * that it can see.
     * @param filename the name of the file
     * @return the number of blocks in the file
     */
    public int size(String filename) {
       Block dummyblk = new Block(filename, END_OF_FILE);
-      concurMgr.sLock(dummyblk);
+      if (!inSnapshot(dummyblk))
+         concurMgr.sLock(dummyblk);
       return SimpleDB.fileMgr().size(filename);
    }
    
    /**
     * Appends a new block to the end of the specified file
     * and returns a reference to it.
-    * This method first obtains an XLock on the
+    * This method first obtains an IXLock on the
     * "end of the file", before performing the append.
+    * Transactions can therefore append to the same file
+    * concurrently, but not while another transaction
+    * has asked for the size of the file.
+    * A snapshot appends without locking,
+    * since a new block holds no records.
     * @param filename the name of the file
     * @param fmtr the formatter used to initialize the new page
     * @return a reference to the newly-created disk block
     */
    public Block append(String filename, PageFormatter fmtr) {
+      return append(filename, fmtr, null);
+   }
+   
+   /**
+    * Appends a new block to the end of the specified file
+    * on behalf of a scan that has a buffer ring,
+    * and returns a reference to it.
+    * @param filename the name of the file
+    * @param fmtr the formatter used to initialize the new page
+    * @param ring the scan's buffer ring, or null
+    * @return a reference to the newly-created disk block
+    */
+   public Block append(String filename, PageFormatter fmtr, BufferRing ring) {
       Block dummyblk = new Block(filename, END_OF_FILE);
-      concurMgr.xLock(dummyblk);
-      Block blk = myBuffers.pinNew(filename, fmtr);
+      if (!inSnapshot(dummyblk))
+         concurMgr.ixLock(dummyblk);
+      Block blk = myBuffers.pinNew(filename, fmtr, ring);
       unpin(blk);
       return blk;
    }
    
+   /**
+    * Truncates the files that the transaction asked to truncate,
+    * once every running snapshot sees the transaction,
+    * and releases all locks.
+    * The locks on the end of each file and on its removed blocks
+    * are weakened to SLocks, and released only after the truncation.
+    */
+   private void truncateFiles() {
+      Collection<Block> kept = new ArrayList<Block>();
+      for (Map.Entry<String,Integer> e : truncations.entrySet()) {
+         String filename = e.getKey();
+         kept.add(new Block(filename, END_OF_FILE));
+         int size = SimpleDB.fileMgr().size(filename);
+         for (int b=e.getValue(); b<size; b++)
+            kept.add(new Block(filename, b));
+      }
+      concurMgr.releaseExceptShared(kept);
+      Snapshot.whenSeenByAll(txnum, new Runnable() {
+         public void run() {
+            for (Map.Entry<String,Integer> e : truncations.entrySet()) {
+               recoveryMgr.truncate(e.getKey(), e.getValue());
+               SimpleDB.bufferMgr().discard(e.getKey(), e.getValue());
+               SimpleDB.fileMgr().truncate(e.getKey(), e.getValue());
+            }
+            concurMgr.release();
+         }
+      });
+   }
+   
+   /**
+    * Returns true if the block is read from the snapshot,
+    * rather than under locks.
+    * Temporary files are private to their transaction,
+    * and are read directly.
+    */
+   private boolean inSnapshot(Block blk) {
+      return snapshot != null && !isTempFile(blk.fileName());
+   }
+   
+   private void checkWritable(Block blk) {
+      if (readOnly && !isTempFile(blk.fileName()))
+         throw new RuntimeException("transaction " + txnum + " is read-only");
+   }
+   
+   /**
+    * Aborts the transaction if the block that it is about to modify
+    * no longer belongs to its file: a truncation that was waiting
+    * for the last snapshots may have removed it while the
+    * transaction waited for its lock, and the buffer would
+    * never be written.
+    */
+   private void checkExists(Block blk) {
+      if (blk.number() >= SimpleDB.fileMgr().size(blk.fileName()))
+         throw new LockAbortException("block " + blk + " was truncated");
+   }
+   
+   private boolean keepsVersions(Block blk) {
+      return SimpleDB.SNAPSHOT_READS && !isTempFile(blk.fileName());
+   }
+   
+   private static boolean isTempFile(String filename) {
+      return filename.startsWith("temp");
+   }
+   
+   /**
+    * Ends the transaction's snapshot, or tells the version store
+    * that the old values of its updates are no longer
+    * needed by the snapshots that see it.
+    */
+   private void endVersions() {
+      if (snapshot != null)
+         snapshot.close();
+      if (!versioned.isEmpty())
+         Snapshot.finished(txnum, versioned);
+   }
+   
+   /**
+    * Creates the snapshot of a read-only transaction,
+    * which does not see the transactions that are running
+    * or have not started yet.
+    */
+   private static synchronized Snapshot takeSnapshot(int txnum) {
+      Set<Integer> unfinished = new HashSet<Integer>(curRunningTx);
+      unfinished.addAll(startingTx);
+      return new Snapshot(txnum, unfinished, nextTxNum + 1);
+   }
+   
    private static synchronized int nextTxNumber() {
+      //New transactions wait while a checkpoint is being taken
+      while (quiescing)
+         waitForTxList();
       nextTxNum++;
+      startingTx.add(nextTxNum);
       System.out.println("new transaction: " + nextTxNum);
       return nextTxNum;
    }
 
+   private static synchronized void txStarted(int txnum) {
+      startingTx.remove(txnum);
+      curRunningTx.add(txnum);
+      allRunningTx.add(txnum);
+   }
+
+   private static synchronized void txFinished(int txnum) {
+      curRunningTx.remove(Integer.valueOf(txnum));
+      Transaction.class.notifyAll();
+   }
+
+   private static void waitForTxList() {
+      try {
+         Transaction.class.wait();
+      }
+      catch(InterruptedException e) {}
+   }
+
    private static synchronized void quiescentCheck() {
       System.out.println("QUIESCING STARTS " + nextTxNum);
       //Stop accepting new process
+      quiescing = true;
       while (!(curRunningTx.isEmpty())) {
         //Wait for existing tx to finish
         System.out.println("Blocked!");
         for (int i : curRunningTx) {
           System.out.println(i + " is still running!!");
         }
+        waitForTxList();
       }
       System.out.println("All previous tx are finished!");
       System.out.println("Size of curRunningTx is " + curRunningTx.size());
-      //Flush all modified buffers
-      for (int num : allRunningTx) {
-        SimpleDB.bufferMgr().flushAll(num);
-        System.out.println(num + " get flushed to disk, it's safe now!");
-      }
+      //Flush all modified buffers in a single pass over the pool
+      SimpleDB.bufferMgr().flushAll();
+      System.out.println("All modified buffers get flushed to disk, it's safe now!");
       //Clear the allRunningTx
       allRunningTx.clear();
       System.out.println("allRunningTx get cleaned! Proceed");
       //Append a quiescent checkpoint to log and flush to disk
       Object[] rec = new Object[] {CHECKPOINT};
-      int lsn = SimpleDB.logMgr().append(rec);
+      long lsn = SimpleDB.logMgr().append(rec);
       SimpleDB.logMgr().flush(lsn);
+      quiescing = false;
+      Transaction.class.notifyAll();
       System.out.println("QUIESCING FINISHES");
    }
 }
@@ -9,6 +9,26 @@ import java.util.*;
  * The concurrency manager keeps track of which locks the 
  * transaction currently has, and interacts with the
  * global lock table as needed. 
+ * <p>
+ * Locks are taken at three granularities: files, blocks, and
+ * the records of a block, which are identified by their slot.
+ * Before a transaction locks a block, it gets an intention lock
+ * on the block's file (IS for an SLock, IX for an XLock),
+ * and before it locks a record, it gets intention locks
+ * on the file and on the block.
+ * A lock on a block therefore conflicts with the locks
+ * of other transactions on its records,
+ * while transactions that lock different records of the same block
+ * can proceed concurrently.
+ * A record does not need its own lock if the transaction already
+ * has a strong enough lock on the whole block.
+ * <p>
+ * The locks of the last few blocks and records that the transaction
+ * used are also kept in a small cache, whose entries are
+ * compared by block number, slot and file name reference.
+ * A repeated request for a lock that the cache shows to be held
+ * is answered without allocating anything,
+ * and without looking up the map of locks or the lock table.
  * @author Edward Sciore
  */
 public class ConcurrencyMgr {
@@ -18,34 +38,129 @@ public class ConcurrencyMgr {
     * share the same table.
     */
    private static LockTable locktbl = new LockTable();
-   private Map<Block,String> locks  = new HashMap<Block,String>();
+   private Map<Object,LockMode> locks  = new HashMap<Object,LockMode>();
+   private int txnum;
+   
+   private static final int CACHE_SIZE = 4;
+   private static final int BLOCK = -1; // the slot of the lock on a whole block
+   private String[] cachedFile = new String[CACHE_SIZE];
+   private int[] cachedBlk = new int[CACHE_SIZE];
+   private int[] cachedSlot = new int[CACHE_SIZE];
+   private LockMode[] cachedMode = new LockMode[CACHE_SIZE];
+   private int victim = 0;
+   
+   /**
+    * Creates the concurrency manager of the specified transaction.
+    * @param txnum the number of the transaction
+    */
+   public ConcurrencyMgr(int txnum) {
+      this.txnum = txnum;
+   }
    
    /**
-    * Obtains an SLock on the block, if necessary.
+    * Obtains an SLock on the block, if necessary,
+    * after an ISLock on its file.
     * The method will ask the lock table for an SLock
-    * if the transaction currently has no locks on that block.
+    * if the transaction currently has no lock on that block
+    * that is at least as strong.
     * @param blk a reference to the disk block
     */
    public void sLock(Block blk) {
-      if (locks.get(blk) == null) {
-         locktbl.sLock(blk);
-         locks.put(blk, "S");
-      }
+      if (!cached(blk, BLOCK, LockMode.S))
+         lockBlock(blk, LockMode.IS, LockMode.S);
    }
    
    /**
-    * Obtains an XLock on the block, if necessary.
-    * If the transaction does not have an XLock on that block,
-    * then the method first gets an SLock on that block
-    * (if necessary), and then upgrades it to an XLock.
+    * Obtains an XLock on the block, if necessary,
+    * after an IXLock on its file.
+    * If the transaction already has a weaker lock on that block,
+    * then the lock is upgraded to an XLock.
     * @param blk a refrence to the disk block
     */
    public void xLock(Block blk) {
-      if (!hasXLock(blk)) {
-         sLock(blk);
-         locktbl.xLock(blk);
-         locks.put(blk, "X");
+      if (!cached(blk, BLOCK, LockMode.X))
+         lockBlock(blk, LockMode.IX, LockMode.X);
+   }
+   
+   /**
+    * Obtains an IXLock on the block, if necessary,
+    * after an IXLock on its file.
+    * IXLocks on a block are compatible with each other,
+    * but not with SLocks.
+    * @param blk a refrence to the disk block
+    */
+   public void ixLock(Block blk) {
+      if (!cached(blk, BLOCK, LockMode.IX))
+         lockBlock(blk, LockMode.IX, LockMode.IX);
+   }
+   
+   /**
+    * Obtains an SLock on the record in the specified slot of the block,
+    * after intention locks on the file and on the block.
+    * Nothing is locked if the transaction
+    * already has an SLock or an XLock on the whole block.
+    * @param blk a reference to the disk block
+    * @param slot the slot of the record within the block
+    */
+   public void sLock(Block blk, int slot) {
+      if (cached(blk, BLOCK, LockMode.S) || cached(blk, slot, LockMode.S))
+         return;
+      if (holds(blk, LockMode.S)) {
+         remember(blk, BLOCK, locks.get(blk));
+         return;
+      }
+      lock(blk.fileName(), LockMode.IS);
+      lock(blk, LockMode.IS);
+      remember(blk, slot, lock(new RecordKey(blk, slot), LockMode.S));
+   }
+   
+   /**
+    * Obtains an XLock on the record in the specified slot of the block,
+    * after intention locks on the file and on the block.
+    * Nothing is locked if the transaction
+    * already has an XLock on the whole block.
+    * @param blk a reference to the disk block
+    * @param slot the slot of the record within the block
+    */
+   public void xLock(Block blk, int slot) {
+      if (cached(blk, BLOCK, LockMode.X) || cached(blk, slot, LockMode.X))
+         return;
+      if (holds(blk, LockMode.X)) {
+         remember(blk, BLOCK, LockMode.X);
+         return;
       }
+      lock(blk.fileName(), LockMode.IX);
+      lock(blk, LockMode.IX);
+      remember(blk, slot, lock(new RecordKey(blk, slot), LockMode.X));
+   }
+   
+   /**
+    * Obtains an XLock on the record in the specified slot of the block,
+    * as {@link #xLock(Block, int) xLock} does,
+    * unless another transaction has a lock on the record.
+    * In that case the method returns false instead of waiting.
+    * The intention locks on the file and on the block
+    * are obtained in any case, and may have to wait.
+    * @param blk a reference to the disk block
+    * @param slot the slot of the record within the block
+    * @return true if the record is locked
+    */
+   public boolean tryXLock(Block blk, int slot) {
+      if (cached(blk, BLOCK, LockMode.X) || cached(blk, slot, LockMode.X))
+         return true;
+      if (holds(blk, LockMode.X))
+         return true;
+      lock(blk.fileName(), LockMode.IX);
+      lock(blk, LockMode.IX);
+      RecordKey key = new RecordKey(blk, slot);
+      LockMode held = locks.get(key);
+      if (held == null || !held.covers(LockMode.X)) {
+         if (!locktbl.tryLock(key, txnum, LockMode.X))
+            return false;
+         locks.put(key, LockMode.X);
+      }
+      remember(blk, slot, LockMode.X);
+      return true;
    }
    
    /**
@@ -53,13 +168,133 @@ public class ConcurrencyMgr {
     * unlock each one.
     */
    public void release() {
-      for (Block blk : locks.keySet())
-         locktbl.unlock(blk);
+      for (Object key : locks.keySet())
+         locktbl.unlock(key, txnum);
       locks.clear();
+      Arrays.fill(cachedFile, null);
+      Arrays.fill(cachedMode, null);
+   }
+   
+   /**
+    * Releases all locks, except that the locks on the specified blocks
+    * are weakened to SLocks, and the locks on their files to ISLocks.
+    * The weakened locks are kept until the next call to {@link #release()}:
+    * other transactions can read the blocks meanwhile, but not modify them.
+    * @param kept the blocks whose locks are kept
+    */
+   public void releaseExceptShared(Collection<Block> kept) {
+      Map<Object,LockMode> keep = new HashMap<Object,LockMode>();
+      for (Block blk : kept) {
+         keep.put(blk, LockMode.S);
+         keep.put(blk.fileName(), LockMode.IS);
+      }
+      Iterator<Map.Entry<Object,LockMode>> iter = locks.entrySet().iterator();
+      while (iter.hasNext()) {
+         Map.Entry<Object,LockMode> e = iter.next();
+         LockMode mode = keep.get(e.getKey());
+         if (mode == null) {
+            locktbl.unlock(e.getKey(), txnum);
+            iter.remove();
+         }
+         else if (e.getValue() != mode) {
+            locktbl.downgrade(e.getKey(), txnum, mode);
+            e.setValue(mode);
+         }
+      }
+      Arrays.fill(cachedFile, null);
+      Arrays.fill(cachedMode, null);
+   }
+   
+   private void lockBlock(Block blk, LockMode filemode, LockMode mode) {
+      LockMode held = locks.get(blk);
+      if (held == null || !held.covers(mode)) {
+         lock(blk.fileName(), filemode);
+         held = lock(blk, mode);
+      }
+      remember(blk, BLOCK, held);
    }
    
-   private boolean hasXLock(Block blk) {
-      String locktype = locks.get(blk);
-      return locktype != null && locktype.equals("X");
+   /**
+    * Returns true if the transaction's lock on the object
+    * is at least as strong as the specified mode.
+    */
+   private boolean holds(Object key, LockMode mode) {
+      LockMode held = locks.get(key);
+      return held != null && held.covers(mode);
+   }
+   
+   /**
+    * Obtains a lock on the object that is at least as strong
+    * as the specified mode and as the lock already held,
+    * and returns the mode of the lock.
+    */
+   private LockMode lock(Object key, LockMode mode) {
+      LockMode held = locks.get(key);
+      if (held != null) {
+         mode = held.supremum(mode);
+         if (mode == held)
+            return held;
+      }
+      locktbl.lock(key, txnum, mode);
+      locks.put(key, mode);
+      return mode;
+   }
+   
+   /**
+    * Returns true if the cache shows that the transaction holds
+    * a lock at least as strong as the specified mode on the block,
+    * or on the record in the specified slot of the block.
+    * Since a lock never gets weaker until it is released,
+    * the cached mode of a lock may only understate it.
+    */
+   private boolean cached(Block blk, int slot, LockMode mode) {
+      String filename = blk.fileName();
+      int blknum = blk.number();
+      for (int i=0; i<CACHE_SIZE; i++)
+         if (cachedBlk[i] == blknum && cachedSlot[i] == slot && cachedFile[i] == filename)
+            return cachedMode[i].covers(mode);
+      return false;
+   }
+   
+   private void remember(Block blk, int slot, LockMode mode) {
+      String filename = blk.fileName();
+      int blknum = blk.number();
+      int i = 0;
+      while (i < CACHE_SIZE && !(cachedBlk[i] == blknum
+                                 && cachedSlot[i] == slot && cachedFile[i] == filename))
+         i++;
+      if (i == CACHE_SIZE) {
+         i = victim;
+         victim = (victim + 1) % CACHE_SIZE;
+      }
+      cachedFile[i] = filename;
+      cachedBlk[i] = blknum;
+      cachedSlot[i] = slot;
+      cachedMode[i] = mode;
+   }
+   
+   /**
+    * The key that identifies a record in the lock table:
+    * its block and its slot within the block.
+    */
+   private static class RecordKey {
+      private Block blk;
+      private int slot;
+      
+      RecordKey(Block blk, int slot) {
+         this.blk = blk;
+         this.slot = slot;
+      }
+      
+      public boolean equals(Object obj) {
+         if (!(obj instanceof RecordKey))
+            return false;
+         RecordKey key = (RecordKey) obj;
+         return slot == key.slot && blk.equals(key.blk);
+      }
+      
+      public int hashCode() {
+         return 31 * blk.hashCode() + slot;
+      }
    }
 }
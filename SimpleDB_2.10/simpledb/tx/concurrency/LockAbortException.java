@@ -2,11 +2,18 @@ package simpledb.tx.concurrency;
 
 /**
  * A runtime exception indicating that the transaction
- * needs to abort because a lock could not be obtained.
+ * needs to abort because a lock could not be obtained,
+ * since waiting for it would have caused a deadlock,
+ * or because the thread was interrupted while waiting,
+ * or because the locked block was truncated away meanwhile.
  * @author Edward Sciore
  */
 @SuppressWarnings("serial")
 public class LockAbortException extends RuntimeException {
    public LockAbortException() {
    }
+   
+   public LockAbortException(String message) {
+      super(message);
+   }
 }
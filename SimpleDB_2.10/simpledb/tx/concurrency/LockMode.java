@@ -0,0 +1,70 @@
+package simpledb.tx.concurrency;
+
+/**
+ * The modes of multi-granularity locking:
+ * the intention modes IS and IX,
+ * which announce shared or exclusive locks on parts of an object,
+ * S, X, and SIX (a shared lock on the object
+ * with exclusive locks on some of its parts).
+ */
+enum LockMode {
+   IS, IX, S, SIX, X;
+
+   /**
+    * The compatibility of the modes, indexed by their ordinals:
+    * a transaction can be granted mode m on an object on which
+    * another transaction holds mode h if COMPATIBLE[h][m] is true.
+    */
+   private static final boolean[][] COMPATIBLE = {
+      //  IS     IX     S      SIX    X
+      {  true,  true,  true,  true,  false },  // IS
+      {  true,  true,  false, false, false },  // IX
+      {  true,  false, true,  false, false },  // S
+      {  true,  false, false, false, false },  // SIX
+      {  false, false, false, false, false },  // X
+   };
+
+   /**
+    * The weakest mode that is at least as strong as both of two modes,
+    * indexed by their ordinals.
+    */
+   private static final LockMode[][] SUPREMUM = {
+      //IS   IX   S    SIX  X
+      { IS,  IX,  S,   SIX, X },  // IS
+      { IX,  IX,  SIX, SIX, X },  // IX
+      { S,   SIX, S,   SIX, X },  // S
+      { SIX, SIX, SIX, SIX, X },  // SIX
+      { X,   X,   X,   X,   X },  // X
+   };
+
+   /**
+    * Returns true if another transaction can be granted
+    * the specified mode while this one is held.
+    * @param requested the requested mode
+    * @return true if the modes are compatible
+    */
+   boolean compatibleWith(LockMode requested) {
+      return COMPATIBLE[ordinal()][requested.ordinal()];
+   }
+
+   /**
+    * Returns the weakest mode that is at least as strong
+    * as this mode and the specified one,
+    * which a transaction holding this mode needs
+    * when it requests the other.
+    * @param other the other mode
+    * @return the least upper bound of the two modes
+    */
+   LockMode supremum(LockMode other) {
+      return SUPREMUM[ordinal()][other.ordinal()];
+   }
+
+   /**
+    * Returns true if this mode is at least as strong as the specified one.
+    * @param other the other mode
+    * @return true if holding this mode implies holding the other
+    */
+   boolean covers(LockMode other) {
+      return supremum(other) == this;
+   }
+}
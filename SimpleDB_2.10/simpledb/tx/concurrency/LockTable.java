@@ -1,103 +1,419 @@
 package simpledb.tx.concurrency;
 
-import simpledb.file.Block;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * The lock table, which provides methods to lock and unlock blocks.
- * If a transaction requests a lock that causes a conflict with an
- * existing lock, then that transaction is placed on a wait list.
- * There is only one wait list for all blocks.
- * When the last lock on a block is unlocked, then all transactions
- * are removed from the wait list and rescheduled.
- * If one of those transactions discovers that the lock it is waiting for
- * is still locked, it will place itself back on the wait list.
- * @author Edward Sciore
+ * The lock table, which provides methods to lock and unlock
+ * the objects of the database (files, blocks and records).
+ * An object is identified by any key that has the proper
+ * equals and hashCode methods.
+ * Each lock is held on behalf of a transaction,
+ * identified by its transaction number,
+ * in one of the five modes of multi-granularity locking (see {@link LockMode}).
+ * Two transactions can hold locks on the same object
+ * if their modes are compatible.
+ * <p>
+ * The table is divided into stripes, and each object belongs
+ * to the stripe that its hash code selects.
+ * Each stripe has its own mutex and its own map from objects to their locks,
+ * so transactions that lock objects of different stripes
+ * do not contend with each other.
+ * <p>
+ * Each locked object has a FIFO queue of the requests that had to wait.
+ * A request is granted immediately only if it is compatible
+ * with the other transactions' locks and nobody is waiting;
+ * a conversion of a lock to a stronger mode goes to the front of the queue,
+ * since its transaction already holds the object.
+ * When a lock is released, the requests at the front of the queue
+ * that have become compatible are granted in order,
+ * and only their threads are woken up, each through its own condition.
+ * <p>
+ * A request waits for as long as it takes, unless waiting would
+ * create a deadlock.
+ * Before a request starts to wait, the table looks for a cycle
+ * in the waits-for graph that goes through the requesting transaction.
+ * A waiting transaction waits for the transactions that hold
+ * a conflicting lock on its object, and for those whose conflicting
+ * requests are ahead of it in the queue.
+ * The search reads the requests of one stripe at a time,
+ * under that stripe's mutex, so it never stops the whole table.
+ * Since the graph may change meanwhile, a cycle that the search finds
+ * is checked again, one stripe at a time, while holding the lock of
+ * the detector, which admits one such check at a time.
+ * If the cycle is still there, the requesting transaction is the victim:
+ * its request is marked as abandoned, it leaves the queue,
+ * and an exception is thrown;
+ * no other waiting transaction is aborted.
+ * Since every new wait is checked, a deadlock is always detected by
+ * a request that closes the cycle.
+ * If two requests close the same cycle at the same time,
+ * only the first one to check it is aborted:
+ * the other finds the abandoned request in the cycle,
+ * searches again, and waits for the victim to release its locks.
  */
 class LockTable {
-   private static final long MAX_TIME = 10000; // 10 seconds
+   private static final int NUM_STRIPES = 64; // must be a power of 2
    
-   private Map<Block,Integer> locks = new HashMap<Block,Integer>();
+   private Stripe[] stripes = new Stripe[NUM_STRIPES];
+   private Map<Integer,Waiter> waiting = new ConcurrentHashMap<Integer,Waiter>();
+   private ReentrantLock detector = new ReentrantLock();
+   
+   LockTable() {
+      for (int i=0; i<NUM_STRIPES; i++)
+         stripes[i] = new Stripe();
+   }
    
    /**
-    * Grants an SLock on the specified block.
-    * If an XLock exists when the method is called,
-    * then the calling thread will be placed on a wait list
-    * until the lock is released.
-    * If the thread remains on the wait list for a certain 
-    * amount of time (currently 10 seconds),
-    * then an exception is thrown.
-    * @param blk a reference to the disk block
+    * Grants a lock in the specified mode on the specified object
+    * to the specified transaction.
+    * If the transaction already holds a lock on the object,
+    * the mode must be at least as strong as the one it holds,
+    * and the lock is converted to the new mode.
+    * If another transaction holds a conflicting lock,
+    * or if other requests are waiting for the object,
+    * then the calling thread waits in the object's queue
+    * until the lock can be granted.
+    * If waiting would cause a deadlock,
+    * then an exception is thrown instead.
+    * @param key the object to lock
+    * @param txnum the number of the requesting transaction
+    * @param mode the mode of the lock
     */
-   public synchronized void sLock(Block blk) {
+   void lock(Object key, int txnum, LockMode mode) {
+      Stripe s = stripeFor(key);
+      LockEntry e;
+      Waiter w;
+      s.mutex.lock();
+      try {
+         e = entry(s, key);
+         boolean conversion = e.holders.containsKey(txnum);
+         // a conversion would go to the front of the queue anyway
+         if ((conversion || e.queue.isEmpty()) && compatible(e, txnum, mode)) {
+            e.holders.put(txnum, mode);
+            return;
+         }
+         w = new Waiter(txnum, mode, e, s);
+         if (conversion)
+            e.queue.addFirst(w);
+         else
+            e.queue.addLast(w);
+         waiting.put(txnum, w);
+      }
+      finally {
+         s.mutex.unlock();
+      }
+      
+      boolean deadlock = createsDeadlock(w);
+      s.mutex.lock();
       try {
-         long timestamp = System.currentTimeMillis();
-         while (hasXlock(blk) && !waitingTooLong(timestamp))
-            wait(MAX_TIME);
-         if (hasXlock(blk))
+         if (!deadlock)
+            await(w);
+         if (!w.granted) {
+            e.queue.remove(w);
+            waiting.remove(txnum);
+            grant(e);
+            if (e.holders.isEmpty() && e.queue.isEmpty())
+               s.locks.remove(key);
             throw new LockAbortException();
-         int val = getLockVal(blk);  // will not be negative
-         locks.put(blk, val+1);
+         }
       }
-      catch(InterruptedException e) {
-         throw new LockAbortException();
+      finally {
+         s.mutex.unlock();
       }
    }
    
    /**
-    * Grants an XLock on the specified block.
-    * If a lock of any type exists when the method is called,
-    * then the calling thread will be placed on a wait list
-    * until the locks are released.
-    * If the thread remains on the wait list for a certain 
-    * amount of time (currently 10 seconds),
-    * then an exception is thrown.
-    * @param blk a reference to the disk block
+    * Grants a lock in the specified mode on the specified object
+    * if that can be done without waiting,
+    * as {@link #lock(Object, int, LockMode) lock} does.
+    * Otherwise the method returns false,
+    * and the transaction's locks do not change.
+    * @param key the object to lock
+    * @param txnum the number of the requesting transaction
+    * @param mode the mode of the lock
+    * @return true if the lock was granted
     */
-   synchronized void xLock(Block blk) {
+   boolean tryLock(Object key, int txnum, LockMode mode) {
+      Stripe s = stripeFor(key);
+      s.mutex.lock();
       try {
-         long timestamp = System.currentTimeMillis();
-         while (hasOtherSLocks(blk) && !waitingTooLong(timestamp))
-            wait(MAX_TIME);
-         if (hasOtherSLocks(blk))
-            throw new LockAbortException();
-         locks.put(blk, -1);
+         LockEntry e = entry(s, key);
+         boolean conversion = e.holders.containsKey(txnum);
+         if ((conversion || e.queue.isEmpty()) && compatible(e, txnum, mode)) {
+            e.holders.put(txnum, mode);
+            return true;
+         }
+         if (e.holders.isEmpty() && e.queue.isEmpty())
+            s.locks.remove(key);
+         return false;
+      }
+      finally {
+         s.mutex.unlock();
+      }
+   }
+   
+   /**
+    * Releases the lock of the specified transaction on the specified object,
+    * and grants the waiting requests that it no longer blocks.
+    * @param key the locked object
+    * @param txnum the number of the transaction
+    */
+   void unlock(Object key, int txnum) {
+      Stripe s = stripeFor(key);
+      s.mutex.lock();
+      try {
+         LockEntry e = s.locks.get(key);
+         if (e == null)
+            return;
+         e.holders.remove(txnum);
+         grant(e);
+         if (e.holders.isEmpty() && e.queue.isEmpty())
+            s.locks.remove(key);
+      }
+      finally {
+         s.mutex.unlock();
+      }
+   }
+   
+   /**
+    * Weakens the lock of the specified transaction on the specified object
+    * to the specified mode, without releasing it,
+    * and grants the waiting requests that it no longer blocks.
+    * @param key the locked object
+    * @param txnum the number of the transaction
+    * @param mode the new mode, which must be weaker than the one held
+    */
+   void downgrade(Object key, int txnum, LockMode mode) {
+      Stripe s = stripeFor(key);
+      s.mutex.lock();
+      try {
+         LockEntry e = s.locks.get(key);
+         if (e == null || !e.holders.containsKey(txnum))
+            return;
+         e.holders.put(txnum, mode);
+         grant(e);
+      }
+      finally {
+         s.mutex.unlock();
+      }
+   }
+   
+   private LockEntry entry(Stripe s, Object key) {
+      LockEntry e = s.locks.get(key);
+      if (e == null) {
+         e = new LockEntry();
+         s.locks.put(key, e);
+      }
+      return e;
+   }
+   
+   /**
+    * Waits until the request is granted,
+    * or until the thread is interrupted.
+    * The caller must hold the stripe's mutex,
+    * which is released while waiting.
+    */
+   private void await(Waiter w) {
+      try {
+         while (!w.granted)
+            w.cond.await();
+      }
+      catch(InterruptedException ex) {
+         // the request is abandoned, unless it was just granted
+         w.abandoned = !w.granted;
+      }
+   }
+   
+   /**
+    * Grants the requests at the front of the queue
+    * that are compatible with the current locks,
+    * and signals their threads.
+    * The caller must hold the stripe's mutex.
+    */
+   private void grant(LockEntry e) {
+      while (!e.queue.isEmpty()) {
+         Waiter w = e.queue.getFirst();
+         if (w.abandoned) {
+            // its thread is about to remove it and throw
+            e.queue.removeFirst();
+            continue;
+         }
+         if (!compatible(e, w.txnum, w.mode))
+            return;
+         e.holders.put(w.txnum, w.mode);
+         e.queue.removeFirst();
+         waiting.remove(w.txnum);
+         w.granted = true;
+         w.cond.signal();
       }
-      catch(InterruptedException e) {
-         throw new LockAbortException();
+   }
+   
+   /**
+    * Returns true if the waiting request closes a cycle
+    * of the waits-for graph, in which case the request
+    * is marked as abandoned.
+    * The caller must not hold any stripe's mutex.
+    */
+   private boolean createsDeadlock(Waiter w) {
+      while (true) {
+         List<Waiter> cycle = new ArrayList<Waiter>();
+         if (!reaches(w, w.txnum, new HashSet<Integer>(), cycle))
+            return false;
+         detector.lock();
+         try {
+            if (isCycle(cycle))
+               return abandon(w);
+         }
+         finally {
+            detector.unlock();
+         }
       }
    }
    
    /**
-    * Releases a lock on the specified block.
-    * If this lock is the last lock on that block,
-    * then the waiting transactions are notified.
-    * @param blk a reference to the disk block
+    * Returns true if the waiter waits, directly or not,
+    * for the target transaction.
+    * The waiters on the way to the target are appended to the path.
     */
-   synchronized void unlock(Block blk) {
-      int val = getLockVal(blk);
-      if (val > 1)
-         locks.put(blk, val-1);
-      else {
-         locks.remove(blk);
-         notifyAll();
+   private boolean reaches(Waiter w, int target, Set<Integer> visited, List<Waiter> path) {
+      path.add(w);
+      for (int txnum : blockers(w, -1)) {
+         if (txnum == target)
+            return true;
+         Waiter next = waiting.get(txnum);
+         if (next != null && visited.add(txnum) && reaches(next, target, visited, path))
+            return true;
       }
+      path.remove(path.size() - 1);
+      return false;
    }
    
-   private boolean hasXlock(Block blk) {
-      return getLockVal(blk) < 0;
+   /**
+    * Returns true if each waiter of the path still waits
+    * for the transaction of the next one,
+    * and the last one for the transaction of the first one.
+    * The caller must hold the detector's lock,
+    * so that no other cycle is broken meanwhile.
+    */
+   private boolean isCycle(List<Waiter> path) {
+      for (int i=0; i<path.size(); i++) {
+         Waiter next = path.get((i + 1) % path.size());
+         if (waiting.get(next.txnum) != next
+               || blockers(path.get(i), next.txnum).isEmpty())
+            return false;
+      }
+      return true;
    }
    
-   private boolean hasOtherSLocks(Block blk) {
-      return getLockVal(blk) > 1;
+   /**
+    * Marks the waiting request as abandoned, unless it has been granted.
+    * @return true if the request was abandoned
+    */
+   private boolean abandon(Waiter w) {
+      w.stripe.mutex.lock();
+      try {
+         w.abandoned = !w.granted;
+         return w.abandoned;
+      }
+      finally {
+         w.stripe.mutex.unlock();
+      }
    }
    
-   private boolean waitingTooLong(long starttime) {
-      return System.currentTimeMillis() - starttime > MAX_TIME;
+   /**
+    * Returns the transactions that the waiter waits for:
+    * the holders of a conflicting lock on its object,
+    * and the transactions whose conflicting requests are ahead of it.
+    * Only the specified transaction is returned if it is not -1.
+    * A request that has been granted or abandoned waits for nobody.
+    * The mutex of the waiter's stripe is held meanwhile.
+    */
+   private List<Integer> blockers(Waiter w, int only) {
+      List<Integer> result = new ArrayList<Integer>();
+      w.stripe.mutex.lock();
+      try {
+         if (w.granted || w.abandoned)
+            return result;
+         LockEntry e = w.entry;
+         for (Map.Entry<Integer,LockMode> h : e.holders.entrySet()) {
+            int txnum = h.getKey();
+            if (txnum != w.txnum && (only < 0 || txnum == only)
+                  && !h.getValue().compatibleWith(w.mode))
+               result.add(txnum);
+         }
+         for (Waiter ahead : e.queue) {
+            if (ahead == w)
+               break;
+            if (!ahead.abandoned && (only < 0 || ahead.txnum == only)
+                  && !ahead.mode.compatibleWith(w.mode))
+               result.add(ahead.txnum);
+         }
+         return result;
+      }
+      finally {
+         w.stripe.mutex.unlock();
+      }
    }
    
-   private int getLockVal(Block blk) {
-      Integer ival = locks.get(blk);
-      return (ival == null) ? 0 : ival.intValue();
+   /**
+    * Returns true if the requested mode is compatible
+    * with the locks of the other transactions.
+    */
+   private boolean compatible(LockEntry e, int txnum, LockMode mode) {
+      for (Map.Entry<Integer,LockMode> h : e.holders.entrySet())
+         if (h.getKey() != txnum && !h.getValue().compatibleWith(mode))
+            return false;
+      return true;
+   }
+   
+   private Stripe stripeFor(Object key) {
+      return stripes[key.hashCode() & (NUM_STRIPES - 1)];
+   }
+   
+   /**
+    * A stripe of the table: the locks of the objects that hash to it,
+    * and the mutex that guards them.
+    */
+   private static class Stripe {
+      ReentrantLock mutex = new ReentrantLock();
+      Map<Object,LockEntry> locks = new HashMap<Object,LockEntry>();
+   }
+   
+   /**
+    * The locks on an object:
+    * the mode held by each transaction,
+    * and the queue of waiting requests.
+    */
+   private static class LockEntry {
+      Map<Integer,LockMode> holders = new HashMap<Integer,LockMode>(4);
+      LinkedList<Waiter> queue = new LinkedList<Waiter>();
+   }
+   
+   /**
+    * A waiting request, with the object's locks that it waits for,
+    * the stripe of the object, and the condition that its thread waits on.
+    * A request is abandoned when it is chosen as the victim of a deadlock,
+    * or when its thread is interrupted;
+    * it stays in the queue until its thread removes it.
+    * The flags are guarded by the stripe's mutex.
+    */
+   private static class Waiter {
+      int txnum;
+      LockMode mode;
+      LockEntry entry;
+      Stripe stripe;
+      Condition cond;
+      boolean granted = false, abandoned = false;
+      
+      Waiter(int txnum, LockMode mode, LockEntry entry, Stripe stripe) {
+         this.txnum = txnum;
+         this.mode = mode;
+         this.entry = entry;
+         this.stripe = stripe;
+         this.cond = stripe.mutex.newCondition();
+      }
    }
 }
@@ -0,0 +1,279 @@
+package simpledb.tx.concurrency;
+
+import simpledb.file.*;
+import simpledb.buffer.Buffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * The snapshot of the database that a read-only transaction sees
+ * (see {@link simpledb.server.SimpleDB#SNAPSHOT_READS}).
+ * The snapshot holds the updates of the transactions that had
+ * finished when the read-only transaction started, and nothing else,
+ * so the transaction can read without locks:
+ * it neither waits for the writers, nor makes them wait.
+ * <p>
+ * Before a transaction updates a value, it saves the old value
+ * in the version store, which keeps a list of old values per block.
+ * When a snapshot reads a block, it copies the buffer's page
+ * and restores, from the newest to the oldest, the old values saved by the
+ * transactions that it does not see.
+ * The copy is made while holding the buffer's latch in shared mode,
+ * so it agrees with the list of old values.
+ * The copies of the most recently read blocks are kept,
+ * since the snapshot's version of a block never changes.
+ * <p>
+ * The old values of a transaction are discarded when it finishes,
+ * unless a running snapshot does not see it;
+ * in that case they are discarded when the last such snapshot ends.
+ * The truncation of a file is postponed in the same way
+ * (see {@link #whenSeenByAll(int, Runnable)}),
+ * since the snapshots that do not see the truncating transaction
+ * may still read the removed blocks.
+ */
+public class Snapshot {
+   private static final int CACHED_PAGES = 32;
+
+   private static ConcurrentHashMap<Block,List<Version>> versions = new ConcurrentHashMap<Block,List<Version>>();
+   private static List<Snapshot> running = new ArrayList<Snapshot>();
+   private static Map<Integer,Collection<Block>> retained = new HashMap<Integer,Collection<Block>>(); // guarded by running
+   private static Map<Integer,Runnable> deferred = new HashMap<Integer,Runnable>(); // guarded by running
+
+   private int txnum;
+   private Collection<Integer> unfinished;
+   private int next;
+   private LinkedHashMap<Block,Page> pages = new LinkedHashMap<Block,Page>(16, 0.75f, true);
+
+   /**
+    * Creates the snapshot of the specified read-only transaction.
+    * The caller must make sure that no other transaction
+    * starts or finishes meanwhile.
+    * @param txnum the number of the read-only transaction
+    * @param unfinished the numbers of the transactions that have not finished
+    * @param next the number of the next transaction to start
+    */
+   public Snapshot(int txnum, Collection<Integer> unfinished, int next) {
+      this.txnum = txnum;
+      this.unfinished = new HashSet<Integer>(unfinished);
+      this.next = next;
+      synchronized (running) {
+         running.add(this);
+      }
+   }
+
+   /**
+    * Saves the integer that the specified transaction is about to
+    * overwrite at the specified offset of the specified block.
+    * The caller must hold the latch of the block's buffer
+    * in exclusive mode.
+    * @param txnum the number of the updating transaction
+    * @param blk a reference to the disk block
+    * @param offset the byte offset within the block
+    * @param oldval the value before the update
+    */
+   public static void saveInt(int txnum, Block blk, int offset, int oldval) {
+      save(blk, new Version(txnum, offset, oldval));
+   }
+
+   /**
+    * Saves the string that the specified transaction is about to
+    * overwrite at the specified offset of the specified block,
+    * as {@link #saveInt(int, Block, int, int) saveInt} does.
+    * @param txnum the number of the updating transaction
+    * @param blk a reference to the disk block
+    * @param offset the byte offset within the block
+    * @param oldval the value before the update
+    */
+   public static void saveString(int txnum, Block blk, int offset, String oldval) {
+      save(blk, new Version(txnum, offset, oldval));
+   }
+
+   /**
+    * Tells the version store that the specified transaction has finished.
+    * Its old values are discarded,
+    * unless a running snapshot still needs them.
+    * @param txnum the number of the transaction
+    * @param blocks the blocks for which the transaction saved old values
+    */
+   public static void finished(int txnum, Collection<Block> blocks) {
+      synchronized (running) {
+         for (Snapshot s : running)
+            if (!s.sees(txnum)) {
+               retained.put(txnum, blocks);
+               return;
+            }
+      }
+      discard(txnum, blocks);
+   }
+
+   /**
+    * Runs the specified action once every running snapshot
+    * sees the specified transaction:
+    * immediately if they all do, or else when the last snapshot
+    * that does not see it ends.
+    * The transaction must have finished already,
+    * so that the snapshots that start from now on see it.
+    * The action runs while holding the monitor of the list of snapshots,
+    * so no snapshot starts meanwhile.
+    * @param txnum the number of the finished transaction
+    * @param action the action to run
+    */
+   public static void whenSeenByAll(int txnum, Runnable action) {
+      synchronized (running) {
+         if (seenByAll(txnum))
+            action.run();
+         else
+            deferred.put(txnum, action);
+      }
+   }
+
+   /**
+    * Returns the snapshot's version of the specified block,
+    * whose buffer is pinned by the read-only transaction.
+    * The returned page must not be modified.
+    * @param blk a reference to the disk block
+    * @param buff the buffer pinned to the block
+    * @return the page holding the snapshot's version of the block
+    */
+   public Page read(Block blk, Buffer buff) {
+      Page p = pages.get(blk);
+      if (p != null)
+         return p;
+      if (pages.size() < CACHED_PAGES)
+         p = new Page();
+      else {
+         Iterator<Page> iter = pages.values().iterator();
+         p = iter.next();
+         iter.remove();
+      }
+      Lock latch = buff.latch().readLock();
+      latch.lock();
+      try {
+         buff.copyTo(p);
+         List<Version> list = versions.get(blk);
+         if (list != null) {
+            synchronized (list) {
+               for (int i=list.size()-1; i>=0; i--) {
+                  Version v = list.get(i);
+                  if (!sees(v.txnum))
+                     v.restore(p);
+               }
+            }
+         }
+      }
+      finally {
+         latch.unlock();
+      }
+      pages.put(blk, p);
+      return p;
+   }
+
+   /**
+    * Ends the snapshot, discards the old values
+    * that no running snapshot needs anymore,
+    * and runs the deferred actions that were waiting for it.
+    */
+   public void close() {
+      pages.clear();
+      Map<Integer,Collection<Block>> unneeded = new HashMap<Integer,Collection<Block>>();
+      synchronized (running) {
+         running.remove(this);
+         Iterator<Map.Entry<Integer,Collection<Block>>> iter = retained.entrySet().iterator();
+         while (iter.hasNext()) {
+            Map.Entry<Integer,Collection<Block>> e = iter.next();
+            if (seenByAll(e.getKey())) {
+               unneeded.put(e.getKey(), e.getValue());
+               iter.remove();
+            }
+         }
+         Iterator<Map.Entry<Integer,Runnable>> actions = deferred.entrySet().iterator();
+         while (actions.hasNext()) {
+            Map.Entry<Integer,Runnable> e = actions.next();
+            if (seenByAll(e.getKey())) {
+               actions.remove();
+               e.getValue().run();
+            }
+         }
+      }
+      for (Map.Entry<Integer,Collection<Block>> e : unneeded.entrySet())
+         discard(e.getKey(), e.getValue());
+   }
+
+   /**
+    * Returns true if the updates of the specified transaction
+    * belong to the snapshot.
+    */
+   private boolean sees(int t) {
+      return t == txnum || (t < next && !unfinished.contains(t));
+   }
+
+   /**
+    * Returns true if every running snapshot sees the transaction.
+    * The caller must hold the monitor of the list of snapshots.
+    */
+   private static boolean seenByAll(int t) {
+      for (Snapshot s : running)
+         if (!s.sees(t))
+            return false;
+      return true;
+   }
+
+   private static void save(Block blk, Version v) {
+      while (true) {
+         List<Version> list = versions.get(blk);
+         if (list == null) {
+            list = new ArrayList<Version>(4);
+            List<Version> other = versions.putIfAbsent(blk, list);
+            if (other != null)
+               list = other;
+         }
+         synchronized (list) {
+            // the list is abandoned when it becomes empty
+            if (versions.get(blk) == list) {
+               list.add(v);
+               return;
+            }
+         }
+      }
+   }
+
+   private static void discard(int txnum, Collection<Block> blocks) {
+      for (Block blk : blocks) {
+         List<Version> list = versions.get(blk);
+         if (list == null)
+            continue;
+         synchronized (list) {
+            Iterator<Version> iter = list.iterator();
+            while (iter.hasNext())
+               if (iter.next().txnum == txnum)
+                  iter.remove();
+            if (list.isEmpty())
+               versions.remove(blk);
+         }
+      }
+   }
+
+   /**
+    * The value at an offset of a block before an update,
+    * with the number of the transaction that made the update.
+    */
+   private static class Version {
+      int txnum;
+      int offset;
+      Object oldval; // an Integer or a String
+
+      Version(int txnum, int offset, Object oldval) {
+         this.txnum = txnum;
+         this.offset = offset;
+         this.oldval = oldval;
+      }
+
+      void restore(Page p) {
+         if (oldval instanceof Integer)
+            p.setInt(offset, (Integer) oldval);
+         else
+            p.setString(offset, (String) oldval);
+      }
+   }
+}
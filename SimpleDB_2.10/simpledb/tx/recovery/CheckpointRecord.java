@@ -26,7 +26,7 @@ class CheckpointRecord implements LogRecord {
     * and nothing else.
     * @return the LSN of the last log value
     */
-   public int writeToLog() {
+   public long writeToLog() {
       Object[] rec = new Object[] {CHECKPOINT};
       return logMgr.append(rec);
    }
@@ -49,6 +49,12 @@ class CheckpointRecord implements LogRecord {
     */
    public void undo(int txnum) {}
    
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no redo information.
+    */
+   public void redo(int txnum) {}
+   
    public String toString() {
       return "<CHECKPOINT>";
    }
@@ -9,11 +9,11 @@ import simpledb.server.SimpleDB;
  */
 public interface LogRecord {
    /**
-    * The six different types of log record
+    * The seven different types of log record
     */
    static final int CHECKPOINT = 0, START = 1,
       COMMIT = 2, ROLLBACK  = 3,
-      SETINT = 4, SETSTRING = 5;
+      SETINT = 4, SETSTRING = 5, TRUNCATE = 6;
    
    static final LogMgr logMgr = SimpleDB.logMgr();
    
@@ -21,7 +21,7 @@ public interface LogRecord {
     * Writes the record to the log and returns its LSN.
     * @return the LSN of the record in the log
     */
-   int writeToLog();
+   long writeToLog();
    
    /**
     * Returns the log record's type. 
@@ -43,4 +43,12 @@ public interface LogRecord {
     * @param txnum the id of the transaction that is performing the undo.
     */
    void undo(int txnum);
+   
+   /**
+    * Redoes the operation encoded by this log record.
+    * The only log record types for which this method
+    * does anything interesting are SETINT and SETSTRING.
+    * @param txnum the id of the transaction that is performing the redo.
+    */
+   void redo(int txnum);
 }
\ No newline at end of file
@@ -45,6 +45,8 @@ class LogRecordIterator implements Iterator<LogRecord> {
             return new SetIntRecord(rec);
          case SETSTRING:
             return new SetStringRecord(rec);
+         case TRUNCATE:
+            return new TruncateRecord(rec);
          default:
             return null;
       }
@@ -24,35 +24,75 @@ public class RecoveryMgr {
 
    /**
     * Writes a commit record to the log, and flushes it to disk.
+    * Unless {@link SimpleDB#NO_FORCE_COMMIT} is set, the
+    * transaction's modified buffers are flushed first.
+    * In no-force mode they are written later, by the
+    * buffer manager; the redo pass of recovery reapplies
+    * any committed modifications that did not reach the disk.
+    * The flushed buffers are also forced to disk if the file manager
+    * {@link simpledb.file.FileMgr#syncsOnCommit() syncs on commit}.
     */
    public void commit() {
-      SimpleDB.bufferMgr().flushAll(txnum);
-      int lsn = new CommitRecord(txnum).writeToLog();
-      SimpleDB.logMgr().flush(lsn);
+      if (!SimpleDB.NO_FORCE_COMMIT) {
+         SimpleDB.bufferMgr().flushAll(txnum);
+         if (SimpleDB.fileMgr().syncsOnCommit())
+            SimpleDB.fileMgr().forceAll();
+      }
+      long lsn = new CommitRecord(txnum).writeToLog();
+      SimpleDB.logMgr().flushCommit(lsn);
    }
 
    /**
     * Writes a rollback record to the log, and flushes it to disk.
+    * The buffers restored by the rollback are always flushed
+    * and forced to disk first,
+    * because the undo operations themselves are not logged.
     */
    public void rollback() {
       doRollback();
       SimpleDB.bufferMgr().flushAll(txnum);
-      int lsn = new RollbackRecord(txnum).writeToLog();
-      SimpleDB.logMgr().flush(lsn);
+      SimpleDB.fileMgr().forceAll();
+      long lsn = new RollbackRecord(txnum).writeToLog();
+      SimpleDB.logMgr().flushCommit(lsn);
    }
 
    /**
     * Recovers uncompleted transactions from the log,
     * then writes a quiescent checkpoint record to the log and flushes it.
+    * Meanwhile, blocks that fail their checksum are read anyway,
+    * since recovery repairs the pages that the crash left torn.
     */
    public void recover() {
-      doRecover();
-      SimpleDB.bufferMgr().flushAll(txnum);
-      int lsn = new CheckpointRecord().writeToLog();
+      SimpleDB.fileMgr().setRecovering(true);
+      try {
+         doRecover();
+      }
+      finally {
+         SimpleDB.fileMgr().setRecovering(false);
+      }
+      SimpleDB.bufferMgr().flushAll();
+      long lsn = new CheckpointRecord().writeToLog();
       SimpleDB.logMgr().flush(lsn);
 
    }
 
+   /**
+    * Writes a truncate record to the log, and flushes it to disk,
+    * before the specified file loses its blocks
+    * from the specified block number on.
+    * All modified buffers are flushed and forced to disk first,
+    * so that the removed blocks are empty on disk
+    * even if the system crashes before the file is truncated:
+    * recovery no longer redoes their earlier updates.
+    * @param filename the name of the file
+    * @param numblocks the number of blocks that remain in the file
+    */
+   public void truncate(String filename, int numblocks) {
+      SimpleDB.bufferMgr().flushAll();
+      long lsn = new TruncateRecord(txnum, filename, numblocks).writeToLog();
+      SimpleDB.logMgr().flush(lsn);
+   }
+
    /**
     * Writes a setint record to the log, and returns its lsn.
     * Updates to temporary files are not logged; instead, a
@@ -61,13 +101,13 @@ public class RecoveryMgr {
     * @param offset the offset of the value in the page
     * @param newval the value to be written
     */
-   public int setInt(Buffer buff, int offset, int newval) {
+   public long setInt(Buffer buff, int offset, int newval) {
       int oldval = buff.getInt(offset);
       Block blk = buff.block();
       if (isTempBlock(blk))
          return -1;
       else
-         return new SetIntRecord(txnum, blk, offset, oldval).writeToLog();
+         return new SetIntRecord(txnum, blk, offset, oldval, newval).writeToLog();
    }
 
    /**
@@ -78,13 +118,13 @@ public class RecoveryMgr {
     * @param offset the offset of the value in the page
     * @param newval the value to be written
     */
-   public int setString(Buffer buff, int offset, String newval) {
+   public long setString(Buffer buff, int offset, String newval) {
       String oldval = buff.getString(offset);
       Block blk = buff.block();
       if (isTempBlock(blk))
          return -1;
       else
-         return new SetStringRecord(txnum, blk, offset, oldval).writeToLog();
+         return new SetStringRecord(txnum, blk, offset, oldval, newval).writeToLog();
    }
 
    /**
@@ -108,14 +148,24 @@ public class RecoveryMgr {
 
    /**
     * Does a complete database recovery.
-    * The method iterates through the log records.
+    * The method iterates backwards through the log records.
     * Whenever it finds a log record for an unfinished
     * transaction, it calls undo() on that record.
-    * The method stops when it encounters a CHECKPOINT record
+    * The undo pass stops when it encounters a CHECKPOINT record
     * or the end of the log.
+    * The log records of committed transactions are saved,
+    * and are then redone in forward order, because
+    * their modifications may not have been flushed
+    * when the transactions committed.
+    * An update is not redone if a later TRUNCATE record
+    * removed its block, since the block number may
+    * belong to a newer block of the file by now.
     */
    private void doRecover() {
       Collection<Integer> finishedTxs = new ArrayList<Integer>();
+      Collection<Integer> committedTxs = new ArrayList<Integer>();
+      List<LogRecord> redoRecs = new ArrayList<LogRecord>();
+      Map<String,Integer> truncations = new HashMap<String,Integer>();
       Iterator<LogRecord> iter = new LogRecordIterator();
       while (iter.hasNext()) {
          LogRecord rec = iter.next();
@@ -132,15 +182,47 @@ public class RecoveryMgr {
             opType = "SETINT";
          } else if (rec.op() == 5) {
             opType = "SETSTRING";
+         } else if (rec.op() == 6) {
+            opType = "TRUNCATE";
          }
          System.out.println(opType + " " + rec.txNumber());
          if (rec.op() == CHECKPOINT)
-            return;
-         if (rec.op() == COMMIT || rec.op() == ROLLBACK)
+            break;
+         if (rec.op() == COMMIT || rec.op() == ROLLBACK) {
             finishedTxs.add(rec.txNumber());
+            if (rec.op() == COMMIT)
+               committedTxs.add(rec.txNumber());
+         }
+         else if (rec.op() == TRUNCATE) {
+            TruncateRecord trec = (TruncateRecord) rec;
+            Integer later = truncations.get(trec.fileName());
+            if (later == null || trec.numBlocks() < later)
+               truncations.put(trec.fileName(), trec.numBlocks());
+         }
          else if (!finishedTxs.contains(rec.txNumber()))
             rec.undo(txnum);
+         else if (committedTxs.contains(rec.txNumber())
+                  && !isTruncated(rec, truncations))
+            redoRecs.add(rec);
       }
+      for (int i=redoRecs.size()-1; i>=0; i--)
+         redoRecs.get(i).redo(txnum);
+   }
+
+   /**
+    * Determines whether the update record modifies a block
+    * that one of the later truncations removed.
+    */
+   private boolean isTruncated(LogRecord rec, Map<String,Integer> truncations) {
+      Block blk;
+      if (rec instanceof SetIntRecord)
+         blk = ((SetIntRecord) rec).block();
+      else if (rec instanceof SetStringRecord)
+         blk = ((SetStringRecord) rec).block();
+      else
+         return false;
+      Integer numblocks = truncations.get(blk.fileName());
+      return numblocks != null && blk.number() >= numblocks;
    }
 
    /**
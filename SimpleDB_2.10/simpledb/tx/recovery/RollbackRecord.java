@@ -31,7 +31,7 @@ class RollbackRecord implements LogRecord {
     * followed by the transaction id.
     * @return the LSN of the last log value
     */
-   public int writeToLog() {
+   public long writeToLog() {
       Object[] rec = new Object[] {ROLLBACK, txnum};
       return logMgr.append(rec);
    }
@@ -50,6 +50,12 @@ class RollbackRecord implements LogRecord {
     */
    public void undo(int txnum) {}
    
+   /**
+    * Does nothing, because a rollback record
+    * contains no redo information.
+    */
+   public void redo(int txnum) {}
+   
    public String toString() {
       return "<ROLLBACK " + txnum + ">";
    }
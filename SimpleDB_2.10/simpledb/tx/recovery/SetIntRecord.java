@@ -6,7 +6,7 @@ import simpledb.file.Block;
 import simpledb.log.BasicLogRecord;
 
 class SetIntRecord implements LogRecord {
-   private int txnum, offset, val;
+   private int txnum, offset, oldval, newval;
    private Block blk;
 
    /**
@@ -14,17 +14,19 @@ class SetIntRecord implements LogRecord {
     * @param txnum the ID of the specified transaction
     * @param blk the block containing the value
     * @param offset the offset of the value in the block
-    * @param val the new value
+    * @param oldval the value before the modification
+    * @param newval the value after the modification
     */
-   public SetIntRecord(int txnum, Block blk, int offset, int val) {
+   public SetIntRecord(int txnum, Block blk, int offset, int oldval, int newval) {
       this.txnum = txnum;
       this.blk = blk;
       this.offset = offset;
-      this.val = val;
+      this.oldval = oldval;
+      this.newval = newval;
    }
 
    /**
-    * Creates a log record by reading five other values from the log.
+    * Creates a log record by reading six other values from the log.
     * @param rec the basic log record
     */
    public SetIntRecord(BasicLogRecord rec) {
@@ -33,7 +35,8 @@ class SetIntRecord implements LogRecord {
       int blknum = rec.nextInt();
       blk = new Block(filename, blknum);
       offset = rec.nextInt();
-      val = rec.nextInt();
+      oldval = rec.nextInt();
+      newval = rec.nextInt();
    }
 
    /**
@@ -41,12 +44,12 @@ class SetIntRecord implements LogRecord {
     * This log record contains the SETINT operator,
     * followed by the transaction id, the filename, number,
     * and offset of the modified block, and the previous
-    * integer value at that offset.
+    * and new integer values at that offset.
     * @return the LSN of the last log value
     */
-   public int writeToLog() {
+   public long writeToLog() {
       Object[] rec = new Object[] {SETINT, txnum, blk.fileName(),
-         blk.number(), offset, val};
+         blk.number(), offset, oldval, newval};
       return logMgr.append(rec);
    }
 
@@ -57,9 +60,17 @@ class SetIntRecord implements LogRecord {
    public int txNumber() {
       return txnum;
    }
+   
+   /**
+    * Returns the block that the record modifies.
+    * @return the modified block
+    */
+   public Block block() {
+      return blk;
+   }
 
    public String toString() {
-      return "<SETINT " + txnum + " " + blk + " " + offset + " " + val + ">";
+      return "<SETINT " + txnum + " " + blk + " " + offset + " " + oldval + " " + newval + ">";
    }
 
    /**
@@ -72,7 +83,27 @@ class SetIntRecord implements LogRecord {
    public void undo(int txnum) {
       BufferMgr buffMgr = SimpleDB.bufferMgr();
       Buffer buff = buffMgr.pin(blk);
-      buff.setInt(offset, val, txnum, -1);
+      buff.setInt(offset, oldval, txnum, -1);
+      buffMgr.unpin(buff);
+   }
+   
+   /**
+    * Replaces the specified data value with the new value saved in the log record.
+    * The method pins a buffer to the specified block,
+    * calls setInt to reapply the new value
+    * (using a dummy LSN), and unpins the buffer.
+    * Nothing is redone if the block is beyond the end of its file.
+    * Recovery does not redo the updates of blocks that a later
+    * truncation removed, since their numbers may have been reused
+    * (see {@link TruncateRecord}).
+    * @see simpledb.tx.recovery.LogRecord#redo(int)
+    */
+   public void redo(int txnum) {
+      if (blk.number() >= SimpleDB.fileMgr().size(blk.fileName()))
+         return;
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      buff.setInt(offset, newval, txnum, -1);
       buffMgr.unpin(buff);
    }
 }
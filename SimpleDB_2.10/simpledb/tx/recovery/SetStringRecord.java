@@ -7,7 +7,7 @@ import simpledb.log.BasicLogRecord;
 
 class SetStringRecord implements LogRecord {
    private int txnum, offset;
-   private String val;
+   private String oldval, newval;
    private Block blk;
    
    /**
@@ -15,17 +15,19 @@ class SetStringRecord implements LogRecord {
     * @param txnum the ID of the specified transaction
     * @param blk the block containing the value
     * @param offset the offset of the value in the block
-    * @param val the new value
+    * @param oldval the value before the modification
+    * @param newval the value after the modification
     */
-   public SetStringRecord(int txnum, Block blk, int offset, String val) {
+   public SetStringRecord(int txnum, Block blk, int offset, String oldval, String newval) {
       this.txnum = txnum;
       this.blk = blk;
       this.offset = offset;
-      this.val = val;
+      this.oldval = oldval;
+      this.newval = newval;
    }
    
    /**
-    * Creates a log record by reading five other values from the log.
+    * Creates a log record by reading six other values from the log.
     * @param rec the basic log record
     */
    public SetStringRecord(BasicLogRecord rec) {
@@ -34,7 +36,8 @@ class SetStringRecord implements LogRecord {
       int blknum = rec.nextInt();
       blk = new Block(filename, blknum);
       offset = rec.nextInt();
-      val = rec.nextString();
+      oldval = rec.nextString();
+      newval = rec.nextString();
    }
    
    /** 
@@ -42,12 +45,12 @@ class SetStringRecord implements LogRecord {
     * This log record contains the SETSTRING operator,
     * followed by the transaction id, the filename, number,
     * and offset of the modified block, and the previous
-    * string value at that offset.
+    * and new string values at that offset.
     * @return the LSN of the last log value
     */
-   public int writeToLog() {
+   public long writeToLog() {
       Object[] rec = new Object[] {SETSTRING, txnum, blk.fileName(),
-         blk.number(), offset, val};
+         blk.number(), offset, oldval, newval};
       return logMgr.append(rec);
    }
    
@@ -59,8 +62,16 @@ class SetStringRecord implements LogRecord {
       return txnum;
    }
    
+   /**
+    * Returns the block that the record modifies.
+    * @return the modified block
+    */
+   public Block block() {
+      return blk;
+   }
+   
    public String toString() {
-      return "<SETSTRING " + txnum + " " + blk + " " + offset + " " + val + ">";
+      return "<SETSTRING " + txnum + " " + blk + " " + offset + " " + oldval + " " + newval + ">";
    }
    
    /** 
@@ -73,7 +84,27 @@ class SetStringRecord implements LogRecord {
    public void undo(int txnum) {
       BufferMgr buffMgr = SimpleDB.bufferMgr();
       Buffer buff = buffMgr.pin(blk);
-      buff.setString(offset, val, txnum, -1);
+      buff.setString(offset, oldval, txnum, -1);
+      buffMgr.unpin(buff);
+   }
+   
+   /**
+    * Replaces the specified data value with the new value saved in the log record.
+    * The method pins a buffer to the specified block,
+    * calls setString to reapply the new value
+    * (using a dummy LSN), and unpins the buffer.
+    * Nothing is redone if the block is beyond the end of its file.
+    * Recovery does not redo the updates of blocks that a later
+    * truncation removed, since their numbers may have been reused
+    * (see {@link TruncateRecord}).
+    * @see simpledb.tx.recovery.LogRecord#redo(int)
+    */
+   public void redo(int txnum) {
+      if (blk.number() >= SimpleDB.fileMgr().size(blk.fileName()))
+         return;
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      buff.setString(offset, newval, txnum, -1);
       buffMgr.unpin(buff);
    }
 }
@@ -27,7 +27,7 @@ class StartRecord implements LogRecord {
     * followed by the transaction id.
     * @return the LSN of the last log value
     */
-   public int writeToLog() {
+   public long writeToLog() {
       Object[] rec = new Object[] {START, txnum};
       return logMgr.append(rec);
    }
@@ -46,6 +46,12 @@ class StartRecord implements LogRecord {
     */
    public void undo(int txnum) {}
    
+   /**
+    * Does nothing, because a start record
+    * contains no redo information.
+    */
+   public void redo(int txnum) {}
+   
    public String toString() {
       return "<START " + txnum + ">";
    }
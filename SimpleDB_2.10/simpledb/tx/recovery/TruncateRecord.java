@@ -0,0 +1,90 @@
+package simpledb.tx.recovery;
+
+import simpledb.log.BasicLogRecord;
+
+/**
+ * The TRUNCATE log record, which is written when a committed transaction
+ * removes the blocks of a file from a block number on.
+ * The removed block numbers can be used again by later appends,
+ * so recovery must not redo any earlier update of those blocks
+ * (see {@link RecoveryMgr}).
+ */
+class TruncateRecord implements LogRecord {
+   private int txnum, numblocks;
+   private String filename;
+   
+   /**
+    * Creates a new truncate log record.
+    * @param txnum the ID of the transaction that truncates the file
+    * @param filename the name of the file
+    * @param numblocks the number of blocks that remain in the file
+    */
+   public TruncateRecord(int txnum, String filename, int numblocks) {
+      this.txnum = txnum;
+      this.filename = filename;
+      this.numblocks = numblocks;
+   }
+   
+   /**
+    * Creates a log record by reading three other values from the log.
+    * @param rec the basic log record
+    */
+   public TruncateRecord(BasicLogRecord rec) {
+      txnum = rec.nextInt();
+      filename = rec.nextString();
+      numblocks = rec.nextInt();
+   }
+   
+   /** 
+    * Writes a truncate record to the log.
+    * This log record contains the TRUNCATE operator,
+    * followed by the transaction id, the filename,
+    * and the number of blocks that remain in the file.
+    * @return the LSN of the last log value
+    */
+   public long writeToLog() {
+      Object[] rec = new Object[] {TRUNCATE, txnum, filename, numblocks};
+      return logMgr.append(rec);
+   }
+   
+   public int op() {
+      return TRUNCATE;
+   }
+   
+   public int txNumber() {
+      return txnum;
+   }
+   
+   /**
+    * Returns the name of the truncated file.
+    * @return the name of the file
+    */
+   public String fileName() {
+      return filename;
+   }
+   
+   /**
+    * Returns the number of blocks that remain in the file.
+    * @return the new size of the file
+    */
+   public int numBlocks() {
+      return numblocks;
+   }
+   
+   /**
+    * Does nothing, because a file is only truncated
+    * after its transaction has committed.
+    */
+   public void undo(int txnum) {}
+   
+   /**
+    * Does nothing: a crash can leave the file untruncated,
+    * but the removed blocks were empty on disk before
+    * the record was written.
+    */
+   public void redo(int txnum) {}
+   
+   public String toString() {
+      return "<TRUNCATE " + txnum + " " + filename + " " + numblocks + ">";
+   }
+}